@@ -16,6 +16,12 @@
 #include <strings.h>
 #include <stdbool.h>
 
+#ifdef _WIN32
+#include <windows.h>
+#else
+#include <time.h>
+#endif
+
 double sumD(const double d1, const double d2)
 {
     return (d1 + d2);
@@ -181,6 +187,36 @@ double sumMatDPtrPtr(const int rows, const int cols, const double** mat)
     return total;
 }
 
+void fillMatD(int rows, int cols, double mat[rows][cols])
+{
+    for (int yy = 0; yy < rows; ++yy)
+    {
+        for (int xx = 0; xx < cols; ++xx)
+            mat[yy][xx] = yy * cols + xx;
+    }
+}
+
+double sumJaggedDPtrPtr(const int rows, const int *lens, const double** mat)
+{
+    double total = 0;
+
+    for (int yy = 0; yy < rows; ++yy)
+    {
+        for (int xx = 0; xx < lens[yy]; ++xx)
+            total += mat[yy][xx];
+    }
+    return total;
+}
+
+void fillJaggedDPtrPtr(const int rows, const int *lens, double** mat)
+{
+    for (int yy = 0; yy < rows; ++yy)
+    {
+        for (int xx = 0; xx < lens[yy]; ++xx)
+            mat[yy][xx] = yy * 100 + xx;
+    }
+}
+
 
 float sumMatF(int rows, int cols, float mat[rows][cols])
 {
@@ -313,6 +349,19 @@ int cstringLength(const char* string)
     return strlen(string);
 }
 
+int blockFor(int millis)
+{
+#ifdef _WIN32
+    Sleep(millis);
+#else
+    struct timespec ts;
+    ts.tv_sec = millis / 1000;
+    ts.tv_nsec = (millis % 1000) * 1000000L;
+    nanosleep(&ts, NULL);
+#endif
+    return millis;
+}
+
 char* mallocString(const char* origString)
 {
     if (origString == NULL)
@@ -352,6 +401,22 @@ double passStruct(struct PassingData* data)
     return ret;
 }
 
+double passStructArray(struct PassingData* data, int count)
+{
+    double ret = 0;
+    for (int n = 0; n < count; ++n)
+    {
+        ret += passStruct(&data[n]);
+        data[n].s_int += 10;
+    }
+    return ret;
+}
+
+struct PassingData* getStruct(struct PassingData* data, int index)
+{
+    return &data[index];
+}
+
 double passComplex(struct ComplexPassing* complex)
 {
     double ret = passStruct(&complex->s_passingData);
@@ -421,6 +486,19 @@ void call_CBArr(callbackFNArr fn,  int* vals, int count)
     fn(vals, count);
 }
 
+void call_CBSort(callbackFNCompare fn, struct PassingData* data, int count)
+{
+    qsort(data, count, sizeof(struct PassingData), fn);
+}
+
+double call_CBTyped(callbackFNTyped fn, struct PassingData* data, const char* name, double* vals, int count)
+{
+    double ret = fn(data, name, vals, count);
+    for (int n = 0; n < count; n++)
+        ret += vals[n];
+    return ret;
+}
+
 extern int fillChars(char* fillThis, int sizemax)
 {
     strncpy(fillThis, "hello world", sizemax);
@@ -18,6 +18,9 @@ extern double sumArrDD(const double *arr, const double *arr2, int count);
 extern void readD(double *v, int set);
 extern double sumMatD(int rows, int cols, double mat[rows][cols]);
 extern double sumMatDPtrPtr(int rows, int cols, const double** mat);
+extern void fillMatD(int rows, int cols, double mat[rows][cols]);
+extern double sumJaggedDPtrPtr(int rows, const int *lens, const double** mat);
+extern void fillJaggedDPtrPtr(int rows, const int *lens, double** mat);
 
 extern float sumArrF(const float *arr, int count);
 extern void readF(float *val, float set);
@@ -45,6 +48,7 @@ extern int sumMatB(int rows, int cols, char mat[rows][cols]);
 extern int sumMatBPtrPtr(int rows, int cols, const char ** mat);
 
 extern int cstringLength(const char* string);
+extern int blockFor(int millis);
 extern char* mallocString(const char* origString);
 extern double* mallocDoubles(int count);
 extern void freeMemory(void *memory);
@@ -82,6 +86,8 @@ struct PassingArrays
 };
 
 extern double passStruct(struct PassingData* data);
+extern double passStructArray(struct PassingData* data, int count);
+extern struct PassingData* getStruct(struct PassingData* data, int index);
 extern double passComplex(struct ComplexPassing* complex);
 extern double passStructWithArrays(struct PassingArrays* structWithArrays);
 
@@ -91,4 +97,10 @@ extern int call_CB(callbackFN fn, int, double);
 typedef int (*callbackFNArr) (int*, int);
 extern void call_CBArr(callbackFNArr fn, int*, int);
 
+typedef int (*callbackFNCompare) (const void*, const void*);
+extern void call_CBSort(callbackFNCompare fn, struct PassingData*, int);
+
+typedef double (*callbackFNTyped) (struct PassingData*, const char*, double*, int);
+extern double call_CBTyped(callbackFNTyped fn, struct PassingData*, const char*, double*, int);
+
 #endif //FL_DLL_LIBRARY_H
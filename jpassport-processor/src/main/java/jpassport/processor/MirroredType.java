@@ -0,0 +1,212 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.processor;
+
+import jpassport.model.JMember;
+import jpassport.model.JMethod;
+import jpassport.model.JType;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.*;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import java.lang.annotation.Annotation;
+import java.util.List;
+
+/**
+ * JType backed by a type from the source being compiled. At compile time there are no Class objects
+ * for the interface or its Records, so everything the PassportWriter needs is read from the javac model.
+ */
+record MirroredType(TypeMirror mirror, ProcessingEnvironment env) implements JType
+{
+    private TypeElement element()
+    {
+        return mirror.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) mirror).asElement() : null;
+    }
+
+    @Override
+    public String name()
+    {
+        if (isArray())
+            return componentType().name() + "[]";
+        if (element() != null)
+            return element().getQualifiedName().toString();
+        return mirror.toString();
+    }
+
+    @Override
+    public String simpleName()
+    {
+        if (isArray())
+            return componentType().simpleName() + "[]";
+        if (element() != null)
+            return element().getSimpleName().toString();
+        return mirror.toString();
+    }
+
+    @Override
+    public String packageName()
+    {
+        if (element() == null)
+            return "";
+        return env.getElementUtils().getPackageOf(element()).getQualifiedName().toString();
+    }
+
+    @Override
+    public String moduleName()
+    {
+        if (element() == null)
+            return "java.base";
+
+        ModuleElement module = env.getElementUtils().getModuleOf(element());
+        return module == null || module.isUnnamed() ? null : module.getQualifiedName().toString();
+    }
+
+    @Override
+    public boolean isPrimitive()
+    {
+        // Matches Class.isPrimitive(), which is true for void
+        return mirror.getKind().isPrimitive() || mirror.getKind() == TypeKind.VOID;
+    }
+
+    @Override
+    public boolean isArray()
+    {
+        return mirror.getKind() == TypeKind.ARRAY;
+    }
+
+    @Override
+    public JType componentType()
+    {
+        return isArray() ? new MirroredType(((ArrayType) mirror).getComponentType(), env) : null;
+    }
+
+    @Override
+    public List<JType> typeArguments()
+    {
+        if (mirror.getKind() != TypeKind.DECLARED)
+            return List.of();
+        return ((DeclaredType) mirror).getTypeArguments().stream().map(t -> (JType) new MirroredType(t, env)).toList();
+    }
+
+    @Override
+    public boolean isRecord()
+    {
+        return element() != null && element().getKind() == ElementKind.RECORD;
+    }
+
+    @Override
+    public boolean is(Class<?> c)
+    {
+        return name().equals(c.getCanonicalName());
+    }
+
+    @Override
+    public boolean isSubtypeOf(Class<?> c)
+    {
+        if (element() == null)
+            return is(c);
+
+        TypeElement other = env.getElementUtils().getTypeElement(c.getCanonicalName());
+        if (other == null)
+            return false;
+
+        var types = env.getTypeUtils();
+        return types.isAssignable(types.erasure(mirror), types.erasure(other.asType()));
+    }
+
+    @Override
+    public List<JMember> recordComponents()
+    {
+        if (!isRecord())
+            return List.of();
+
+        return element().getRecordComponents().stream().
+                map(c -> (JMember) new MirroredMember(c.getSimpleName().toString(), new MirroredType(c.asType(), env), c)).toList();
+    }
+
+    @Override
+    public List<JMethod> methods()
+    {
+        if (element() == null)
+            return List.of();
+
+        return ElementFilter.methodsIn(element().getEnclosedElements()).stream().
+                filter(m -> !m.getModifiers().contains(Modifier.STATIC)).
+                filter(m -> !m.getModifiers().contains(Modifier.DEFAULT)).
+                map(m -> (JMethod) new MirroredMethod(m, env)).toList();
+    }
+
+    @Override
+    public <A extends Annotation> A getAnnotation(Class<A> annotation)
+    {
+        return element() == null ? null : element().getAnnotation(annotation);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof JType t && name().equals(t.name());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return name().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name();
+    }
+
+    private record MirroredMember(String name, JType type, Element element) implements JMember
+    {
+        @Override
+        public <A extends Annotation> A getAnnotation(Class<A> annotation)
+        {
+            return element.getAnnotation(annotation);
+        }
+    }
+
+    private record MirroredMethod(ExecutableElement method, ProcessingEnvironment env) implements JMethod
+    {
+        @Override
+        public String name()
+        {
+            return method.getSimpleName().toString();
+        }
+
+        @Override
+        public JType returnType()
+        {
+            return new MirroredType(method.getReturnType(), env);
+        }
+
+        @Override
+        public List<JMember> parameters()
+        {
+            return method.getParameters().stream().
+                    map(p -> (JMember) new MirroredMember(p.getSimpleName().toString(), new MirroredType(p.asType(), env), p)).toList();
+        }
+
+        @Override
+        public <A extends Annotation> A getAnnotation(Class<A> annotation)
+        {
+            return method.getAnnotation(annotation);
+        }
+    }
+}
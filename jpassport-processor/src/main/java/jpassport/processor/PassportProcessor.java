@@ -0,0 +1,100 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.processor;
+
+import jpassport.Passport;
+import jpassport.PassportException;
+import jpassport.PassportWriter;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Set;
+
+/**
+ * Writes the implementation of every interface that extends Passport while your code is compiled. This is
+ * the same class that PassportFactory.link() would otherwise write and compile at run time. When the class
+ * is present PassportFactory.link() uses it directly, so there is no code generation or compiling at start-up.
+ *
+ * To use it add JPassport-processor to the annotation processor path of your build. The class for
+ * my.pkg.Linked is written as my.pkg.Linked_impl.
+ *
+ * Since the class is written on the build machine, any platform specific StructPadding values are resolved
+ * for the build platform.
+ */
+@SupportedAnnotationTypes("*")
+public class PassportProcessor extends AbstractProcessor
+{
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv)
+    {
+        TypeElement passport = processingEnv.getElementUtils().getTypeElement(Passport.class.getCanonicalName());
+        if (passport == null)
+            return false;
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()))
+            processType(type, passport);
+
+        // Never claim the annotations, other processors may want them
+        return false;
+    }
+
+    private void processType(TypeElement type, TypeElement passport)
+    {
+        if (type.getKind() == ElementKind.INTERFACE && !type.equals(passport) &&
+                processingEnv.getTypeUtils().isAssignable(type.asType(), passport.asType()))
+            writeImpl(type);
+
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements()))
+            processType(nested, passport);
+    }
+
+    private void writeImpl(TypeElement interfaceType)
+    {
+        var elements = processingEnv.getElementUtils();
+        String packageName = elements.getPackageOf(interfaceType).getQualifiedName().toString();
+        if (packageName.isEmpty())
+        {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Passport interfaces in the default package cannot be generated", interfaceType);
+            return;
+        }
+
+        String fullClassName = PassportWriter.getPregeneratedClassName(elements.getBinaryName(interfaceType).toString());
+        String className = fullClassName.substring(packageName.length() + 1);
+
+        try {
+            var writer = new PassportWriter<>(new MirroredType(interfaceType.asType(), processingEnv), packageName, className);
+            var sourceFile = processingEnv.getFiler().createSourceFile(fullClassName, interfaceType);
+            try (Writer out = sourceFile.openWriter()) {
+                out.write(writer.getSource());
+            }
+        }
+        catch (PassportException | IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write " + fullClassName + ": " + ex.getMessage(), interfaceType);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+module jpassport.processor {
+    requires jpassport;
+    requires java.compiler;
+
+    exports jpassport.processor;
+
+    provides javax.annotation.processing.Processor with jpassport.processor.PassportProcessor;
+}
@@ -0,0 +1,132 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Objects;
+
+/**
+ * A window of a primitive array. When this is passed to a native method only the elements from offset to
+ * offset + length are copied to native memory (and read back for RefArg/Out/InOut), the rest of the array
+ * is never touched. The native function receives a pointer to the first element of the window.
+ *
+ * <pre>
+ * C
+ * double sumArrD(const double *arr, const int count);
+ *
+ * Java
+ * interface Linked extends Passport
+ * {
+ *     double sumArrD(ArraySlice&lt;double[]&gt; arr, int count);
+ * }
+ *
+ * linked.sumArrD(ArraySlice.of(bigArray, 1000, 10), 10);
+ * </pre>
+ *
+ * @param <A> The type of primitive array.
+ */
+public final class ArraySlice<A>
+{
+    private final A m_array;
+    private final int m_offset;
+    private final int m_length;
+    private final ValueLayout m_layout;
+
+    private ArraySlice(A array, int offset, int length, int arrayLength, ValueLayout layout)
+    {
+        Objects.checkFromIndexSize(offset, length, arrayLength);
+        m_array = array;
+        m_offset = offset;
+        m_length = length;
+        m_layout = layout;
+    }
+
+    public static ArraySlice<byte[]> of(byte[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_BYTE);
+    }
+
+    public static ArraySlice<char[]> of(char[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_CHAR);
+    }
+
+    public static ArraySlice<short[]> of(short[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_SHORT);
+    }
+
+    public static ArraySlice<int[]> of(int[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_INT);
+    }
+
+    public static ArraySlice<long[]> of(long[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_LONG);
+    }
+
+    public static ArraySlice<float[]> of(float[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_FLOAT);
+    }
+
+    public static ArraySlice<double[]> of(double[] arr, int offset, int length)
+    {
+        return new ArraySlice<>(arr, offset, length, arr.length, ValueLayout.JAVA_DOUBLE);
+    }
+
+    public A array()
+    {
+        return m_array;
+    }
+
+    public int offset()
+    {
+        return m_offset;
+    }
+
+    public int length()
+    {
+        return m_length;
+    }
+
+    ValueLayout layout()
+    {
+        return m_layout;
+    }
+
+    long byteSize()
+    {
+        return m_length * m_layout.byteSize();
+    }
+
+    /**
+     * @return The window as a segment over the Java array itself, only usable for Critical(allowHeapAccess = true) calls.
+     */
+    MemorySegment toHeapSegment()
+    {
+        MemorySegment whole = switch (m_array)
+        {
+            case byte[] a -> MemorySegment.ofArray(a);
+            case char[] a -> MemorySegment.ofArray(a);
+            case short[] a -> MemorySegment.ofArray(a);
+            case int[] a -> MemorySegment.ofArray(a);
+            case long[] a -> MemorySegment.ofArray(a);
+            case float[] a -> MemorySegment.ofArray(a);
+            case double[] a -> MemorySegment.ofArray(a);
+            default -> throw new IllegalStateException("Not a primitive array: " + m_array.getClass());
+        };
+        return whole.asSlice(m_offset * m_layout.byteSize(), byteSize());
+    }
+}
@@ -0,0 +1,194 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the native calls of interface methods that return a CompletableFuture. The arguments are converted on the
+ * calling thread, then the native call, the read back of arrays and the return conversion are run by the
+ * executor and the future is completed with the result.
+ *
+ * <pre>
+ * public interface Slow extends Passport
+ * {
+ *     CompletableFuture&lt;Double&gt; sumArrD(double[] arr, int count);
+ * }
+ *
+ * double sum = slow.sumArrD(values, values.length).join();
+ * </pre>
+ *
+ * Methods marked {@link jpassport.annotations.Blocking} that are called from a virtual thread have their native call
+ * run by a pool of their own. It always uses platform threads and can not be replaced, an executor of virtual threads
+ * would pin a carrier for the whole native call, which is what Blocking is there to avoid. The pool has
+ * jpassport.blocking.threads threads (the number of processors if not set). When all of them are busy the calls are
+ * queued, never run on the caller, so no more platform threads are made however many virtual threads call in.
+ *
+ * <p>The contract for the arguments:</p>
+ * <ul>
+ *     <li>Arrays, Strings and the like are copied to native memory on the calling thread, in memory from a shared
+ *     Arena (or the Arena passed to the method) that is closed once the call is done.</li>
+ *     <li>Native memory passed in (MemorySegment, NativeArray, StructView, or an Arena argument) is used by the
+ *     executor's thread, so it must not be confined to a thread. A call with confined memory throws an
+ *     IllegalArgumentException on the calling thread and nothing is submitted.</li>
+ *     <li>Arrays that are read back (RefArg) are written by the executor's thread before it completes the
+ *     future. Completing the future happens-before join(), get() and the stages that depend on it, so the
+ *     new values are seen from there. Until then the arrays must not be used by other threads.</li>
+ * </ul>
+ *
+ * By default the executor is a pool of daemon platform threads, jpassport.async.threads of them (the number of
+ * processors if not set). Platform threads are used so a long native call never pins the carrier of a virtual thread.
+ */
+public final class AsyncCalls
+{
+    /**
+     * The part of a method call that is run by the executor.
+     */
+    @FunctionalInterface
+    public interface NativeCall<T>
+    {
+        T call() throws Throwable;
+    }
+
+    private static volatile Executor s_executor;
+
+    /**
+     * The platform threads that run Blocking calls, jpassport.blocking.threads of them (the number of processors if
+     * not set). When they are all in C further calls wait in a queue, their virtual threads stay parked.
+     */
+    private static final class BlockingPool
+    {
+        private static final ExecutorService s_pool = Executors.newFixedThreadPool(
+                Math.max(Integer.getInteger("jpassport.blocking.threads", Runtime.getRuntime().availableProcessors()), 1),
+                Thread.ofPlatform().daemon().name("jpassport-blocking-", 1).factory());
+    }
+    private static final Thread s_notOwner = Thread.ofPlatform().unstarted(() -> {});
+
+    private AsyncCalls()
+    {
+    }
+
+    /**
+     * @return The executor native calls are run on.
+     */
+    public static Executor getExecutor()
+    {
+        Executor executor = s_executor;
+        if (executor == null)
+        {
+            synchronized (AsyncCalls.class)
+            {
+                if (s_executor == null)
+                    s_executor = defaultExecutor();
+                executor = s_executor;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor native calls are run on from now on. Calls already submitted are not moved.
+     */
+    public static void setExecutor(Executor executor)
+    {
+        s_executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Used by the generated classes and the proxy.
+     *
+     * @param arena The memory of the arguments, closed once the call is done. May be null. If the executor
+     *              rejects the call the arena is left open for the caller to close.
+     * @param call The native call.
+     * @return A future completed with the result of the call, or with whatever it threw.
+     */
+    public static <T> CompletableFuture<T> submit(Arena arena, NativeCall<T> call)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        getExecutor().execute(() -> run(future, arena, call));
+        return future;
+    }
+
+    /**
+     * Used by the generated classes and the proxy before a call is handed to another thread.
+     *
+     * @param nativeArgs The arguments of the native call, only the native memory among them is checked.
+     * @throws IllegalArgumentException If memory is confined to a thread, it could not be used by the executor.
+     */
+    public static void checkShared(Object... nativeArgs)
+    {
+        for (Object arg : nativeArgs)
+        {
+            MemorySegment segment = arg instanceof CStringArray strs ? strs.segment() :
+                    arg instanceof MemorySegment seg ? seg : null;
+            // A confined segment is only accessible by its owner, so it is not accessible by a thread that never ran
+            if (segment != null && !segment.isAccessibleBy(s_notOwner))
+                throw new IllegalArgumentException("Memory confined to a thread can not be passed to a call that is run " +
+                        "by " + AsyncCalls.class.getSimpleName() + ", use a shared, global or automatic Arena");
+        }
+    }
+
+    /**
+     * Runs the call on a platform thread and waits for it, used for {@link jpassport.annotations.Blocking} methods
+     * called from a virtual thread. The wait parks the virtual thread instead of pinning its carrier. It cannot
+     * be interrupted, the memory of the arguments has to outlive the native call. This does not use the executor
+     * set with {@link #setExecutor(Executor)}. If every thread of the pool is busy the call waits in a queue.
+     *
+     * @return The result of the call.
+     * @throws Throwable Whatever the call threw.
+     */
+    public static <T> T offload(NativeCall<T> call) throws Throwable
+    {
+        try {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            BlockingPool.s_pool.execute(() -> run(future, null, call));
+            return future.join();
+        }
+        catch (CompletionException ex) {
+            throw ex.getCause();
+        }
+    }
+
+    private static <T> void run(CompletableFuture<T> future, Arena arena, NativeCall<T> call)
+    {
+        T result;
+        try {
+            result = call.call();
+        }
+        catch (Throwable th) {
+            close(arena);
+            future.completeExceptionally(th);
+            return;
+        }
+        close(arena);
+        future.complete(result);
+    }
+
+    private static void close(Arena arena)
+    {
+        if (arena != null)
+            arena.close();
+    }
+
+    private static ExecutorService defaultExecutor()
+    {
+        int threads = Integer.getInteger("jpassport.async.threads", Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(Math.max(threads, 1), Thread.ofPlatform().daemon().name("jpassport-async-", 1).factory());
+    }
+}
@@ -0,0 +1,112 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A String[] passed to C as a char**. The table of pointers and every string are made in one allocation,
+ * and the pointers and bytes that were passed are kept here in Java. When the array is read back, an element
+ * that C did not point somewhere else, and whose characters did not change, keeps its String.
+ */
+public final class CStringArray
+{
+    private final MemorySegment m_segment;
+    /** The address each element pointed to when it was passed to C, 0 for null. */
+    private final long[] m_addresses;
+    private final byte[][] m_encoded;
+
+    private CStringArray(MemorySegment segment, long[] addresses, byte[][] encoded)
+    {
+        m_segment = segment;
+        m_addresses = addresses;
+        m_encoded = encoded;
+    }
+
+    /**
+     * @param s The Strings to pass, elements may be null.
+     * @param scope Where to allocate the memory.
+     */
+    public static CStringArray of(String[] s, SegmentAllocator scope)
+    {
+        byte[][] encoded = new byte[s.length][];
+        long bytes = 0;
+        for (int n = 0; n < s.length; ++n)
+        {
+            if (s[n] != null)
+            {
+                encoded[n] = s[n].getBytes(StandardCharsets.UTF_8);
+                bytes += encoded[n].length + 1;
+            }
+        }
+
+        long tableSize = ValueLayout.ADDRESS.byteSize() * s.length;
+        MemorySegment block = scope.allocate(tableSize + bytes, ValueLayout.ADDRESS.byteAlignment());
+        long[] addresses = new long[s.length];
+        long offset = tableSize;
+        for (int n = 0; n < s.length; ++n)
+        {
+            MemorySegment str = MemorySegment.NULL;
+            if (encoded[n] != null)
+            {
+                int len = encoded[n].length;
+                MemorySegment.copy(encoded[n], 0, block, ValueLayout.JAVA_BYTE, offset, len);
+                block.set(ValueLayout.JAVA_BYTE, offset + len, (byte) 0);
+                str = block.asSlice(offset, len + 1);
+                offset += len + 1;
+            }
+            block.setAtIndex(ValueLayout.ADDRESS, n, str);
+            addresses[n] = str.address();
+        }
+        return new CStringArray(block, addresses, encoded);
+    }
+
+    /**
+     * @return The char** to pass to C, followed by the strings it points to.
+     */
+    public MemorySegment segment()
+    {
+        return m_segment;
+    }
+
+    /**
+     * Reads the char** back into s, which must be the array this was made from. Strings that are still in
+     * this memory are only searched up to its end.
+     */
+    public void readBack(String[] s)
+    {
+        long base = m_segment.address();
+        long tableSize = ValueLayout.ADDRESS.byteSize() * m_addresses.length;
+        for (int n = 0; n < s.length; ++n)
+        {
+            long ptr = m_segment.getAtIndex(ValueLayout.ADDRESS, n).address();
+            long offset = ptr - base;
+            if (ptr == 0)
+                s[n] = null;
+            else if (ptr == m_addresses[n])
+            {
+                byte[] original = m_encoded[n];
+                MemorySegment str = m_segment.asSlice(offset, original.length + 1);
+                if (str.mismatch(MemorySegment.ofArray(original)) != original.length ||
+                        str.get(ValueLayout.JAVA_BYTE, original.length) != 0)
+                    s[n] = Utils.readString(m_segment.asSlice(offset));
+            }
+            else if (offset >= tableSize && offset < m_segment.byteSize())
+                s[n] = Utils.readString(m_segment.asSlice(offset));
+            else
+                s[n] = Utils.readString(m_segment.getAtIndex(ValueLayout.ADDRESS, n));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.function.Function;
+
+/**
+ * A function pointer whose upcall stub is freed by {@link #close()} rather than by the garbage collector.
+ * Native code must not call the pointer after it is closed.
+ *
+ * <pre>
+ * try (Callback cb = Callback.of(myObj, "callback"))
+ * {
+ *     linked.call_CB(cb.getPtr(), 5, 1);
+ * }
+ * </pre>
+ */
+public final class Callback extends FunctionPtr implements AutoCloseable
+{
+    private final Arena m_arena;
+
+    private Callback(MemorySegment ptr, Arena arena)
+    {
+        super(ptr);
+        m_arena = arena;
+    }
+
+    /**
+     * @param ob The object that the method belongs to.
+     * @param methodName The name of the method, the same rules as {@link PassportFactory#createCallback(Object, String)} apply.
+     * @return A callback that owns its own upcall stub.
+     */
+    public static Callback of(Object ob, String methodName)
+    {
+        return of(arena -> CallbackRegistry.upcallStub(ob, methodName, arena));
+    }
+
+    /**
+     * Native code calling the pointer runs the function. The arguments native code passes are converted to the
+     * types the interface method takes, see {@link PassportFactory#createCallback(Class, Object)}.
+     *
+     * @param functional The interface the function implements.
+     * @param function The function, ex. a lambda.
+     * @return A callback that owns its own upcall stub.
+     */
+    public static <F> Callback of(Class<F> functional, F function)
+    {
+        return of(arena -> CallbackRegistry.upcallStub(functional, function, arena));
+    }
+
+    private static Callback of(Function<Arena, MemorySegment> stub)
+    {
+        Arena arena = Arena.ofShared();
+        try {
+            return new Callback(stub.apply(arena), arena);
+        }
+        catch (RuntimeException | Error ex) {
+            arena.close();
+            throw ex;
+        }
+    }
+
+    public boolean isOpen()
+    {
+        return m_arena.scope().isAlive();
+    }
+
+    /**
+     * Frees the upcall stub. Closing more than once does nothing.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (m_arena)
+        {
+            if (isOpen())
+                m_arena.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the callbacks registered with it alive until they are unregistered or the registry is closed.
+ * Registering the same object and method again hands back the callback that is already open, so no new
+ * upcall stub is made.
+ *
+ * <pre>
+ * try (var callbacks = new CallbackRegistry())
+ * {
+ *     linked.call_CB(callbacks.register(myObj, "callback").getPtr(), 5, 1);
+ *     linked.call_CB(callbacks.register(myObj, "callback").getPtr(), 5, 1); // same stub
+ * }
+ * </pre>
+ *
+ * The method lookup and FunctionDescriptor for each class and method name, or each functional interface,
+ * are worked out once for the whole program, making a stub after that only binds the cached handle to the object.
+ */
+public final class CallbackRegistry implements AutoCloseable
+{
+    private record Upcall(MethodHandle handle, FunctionDescriptor descriptor) {}
+
+    private static final ClassValue<Map<String, Upcall>> s_upcalls = new ClassValue<>()
+    {
+        @Override
+        protected Map<String, Upcall> computeValue(Class<?> type)
+        {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private static final ClassValue<Upcall> s_functions = new ClassValue<>()
+    {
+        @Override
+        protected Upcall computeValue(Class<?> type)
+        {
+            MethodHandle handle = UpcallAdapter.adapt(type);
+            return new Upcall(handle, descriptor(handle.type().dropParameterTypes(0, 1)));
+        }
+    };
+
+    private final Map<Object, Map<String, Callback>> m_callbacks = new IdentityHashMap<>();
+    private boolean m_closed = false;
+
+    /**
+     * @param ob The object that the method belongs to.
+     * @param methodName The name of the method.
+     * @return The open callback for the object and method, made if there isn't one.
+     * @throws IllegalStateException if the registry is closed.
+     */
+    public synchronized Callback register(Object ob, String methodName)
+    {
+        return register(ob, methodName, () -> Callback.of(ob, methodName));
+    }
+
+    /**
+     * @param functional The interface the function implements.
+     * @param function The function, ex. a lambda.
+     * @return The open callback for the function, made if there isn't one.
+     * @throws IllegalStateException if the registry is closed.
+     */
+    public synchronized <F> Callback register(Class<F> functional, F function)
+    {
+        return register(function, functional.getName(), () -> Callback.of(functional, function));
+    }
+
+    private Callback register(Object ob, String key, Supplier<Callback> create)
+    {
+        if (m_closed)
+            throw new IllegalStateException("The CallbackRegistry is closed");
+
+        Map<String, Callback> byName = m_callbacks.computeIfAbsent(ob, o -> new ConcurrentHashMap<>());
+        Callback cb = byName.get(key);
+        if (cb == null || !cb.isOpen())
+        {
+            cb = create.get();
+            byName.put(key, cb);
+        }
+        return cb;
+    }
+
+    /**
+     * Closes the callback for the function, if there is one.
+     */
+    public synchronized <F> void unregister(Class<F> functional, F function)
+    {
+        unregister(function, functional.getName());
+    }
+
+    /**
+     * Closes the callback for the object and method, if there is one.
+     */
+    public synchronized void unregister(Object ob, String methodName)
+    {
+        Map<String, Callback> byName = m_callbacks.get(ob);
+        if (byName == null)
+            return;
+
+        Callback cb = byName.remove(methodName);
+        if (cb != null)
+            cb.close();
+        if (byName.isEmpty())
+            m_callbacks.remove(ob);
+    }
+
+    /**
+     * @return The number of callbacks that are open.
+     */
+    public synchronized int size()
+    {
+        return (int) m_callbacks.values().stream().flatMap(m -> m.values().stream()).filter(Callback::isOpen).count();
+    }
+
+    /**
+     * Closes every callback that was registered.
+     */
+    @Override
+    public synchronized void close()
+    {
+        m_closed = true;
+        m_callbacks.values().forEach(m -> m.values().forEach(Callback::close));
+        m_callbacks.clear();
+    }
+
+    /**
+     * @return An upcall stub for the method, allocated in the given arena.
+     */
+    static MemorySegment upcallStub(Object ob, String methodName, Arena arena)
+    {
+        Upcall upcall = s_upcalls.get(ob.getClass()).computeIfAbsent(methodName, name -> prepare(ob.getClass(), name));
+        return Linker.nativeLinker().upcallStub(upcall.handle().bindTo(ob), upcall.descriptor(), arena);
+    }
+
+    /**
+     * @return An upcall stub for the function, allocated in the given arena.
+     */
+    static MemorySegment upcallStub(Class<?> functional, Object function, Arena arena)
+    {
+        if (!functional.isInstance(function))
+            throw new IllegalArgumentException(function + " is not a " + functional.getName());
+
+        Upcall upcall = s_functions.get(functional);
+        return Linker.nativeLinker().upcallStub(upcall.handle().bindTo(function), upcall.descriptor(), arena);
+    }
+
+    private static Upcall prepare(Class<?> type, String methodName)
+    {
+        var methods = PassportFactory.getDeclaredMethods(type).stream().filter(m -> m.getName().equals(methodName)).toList();
+        if (methods.isEmpty())
+            throw new IllegalArgumentException("Could not find method " + methodName + " in class " + type.getName());
+        else if (methods.size() > 1)
+            throw new IllegalArgumentException("Multiple overloads of method " + methodName + " in class " + type.getName());
+
+        Method callbackMethod = methods.get(0);
+
+        Class<?> retType = callbackMethod.getReturnType();
+        Class<?>[] parameters = callbackMethod.getParameterTypes();
+
+        if (!retType.isPrimitive() && retType != MemorySegment.class)
+            throw new IllegalArgumentException("Callback method must return void, primitives, or MemoryAddress, not " + retType.getName());
+
+        for (Class<?> parameter : parameters) {
+            if (!parameter.isPrimitive() && parameter != MemorySegment.class)
+                throw new IllegalArgumentException("Callback parameters must be primitives or MemoryAddress, not " + parameter.getName());
+        }
+
+        try {
+            MethodType methodType = MethodType.methodType(retType, parameters);
+            return new Upcall(MethodHandles.publicLookup().findVirtual(type, methodName, methodType), descriptor(methodType));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex)
+        {
+            throw new Error("Failed to create callback method", ex);
+        }
+    }
+
+    private static FunctionDescriptor descriptor(MethodType type)
+    {
+        MemoryLayout[] memoryLayout = type.parameterList().stream().map(PassportFactory::classToMemory).toArray(MemoryLayout[]::new);
+        if (void.class.equals(type.returnType()))
+            return FunctionDescriptor.ofVoid(memoryLayout);
+        return FunctionDescriptor.of(PassportFactory.classToMemory(type.returnType()), memoryLayout);
+    }
+}
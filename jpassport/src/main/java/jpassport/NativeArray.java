@@ -0,0 +1,70 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * An array of primitives that lives in native memory. When one of these is passed to a native method only the
+ * address is passed, nothing is copied in before the call or read back after it. This is the quickest way to
+ * call a function over and over with the same (large) data.
+ *
+ * <pre>
+ * try (var arr = new NativeDoubleArray(new double[] {1, 2, 3}))
+ * {
+ *     double sum = linked.sumArrD(arr, (int) arr.length());
+ * }
+ * </pre>
+ *
+ * An array that made its own memory frees it on close(). An array made with an Arena lives as long as the
+ * Arena, and an array made from an existing MemorySegment never frees it.
+ */
+public abstract class NativeArray implements AutoCloseable
+{
+    protected final MemorySegment m_segment;
+    private final Arena m_arena;
+
+    protected NativeArray(Arena arena, MemorySegment segment)
+    {
+        m_arena = arena;
+        m_segment = segment;
+    }
+
+    /**
+     * @return The number of elements in the array.
+     */
+    public abstract long length();
+
+    /**
+     * @return The native memory, this is what is passed to native methods.
+     */
+    public MemorySegment getPtr()
+    {
+        return m_segment;
+    }
+
+    public long byteSize()
+    {
+        return m_segment.byteSize();
+    }
+
+    /**
+     * Frees the memory if this array allocated it.
+     */
+    @Override
+    public void close()
+    {
+        if (m_arena != null)
+            m_arena.close();
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+
+/**
+ * A byte[][] in native memory, see {@link NativeMatrix}.
+ */
+public class NativeByteMatrix extends NativeMatrix
+{
+    /**
+     * Allocates a zeroed matrix that is freed on close().
+     */
+    public NativeByteMatrix(int rows, int cols)
+    {
+        this(Arena.ofShared(), rows, cols, true);
+    }
+
+    /**
+     * Allocates a matrix holding a copy of values, freed on close(). Every row must be the same length.
+     */
+    public NativeByteMatrix(byte[][] values)
+    {
+        this(values.length, colsOf(values));
+        copyFrom(values);
+    }
+
+    /**
+     * Allocates a zeroed matrix from the given Arena, it is freed when the Arena is closed.
+     */
+    public NativeByteMatrix(Arena arena, int rows, int cols)
+    {
+        this(arena, rows, cols, false);
+    }
+
+    /**
+     * Uses existing native memory, holding rows * cols values one row after another, as the matrix.
+     */
+    public NativeByteMatrix(MemorySegment segment, int rows, int cols)
+    {
+        super(null, Arena.ofAuto(), segment, rows, cols);
+    }
+
+    private NativeByteMatrix(Arena arena, int rows, int cols, boolean owned)
+    {
+        super(owned ? arena : null, arena,
+                arena.allocate((long) rows * cols * JAVA_BYTE.byteSize(), JAVA_BYTE.byteAlignment()), rows, cols);
+    }
+
+    @Override
+    protected ValueLayout elementLayout()
+    {
+        return JAVA_BYTE;
+    }
+
+    public byte get(int row, int col)
+    {
+        return m_segment.getAtIndex(JAVA_BYTE, index(row, col));
+    }
+
+    public void set(int row, int col, byte value)
+    {
+        m_segment.setAtIndex(JAVA_BYTE, index(row, col), value);
+    }
+
+    public byte[] getRow(int row)
+    {
+        byte[] ret = new byte[cols()];
+        loadRow(row, ret, ret.length);
+        return ret;
+    }
+
+    /**
+     * Copies values into the start of a row.
+     */
+    public void setRow(int row, byte[] values)
+    {
+        storeRow(row, values, values.length);
+    }
+
+    public byte[] getColumn(int col)
+    {
+        byte[] ret = new byte[rows()];
+        for (int row = 0; row < ret.length; ++row)
+            ret[row] = get(row, col);
+        return ret;
+    }
+
+    /**
+     * Copies values into the top of a column.
+     */
+    public void setColumn(int col, byte[] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            set(row, col, values[row]);
+    }
+
+    /**
+     * Copies values into the top left of this matrix.
+     */
+    public void copyFrom(byte[][] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            setRow(row, values[row]);
+    }
+
+    /**
+     * Copies the top left of this matrix into values.
+     */
+    public void copyTo(byte[][] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            loadRow(row, values[row], values[row].length);
+    }
+
+    public byte[][] toArray()
+    {
+        byte[][] ret = new byte[rows()][];
+        for (int row = 0; row < ret.length; ++row)
+            ret[row] = getRow(row);
+        return ret;
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static java.lang.foreign.ValueLayout.JAVA_DOUBLE;
+
+/**
+ * A double[][] in native memory, see {@link NativeMatrix}.
+ */
+public class NativeDoubleMatrix extends NativeMatrix
+{
+    /**
+     * Allocates a zeroed matrix that is freed on close().
+     */
+    public NativeDoubleMatrix(int rows, int cols)
+    {
+        this(Arena.ofShared(), rows, cols, true);
+    }
+
+    /**
+     * Allocates a matrix holding a copy of values, freed on close(). Every row must be the same length.
+     */
+    public NativeDoubleMatrix(double[][] values)
+    {
+        this(values.length, colsOf(values));
+        copyFrom(values);
+    }
+
+    /**
+     * Allocates a zeroed matrix from the given Arena, it is freed when the Arena is closed.
+     */
+    public NativeDoubleMatrix(Arena arena, int rows, int cols)
+    {
+        this(arena, rows, cols, false);
+    }
+
+    /**
+     * Uses existing native memory, holding rows * cols values one row after another, as the matrix.
+     */
+    public NativeDoubleMatrix(MemorySegment segment, int rows, int cols)
+    {
+        super(null, Arena.ofAuto(), segment, rows, cols);
+    }
+
+    private NativeDoubleMatrix(Arena arena, int rows, int cols, boolean owned)
+    {
+        super(owned ? arena : null, arena,
+                arena.allocate((long) rows * cols * JAVA_DOUBLE.byteSize(), JAVA_DOUBLE.byteAlignment()), rows, cols);
+    }
+
+    @Override
+    protected ValueLayout elementLayout()
+    {
+        return JAVA_DOUBLE;
+    }
+
+    public double get(int row, int col)
+    {
+        return m_segment.getAtIndex(JAVA_DOUBLE, index(row, col));
+    }
+
+    public void set(int row, int col, double value)
+    {
+        m_segment.setAtIndex(JAVA_DOUBLE, index(row, col), value);
+    }
+
+    public double[] getRow(int row)
+    {
+        double[] ret = new double[cols()];
+        loadRow(row, ret, ret.length);
+        return ret;
+    }
+
+    /**
+     * Copies values into the start of a row.
+     */
+    public void setRow(int row, double[] values)
+    {
+        storeRow(row, values, values.length);
+    }
+
+    public double[] getColumn(int col)
+    {
+        double[] ret = new double[rows()];
+        for (int row = 0; row < ret.length; ++row)
+            ret[row] = get(row, col);
+        return ret;
+    }
+
+    /**
+     * Copies values into the top of a column.
+     */
+    public void setColumn(int col, double[] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            set(row, col, values[row]);
+    }
+
+    /**
+     * Copies values into the top left of this matrix.
+     */
+    public void copyFrom(double[][] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            setRow(row, values[row]);
+    }
+
+    /**
+     * Copies the top left of this matrix into values.
+     */
+    public void copyTo(double[][] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            loadRow(row, values[row], values[row].length);
+    }
+
+    public double[][] toArray()
+    {
+        double[][] ret = new double[rows()][];
+        for (int row = 0; row < ret.length; ++row)
+            ret[row] = getRow(row);
+        return ret;
+    }
+}
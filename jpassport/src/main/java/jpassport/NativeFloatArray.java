@@ -0,0 +1,98 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+
+/**
+ * A float[] in native memory, see {@link NativeArray}.
+ */
+public class NativeFloatArray extends NativeArray
+{
+    /**
+     * Allocates a zeroed array that is freed on close().
+     */
+    public NativeFloatArray(long length)
+    {
+        this(Arena.ofShared(), length, true);
+    }
+
+    /**
+     * Allocates an array holding a copy of values, freed on close().
+     */
+    public NativeFloatArray(float[] values)
+    {
+        this(values.length);
+        copyFrom(values);
+    }
+
+    /**
+     * Allocates a zeroed array from the given Arena, it is freed when the Arena is closed.
+     */
+    public NativeFloatArray(Arena arena, long length)
+    {
+        this(arena, length, false);
+    }
+
+    /**
+     * Uses existing native memory as the array.
+     */
+    public NativeFloatArray(MemorySegment segment)
+    {
+        super(null, segment);
+    }
+
+    private NativeFloatArray(Arena arena, long length, boolean owned)
+    {
+        super(owned ? arena : null, arena.allocate(length * JAVA_FLOAT.byteSize(), JAVA_FLOAT.byteAlignment()));
+    }
+
+    @Override
+    public long length()
+    {
+        return m_segment.byteSize() / JAVA_FLOAT.byteSize();
+    }
+
+    public float get(long index)
+    {
+        return m_segment.getAtIndex(JAVA_FLOAT, index);
+    }
+
+    public void set(long index, float value)
+    {
+        m_segment.setAtIndex(JAVA_FLOAT, index, value);
+    }
+
+    /**
+     * Copies values into the start of this array.
+     */
+    public void copyFrom(float[] values)
+    {
+        MemorySegment.copy(values, 0, m_segment, JAVA_FLOAT, 0, values.length);
+    }
+
+    /**
+     * Copies the start of this array into values.
+     */
+    public void copyTo(float[] values)
+    {
+        MemorySegment.copy(m_segment, JAVA_FLOAT, 0, values, 0, values.length);
+    }
+
+    public float[] toArray()
+    {
+        return m_segment.toArray(JAVA_FLOAT);
+    }
+}
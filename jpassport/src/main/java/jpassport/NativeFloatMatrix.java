@@ -0,0 +1,137 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static java.lang.foreign.ValueLayout.JAVA_FLOAT;
+
+/**
+ * A float[][] in native memory, see {@link NativeMatrix}.
+ */
+public class NativeFloatMatrix extends NativeMatrix
+{
+    /**
+     * Allocates a zeroed matrix that is freed on close().
+     */
+    public NativeFloatMatrix(int rows, int cols)
+    {
+        this(Arena.ofShared(), rows, cols, true);
+    }
+
+    /**
+     * Allocates a matrix holding a copy of values, freed on close(). Every row must be the same length.
+     */
+    public NativeFloatMatrix(float[][] values)
+    {
+        this(values.length, colsOf(values));
+        copyFrom(values);
+    }
+
+    /**
+     * Allocates a zeroed matrix from the given Arena, it is freed when the Arena is closed.
+     */
+    public NativeFloatMatrix(Arena arena, int rows, int cols)
+    {
+        this(arena, rows, cols, false);
+    }
+
+    /**
+     * Uses existing native memory, holding rows * cols values one row after another, as the matrix.
+     */
+    public NativeFloatMatrix(MemorySegment segment, int rows, int cols)
+    {
+        super(null, Arena.ofAuto(), segment, rows, cols);
+    }
+
+    private NativeFloatMatrix(Arena arena, int rows, int cols, boolean owned)
+    {
+        super(owned ? arena : null, arena,
+                arena.allocate((long) rows * cols * JAVA_FLOAT.byteSize(), JAVA_FLOAT.byteAlignment()), rows, cols);
+    }
+
+    @Override
+    protected ValueLayout elementLayout()
+    {
+        return JAVA_FLOAT;
+    }
+
+    public float get(int row, int col)
+    {
+        return m_segment.getAtIndex(JAVA_FLOAT, index(row, col));
+    }
+
+    public void set(int row, int col, float value)
+    {
+        m_segment.setAtIndex(JAVA_FLOAT, index(row, col), value);
+    }
+
+    public float[] getRow(int row)
+    {
+        float[] ret = new float[cols()];
+        loadRow(row, ret, ret.length);
+        return ret;
+    }
+
+    /**
+     * Copies values into the start of a row.
+     */
+    public void setRow(int row, float[] values)
+    {
+        storeRow(row, values, values.length);
+    }
+
+    public float[] getColumn(int col)
+    {
+        float[] ret = new float[rows()];
+        for (int row = 0; row < ret.length; ++row)
+            ret[row] = get(row, col);
+        return ret;
+    }
+
+    /**
+     * Copies values into the top of a column.
+     */
+    public void setColumn(int col, float[] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            set(row, col, values[row]);
+    }
+
+    /**
+     * Copies values into the top left of this matrix.
+     */
+    public void copyFrom(float[][] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            setRow(row, values[row]);
+    }
+
+    /**
+     * Copies the top left of this matrix into values.
+     */
+    public void copyTo(float[][] values)
+    {
+        for (int row = 0; row < values.length; ++row)
+            loadRow(row, values[row], values[row].length);
+    }
+
+    public float[][] toArray()
+    {
+        float[][] ret = new float[rows()][];
+        for (int row = 0; row < ret.length; ++row)
+            ret[row] = getRow(row);
+        return ret;
+    }
+}
@@ -0,0 +1,116 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Objects;
+
+/**
+ * A 2D array of primitives that lives in native memory, stored row after row. It can be passed to a C function
+ * that takes <code>double mat[rows][cols]</code>, or with {@link jpassport.annotations.PtrPtrArg} to one that takes
+ * <code>double **mat</code>. Either way nothing is copied, so a matrix can be handed to native code over and over
+ * without any marshalling.
+ *
+ * <pre>
+ * try (var mat = new NativeDoubleMatrix(new double[][] {{1, 2}, {3, 4}}))
+ * {
+ *     double sum = linked.sumMatD(mat.rows(), mat.cols(), mat);
+ *     double sum2 = linked.sumMatDPtrPtr(mat.rows(), mat.cols(), mat);
+ * }
+ * </pre>
+ *
+ * The table of row pointers used for PtrPtrArg is only made the first time it is needed.
+ */
+public abstract class NativeMatrix extends NativeArray
+{
+    private final Arena m_tableArena;
+    private final int m_rows;
+    private final int m_cols;
+    private MemorySegment m_rowPointers;
+
+    protected NativeMatrix(Arena owned, Arena tableArena, MemorySegment segment, int rows, int cols)
+    {
+        super(owned, segment);
+        m_tableArena = tableArena;
+        m_rows = rows;
+        m_cols = cols;
+    }
+
+    public int rows()
+    {
+        return m_rows;
+    }
+
+    public int cols()
+    {
+        return m_cols;
+    }
+
+    @Override
+    public long length()
+    {
+        return (long) m_rows * m_cols;
+    }
+
+    /**
+     * @return A table with the address of each row, this is what is passed for PtrPtrArg arguments.
+     */
+    public MemorySegment getPtrPtr()
+    {
+        if (m_rowPointers == null)
+        {
+            long rowSize = m_cols * elementLayout().byteSize();
+            MemorySegment table = m_tableArena.allocate(ValueLayout.ADDRESS.byteSize() * m_rows, ValueLayout.ADDRESS.byteAlignment());
+            for (int row = 0; row < m_rows; ++row)
+                table.setAtIndex(ValueLayout.ADDRESS, row, m_segment.asSlice(row * rowSize, rowSize));
+            m_rowPointers = table;
+        }
+        return m_rowPointers;
+    }
+
+    protected abstract ValueLayout elementLayout();
+
+    /**
+     * @return The index of the element in the flat, row-major data.
+     */
+    protected long index(int row, int col)
+    {
+        Objects.checkIndex(row, m_rows);
+        Objects.checkIndex(col, m_cols);
+        return (long) row * m_cols + col;
+    }
+
+    /**
+     * Copies a Java array into one row.
+     */
+    protected void storeRow(int row, Object values, int length)
+    {
+        Objects.checkFromIndexSize(0, length, m_cols);
+        MemorySegment.copy(values, 0, m_segment, elementLayout(), index(row, 0) * elementLayout().byteSize(), length);
+    }
+
+    /**
+     * Copies one row into a Java array.
+     */
+    protected void loadRow(int row, Object values, int length)
+    {
+        Objects.checkFromIndexSize(0, length, m_cols);
+        MemorySegment.copy(m_segment, elementLayout(), index(row, 0) * elementLayout().byteSize(), values, 0, length);
+    }
+
+    protected static int colsOf(Object[] values)
+    {
+        return values.length == 0 ? 0 : java.lang.reflect.Array.getLength(values[0]);
+    }
+}
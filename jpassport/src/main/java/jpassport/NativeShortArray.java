@@ -0,0 +1,98 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+/**
+ * A short[] in native memory, see {@link NativeArray}.
+ */
+public class NativeShortArray extends NativeArray
+{
+    /**
+     * Allocates a zeroed array that is freed on close().
+     */
+    public NativeShortArray(long length)
+    {
+        this(Arena.ofShared(), length, true);
+    }
+
+    /**
+     * Allocates an array holding a copy of values, freed on close().
+     */
+    public NativeShortArray(short[] values)
+    {
+        this(values.length);
+        copyFrom(values);
+    }
+
+    /**
+     * Allocates a zeroed array from the given Arena, it is freed when the Arena is closed.
+     */
+    public NativeShortArray(Arena arena, long length)
+    {
+        this(arena, length, false);
+    }
+
+    /**
+     * Uses existing native memory as the array.
+     */
+    public NativeShortArray(MemorySegment segment)
+    {
+        super(null, segment);
+    }
+
+    private NativeShortArray(Arena arena, long length, boolean owned)
+    {
+        super(owned ? arena : null, arena.allocate(length * JAVA_SHORT.byteSize(), JAVA_SHORT.byteAlignment()));
+    }
+
+    @Override
+    public long length()
+    {
+        return m_segment.byteSize() / JAVA_SHORT.byteSize();
+    }
+
+    public short get(long index)
+    {
+        return m_segment.getAtIndex(JAVA_SHORT, index);
+    }
+
+    public void set(long index, short value)
+    {
+        m_segment.setAtIndex(JAVA_SHORT, index, value);
+    }
+
+    /**
+     * Copies values into the start of this array.
+     */
+    public void copyFrom(short[] values)
+    {
+        MemorySegment.copy(values, 0, m_segment, JAVA_SHORT, 0, values.length);
+    }
+
+    /**
+     * Copies the start of this array into values.
+     */
+    public void copyTo(short[] values)
+    {
+        MemorySegment.copy(m_segment, JAVA_SHORT, 0, values, 0, values.length);
+    }
+
+    public short[] toArray()
+    {
+        return m_segment.toArray(JAVA_SHORT);
+    }
+}
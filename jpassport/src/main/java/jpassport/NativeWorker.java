@@ -0,0 +1,231 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs every call made through a {@link ThreadingModel#SINGLE_THREAD} Passport on one daemon platform thread.
+ *
+ * Callers add their call to a lock-free queue (many producers, one consumer) and park until it is done. The
+ * worker runs everything that is in the queue each time it wakes, so under load one wake up covers many calls,
+ * and it spins for a moment before parking so calls made back to back rarely have to wake it at all.
+ * The worker stops once the Passport is garbage collected.
+ *
+ * Each method is called through a MethodHandle bound to the wrapped Passport, made once per method, so an
+ * exception thrown by the call reaches the caller as is, whether the call ran on the worker or directly.
+ */
+final class NativeWorker implements InvocationHandler
+{
+    private static final Cleaner s_cleaner = Cleaner.create();
+    private static final AtomicInteger s_workers = new AtomicInteger();
+    /** Spinning only helps when the other side of the handoff is running on another processor. */
+    private static final boolean SPIN = Runtime.getRuntime().availableProcessors() > 1;
+    private static final int WORKER_SPINS = SPIN ? 1 << 12 : 0;
+    private static final int CALLER_SPINS = SPIN ? 1 << 7 : 0;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final class Request
+    {
+        private final MethodHandle m_handle;
+        private final Object[] m_args;
+        private final Thread m_caller;
+        private volatile Request m_next;
+        private Object m_result;
+        private Throwable m_failure;
+        private volatile boolean m_done;
+
+        Request(MethodHandle handle, Object[] args, Thread caller)
+        {
+            m_handle = handle;
+            m_args = args;
+            m_caller = caller;
+        }
+    }
+
+    private final Object m_target;
+    /** The handle of each method, (Object[] args) -> Object bound to m_target. */
+    private final Map<Method, MethodHandle> m_handles = new HashMap<>();
+    /**
+     * The proxy class hands us the same Method object on every call, but it is a copy of the one
+     * the handles were made from. Once a Method has been seen it is found here by identity.
+     */
+    private volatile IdentityHashMap<Method, MethodHandle> m_seen = new IdentityHashMap<>();
+    /** Only used by the worker, this is the last request it ran (or an empty one to start). */
+    private Request m_head = new Request(null, null, null);
+    private final AtomicReference<Request> m_tail = new AtomicReference<>(m_head);
+    private volatile boolean m_parked = false;
+    private volatile boolean m_stopped = false;
+    private final Thread m_thread;
+
+    private NativeWorker(Object target, Class<?> interfaceClass)
+    {
+        m_target = target;
+        NativeWorker.class.getModule().addReads(interfaceClass.getModule());
+        for (Method method : PassportFactory.getDeclaredMethods(interfaceClass))
+            m_handles.put(method, handleOf(method));
+
+        String name = interfaceClass.getSimpleName();
+        m_thread = Thread.ofPlatform().daemon().name("jpassport-" + name + "-" + s_workers.incrementAndGet()).start(this::run);
+    }
+
+    /**
+     * @return A Passport that makes all of the calls to passport on a worker thread of its own.
+     */
+    static <T extends Passport> T wrap(T passport, Class<T> interfaceClass)
+    {
+        for (Method method : PassportFactory.getDeclaredMethods(interfaceClass))
+        {
+            if (CompletableFuture.class.equals(method.getReturnType()))
+                throw new PassportException(interfaceClass.getSimpleName() + "." + method.getName() +
+                        " returns a CompletableFuture, which can not be used with " + ThreadingModel.SINGLE_THREAD);
+        }
+
+        var worker = new NativeWorker(passport, interfaceClass);
+        T proxy = interfaceClass.cast(Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[] { interfaceClass }, worker));
+        s_cleaner.register(proxy, worker::stop);
+        return proxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+        if (method.getDeclaringClass() == Object.class)
+        {
+            return switch (method.getName()) {
+                case "equals" -> proxy == args[0];
+                case "hashCode" -> System.identityHashCode(proxy);
+                default -> m_thread.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            };
+        }
+
+        MethodHandle handle = handleFor(method);
+        if (args == null)
+            args = NO_ARGS;
+
+        // A callback from a native call re-entering the Passport
+        if (Thread.currentThread() == m_thread)
+            return (Object) handle.invokeExact(args);
+
+        Request request = new Request(handle, args, Thread.currentThread());
+        Request prev = m_tail.getAndSet(request);
+        prev.m_next = request;
+        if (m_parked)
+            LockSupport.unpark(m_thread);
+
+        await(request);
+        if (request.m_failure != null)
+            throw request.m_failure;
+        return request.m_result;
+    }
+
+    private MethodHandle handleFor(Method method)
+    {
+        MethodHandle handle = m_seen.get(method);
+        if (handle != null)
+            return handle;
+
+        synchronized (this) {
+            // Methods that are not declared by the interface itself (ex. hasMethod) are added the first time they are used
+            handle = m_handles.computeIfAbsent(method, this::handleOf);
+            var copy = new IdentityHashMap<>(m_seen);
+            copy.put(method, handle);
+            m_seen = copy;
+        }
+        return handle;
+    }
+
+    private MethodHandle handleOf(Method method)
+    {
+        try {
+            return MethodHandles.lookup().unreflect(method).bindTo(m_target).
+                    asSpreader(Object[].class, method.getParameterCount()).
+                    asType(MethodType.methodType(Object.class, Object[].class));
+        }
+        catch (IllegalAccessException ex) {
+            throw new PassportException("Can not call " + method.getDeclaringClass().getSimpleName() + "." + method.getName() + ": " + ex.getMessage());
+        }
+    }
+
+    private static void await(Request request)
+    {
+        for (int n = 0; n < CALLER_SPINS && !request.m_done; ++n)
+            Thread.onSpinWait();
+
+        boolean interrupted = false;
+        while (!request.m_done)
+        {
+            LockSupport.park(request);
+            // The call can't be abandoned, the worker may be using the arguments
+            interrupted |= Thread.interrupted();
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private void run()
+    {
+        int spins = 0;
+        while (true)
+        {
+            Request next = m_head.m_next;
+            if (next != null)
+            {
+                m_head = next;
+                try {
+                    next.m_result = (Object) next.m_handle.invokeExact(next.m_args);
+                }
+                catch (Throwable th) {
+                    next.m_failure = th;
+                }
+                next.m_done = true;
+                LockSupport.unpark(next.m_caller);
+                spins = 0;
+            }
+            else if (m_stopped)
+                return;
+            else if (spins < WORKER_SPINS)
+            {
+                ++spins;
+                Thread.onSpinWait();
+            }
+            else
+            {
+                // A caller checks m_parked after it queues, so either it sees this or the queue is seen as not empty
+                m_parked = true;
+                if (m_head.m_next == null && !m_stopped)
+                    LockSupport.park(this);
+                m_parked = false;
+                spins = 0;
+            }
+        }
+    }
+
+    private void stop()
+    {
+        m_stopped = true;
+        LockSupport.unpark(m_thread);
+    }
+}
@@ -0,0 +1,253 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Keeps the compiled _impl classes made by {@link PassportWriter} on disk so that a later JVM can
+ * load them without running javac again. Only class files are stored, the source is never written.
+ *
+ * Every entry is stored in a folder named after a hash of everything that changes the generated code:
+ * the interface's method signatures and annotations, the layout of every Record it uses, the JPassport
+ * version (and a hash of its classes) and the Java release. If any of those change the hash changes and a new class is compiled.
+ *
+ * The cache lives in [build folder]/cache (see {@link Utils#getBuildFolder()}). Set the system property
+ * <code>jpassport.build.cache=false</code> to turn it off.
+ */
+final class PassportCache
+{
+    private static final String s_generatorHash = generatorHash();
+
+    private final String m_key;
+    private final Path m_entry;
+    private final String m_packageName;
+    private final String m_className;
+
+    PassportCache(Class<? extends Passport> interfaceClass)
+    {
+        m_key = cacheKey(interfaceClass);
+        m_entry = Utils.getBuildFolder().resolve("cache").resolve(m_key);
+        m_packageName = "jpassport.cached_" + m_key;
+        m_className = interfaceClass.getSimpleName() + "_impl";
+    }
+
+    /**
+     * @return False if turned off, or if the JPassport classes could not be hashed. Without that hash an old
+     * entry could be used after JPassport changes.
+     */
+    static boolean isEnabled()
+    {
+        return !"false".equalsIgnoreCase(System.getProperty("jpassport.build.cache")) && s_generatorHash != null;
+    }
+
+    String packageName()
+    {
+        return m_packageName;
+    }
+
+    String className()
+    {
+        return m_className;
+    }
+
+    /**
+     * @return The cached implementation, or null if it has not been compiled yet.
+     */
+    <T extends Passport> Class<? extends T> load(Class<T> interfaceClass) throws IOException
+    {
+        if (!Files.exists(m_entry.resolve(m_packageName + "." + m_className + ".class")))
+            return null;
+
+        Map<String, byte[]> classes = new HashMap<>();
+        try (var files = Files.list(m_entry)) {
+            for (Path classFile : files.filter(f -> f.getFileName().toString().endsWith(".class")).toList())
+            {
+                String name = classFile.getFileName().toString();
+                classes.put(name.substring(0, name.length() - ".class".length()), Files.readAllBytes(classFile));
+            }
+        }
+
+        try {
+            return PassportCompiler.define(interfaceClass, classes, m_packageName + "." + m_className);
+        }
+        catch (ClassNotFoundException | LinkageError ex) {
+            // A damaged entry is treated like a miss, the class is compiled again but the entry is left alone
+            return null;
+        }
+    }
+
+    /**
+     * Compiles the class and writes the class files into a private folder, then moves the folder into place
+     * so that other JVMs sharing the cache never see a half written entry. If the entry is already there
+     * it is kept and the private folder is thrown away.
+     *
+     * @param interfaceClass The Passport interface.
+     * @param writer A writer made with {@link #packageName()} and {@link #className()}.
+     * @return The compiled implementation.
+     */
+    <T extends Passport> Class<? extends T> store(Class<T> interfaceClass, PassportWriter<T> writer) throws Throwable
+    {
+        Map<String, byte[]> classes = writer.compile();
+
+        try {
+            Path staging = m_entry.resolveSibling(m_key + ".tmp" + ProcessHandle.current().pid() + "_" + System.nanoTime());
+            Files.createDirectories(staging);
+            for (var entry : classes.entrySet())
+                Files.write(staging.resolve(entry.getKey() + ".class"), entry.getValue());
+
+            // A published entry is never replaced or deleted, another JVM may be loading it right now.
+            // If someone else filled in the entry first, theirs is just as good as ours.
+            boolean published = false;
+            if (!Files.exists(m_entry))
+            {
+                try {
+                    Files.move(staging, m_entry, StandardCopyOption.ATOMIC_MOVE);
+                    published = true;
+                }
+                catch (IOException ex) {
+                    // Lost the race to publish
+                }
+            }
+            if (!published)
+                Utils.deleteFolder(staging);
+        }
+        catch (IOException ex) {
+            // Not being able to write the cache only costs the next start-up, the class is still usable
+        }
+
+        return PassportCompiler.define(interfaceClass, classes, m_packageName + "." + m_className);
+    }
+
+    /**
+     * Builds the text description of everything that goes into the generated class and hashes it.
+     *
+     * @param interfaceClass The Passport interface.
+     * @return A hex string that is safe to use as both a folder name and a package name.
+     */
+    static String cacheKey(Class<? extends Passport> interfaceClass)
+    {
+        StringBuilder sig = new StringBuilder();
+        sig.append(Version.getVersion()).append('\n');
+        sig.append(Runtime.version().feature()).append('\n');
+        sig.append(s_generatorHash).append('\n');
+        sig.append(interfaceClass.getName()).append(annotations(interfaceClass.getAnnotations())).append('\n');
+
+        Set<Class<?>> records = new TreeSet<>(Comparator.comparing(Class::getName));
+        List<Method> methods = new ArrayList<>(PassportFactory.getDeclaredMethods(interfaceClass));
+        methods.sort(Comparator.comparing(Method::toGenericString));
+
+        for (Method m : methods)
+        {
+            sig.append(m.toGenericString()).append(annotations(m.getAnnotations()));
+            for (Annotation[] paramAnnotations : m.getParameterAnnotations())
+                sig.append(annotations(paramAnnotations));
+            sig.append('\n');
+
+            addRecords(m.getReturnType(), records);
+            for (Class<?> p : m.getParameterTypes())
+                addRecords(p, records);
+        }
+
+        for (Class<?> rec : records)
+        {
+            sig.append(rec.getName()).append('{');
+            for (Field f : rec.getDeclaredFields())
+                sig.append(f.getGenericType().getTypeName()).append(' ').append(f.getName()).append(annotations(f.getAnnotations())).append(';');
+            sig.append("}\n");
+        }
+
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(sig.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new PassportException("SHA-256 is not available: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * The version number does not change on every build, so any change to the code generator needs to
+     * invalidate the cache as well. The generated code depends on more than PassportWriter (Utils,
+     * PassportCompiler, the type model...), so this covers every JPassport class. In a jar the CRC of each
+     * entry is used, so nothing has to be read. Classes in a folder (ex. a development build) are read and hashed.
+     *
+     * @return The hash, or null if it could not be worked out.
+     */
+    private static String generatorHash()
+    {
+        try {
+            var source = PassportWriter.class.getProtectionDomain().getCodeSource();
+            if (source == null)
+                return null;
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Path location = Path.of(source.getLocation().toURI());
+            if (Files.isDirectory(location))
+            {
+                try (var files = Files.walk(location.resolve("jpassport"))) {
+                    for (Path classFile : files.filter(f -> f.toString().endsWith(".class")).sorted().toList())
+                    {
+                        digest.update(location.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+                        digest.update(Files.readAllBytes(classFile));
+                    }
+                }
+            }
+            else
+            {
+                try (var jar = new JarFile(location.toFile())) {
+                    for (JarEntry entry : jar.stream().filter(e -> e.getName().startsWith("jpassport/") && e.getName().endsWith(".class"))
+                            .sorted(Comparator.comparing(JarEntry::getName)).toList())
+                    {
+                        if (entry.getCrc() == -1)
+                            return null;
+                        digest.update((entry.getName() + ':' + entry.getCrc()).getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (IOException | URISyntaxException | NoSuchAlgorithmException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    private static void addRecords(Class<?> type, Set<Class<?>> records)
+    {
+        while (type.isArray())
+            type = type.getComponentType();
+
+        if (!type.isRecord() || !records.add(type))
+            return;
+
+        for (Field f : type.getDeclaredFields())
+            addRecords(f.getType(), records);
+    }
+
+    private static String annotations(Annotation[] annotations)
+    {
+        return Arrays.stream(annotations).map(Annotation::toString).sorted().toList().toString();
+    }
+}
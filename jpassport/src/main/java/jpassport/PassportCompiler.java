@@ -0,0 +1,182 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import javax.tools.*;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Compiles the source made by {@link PassportWriter} without touching the file system. The source is handed
+ * to javac from memory, the class files are captured in memory, and the classes are defined in a class loader
+ * that only belongs to the one linked interface. Once the implementation is no longer referenced the class
+ * loader, and the generated classes with it, can be unloaded.
+ */
+final class PassportCompiler
+{
+    private PassportCompiler()
+    {
+    }
+
+    /**
+     * @param fullClassName The fully qualified name of the class in the source.
+     * @param source The Java source for the class.
+     * @param interfaceClass The Passport interface the class implements.
+     * @return The binary class name to class file contents of every class javac produced.
+     */
+    static Map<String, byte[]> compile(String fullClassName, String source, Class<?> interfaceClass)
+    {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null)
+            throw new PassportException("No Java compiler available, JPassport must be run on a JDK");
+
+        Map<String, byte[]> classes = new HashMap<>();
+        StringWriter errors = new StringWriter();
+
+        try (var fmanager = new MemoryFileManager(compiler.getStandardFileManager(null, null, null), classes)) {
+            var dothis = compiler.getTask(errors, fmanager, null, compileOptions(interfaceClass),
+                    null, List.of(new SourceFile(fullClassName, source)));
+
+            if (!dothis.call())
+                throw new PassportException("Failed to compile " + fullClassName + "\n" + errors);
+        }
+        catch (java.io.IOException ex) {
+            throw new PassportException("Failed to compile " + fullClassName + ": " + ex.getMessage());
+        }
+
+        return classes;
+    }
+
+    /**
+     * Loads the compiled classes in a new class loader.
+     *
+     * @param interfaceClass The Passport interface the class implements. Its class loader is the parent.
+     * @param classes The output of {@link #compile(String, String, Class)}.
+     * @param fullClassName The class to load.
+     * @return The loaded class.
+     */
+    static <T> Class<? extends T> define(Class<T> interfaceClass, Map<String, byte[]> classes, String fullClassName) throws ClassNotFoundException
+    {
+        var loader = new GeneratedClassLoader(interfaceClass.getClassLoader(), classes);
+        return (Class<? extends T>) Class.forName(fullClassName, true, loader);
+    }
+
+    /**
+     * The generated class is compiled in the unnamed module. The unnamed module reads every module that is
+     * resolved, so we only need to make sure JPassport and the interface's module are part of the graph.
+     */
+    private static List<String> compileOptions(Class<?> interfaceClass)
+    {
+        List<String> options = new ArrayList<>(List.of("--enable-preview", "--release", "22"));
+
+        String modulePath = System.getProperty("jdk.module.path");
+        if (modulePath != null)
+        {
+            options.add("--module-path");
+            options.add(modulePath);
+
+            Module m = interfaceClass.getModule();
+            options.add("--add-modules");
+            options.add(m.isNamed() && !m.getName().equals("jpassport") ? "jpassport," + m.getName() : "jpassport");
+        }
+
+        String classPath = System.getProperty("java.class.path");
+        if (classPath != null && !classPath.isEmpty())
+        {
+            options.add("-classpath");
+            options.add(classPath);
+        }
+        return options;
+    }
+
+    private static class SourceFile extends SimpleJavaFileObject
+    {
+        private final String m_source;
+
+        SourceFile(String fullClassName, String source)
+        {
+            super(URI.create("string:///" + fullClassName.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            m_source = source;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors)
+        {
+            return m_source;
+        }
+    }
+
+    private static class ClassFile extends SimpleJavaFileObject
+    {
+        private final String m_className;
+        private final Map<String, byte[]> m_classes;
+
+        ClassFile(String className, Map<String, byte[]> classes)
+        {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            m_className = className;
+            m_classes = classes;
+        }
+
+        @Override
+        public OutputStream openOutputStream()
+        {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close()
+                {
+                    m_classes.put(m_className, toByteArray());
+                }
+            };
+        }
+    }
+
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager>
+    {
+        private final Map<String, byte[]> m_classes;
+
+        MemoryFileManager(StandardJavaFileManager fileManager, Map<String, byte[]> classes)
+        {
+            super(fileManager);
+            m_classes = classes;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling)
+        {
+            return new ClassFile(className, m_classes);
+        }
+    }
+
+    private static class GeneratedClassLoader extends ClassLoader
+    {
+        private final Map<String, byte[]> m_classes;
+
+        GeneratedClassLoader(ClassLoader parent, Map<String, byte[]> classes)
+        {
+            super("jpassport", parent);
+            m_classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException
+        {
+            byte[] bytes = m_classes.get(name);
+            if (bytes == null)
+                throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -18,21 +18,22 @@ import jpassport.annotations.Critical;
 import java.io.File;
 import java.lang.foreign.*;
 import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 public class PassportFactory
 {
     /**
      * Call this method to generate the library linkage. This version of the method will write the java file and compile
      * it. As a result, the start-up is a bit slower than {@link #proxy(String, Class) proxy()}, but the implementation
-     * is a bit quicker.
+     * is a bit quicker. If the class was already written by the jpassport-processor annotation processor at build time
+     * then that class is used and nothing is compiled.
      *
      * <p>This version also supports Record -> struct conversions.
      *
@@ -77,14 +78,116 @@ public class PassportFactory
                 handler);
     }
 
+    /**
+     * Call this method to generate the library linkage. Like {@link #proxy(String, Class) proxy()} nothing is
+     * compiled, but each method is built into a single MethodHandle: the argument conversions, the native call,
+     * the read back of arrays and the return conversion are all joined with MethodHandle combinators. The JIT can
+     * inline that handle from end to end, so calls are much closer to the speed of {@link #link(String, Class) link()}.
+     * Each method's handle also opens and closes its Arena, so the Proxy makes one invokeExact() per call.
+     *
+     * <p>This method does not support Record -> struct conversions.</p>
+     *
+     * @param libraryName The library name (the file name of the shared library without extension on all platforms,
+     *                    without lib prefix on Linux and Mac).
+     * @param interfaceClass The class to wrap.
+     * @param <T> Any interface that extends Passport
+     * @return A class linked to call into a DLL or SO using the Foreign Linker.
+     */
+    public static <T extends Passport> T compose(String libraryName, Class<T> interfaceClass) throws Throwable
+    {
+        if (!Passport.class.isAssignableFrom(interfaceClass)) {
+            throw new IllegalArgumentException("Interface (" + interfaceClass.getSimpleName() + ") of library=" + libraryName + " does not extend " + Passport.class.getSimpleName());
+        }
+
+        var methods = loadMethodHandles(libraryName, interfaceClass);
+        var handler = new PassportInvocationHandler(methods, interfaceClass, true);
+        return (T) Proxy.newProxyInstance(interfaceClass.getClassLoader(),
+                new Class[] { interfaceClass },
+                handler);
+    }
+
+    /**
+     * {@link #link(String, Class) link()} with a choice of the threads that make the native calls. Use
+     * {@link ThreadingModel#SINGLE_THREAD} for a library that is not thread-safe instead of locking around every call.
+     */
+    public static <T extends Passport> T link(String libraryName, Class<T> interfaceClass, ThreadingModel threading) throws Throwable
+    {
+        return withThreading(link(libraryName, interfaceClass), interfaceClass, threading);
+    }
+
+    /**
+     * {@link #proxy(String, Class) proxy()} with a choice of the threads that make the native calls.
+     */
+    public static <T extends Passport> T proxy(String libraryName, Class<T> interfaceClass, ThreadingModel threading) throws Throwable
+    {
+        return withThreading(proxy(libraryName, interfaceClass), interfaceClass, threading);
+    }
+
+    /**
+     * {@link #compose(String, Class) compose()} with a choice of the threads that make the native calls.
+     */
+    public static <T extends Passport> T compose(String libraryName, Class<T> interfaceClass, ThreadingModel threading) throws Throwable
+    {
+        return withThreading(compose(libraryName, interfaceClass), interfaceClass, threading);
+    }
+
+    private static <T extends Passport> T withThreading(T passport, Class<T> interfaceClass, ThreadingModel threading)
+    {
+        return switch (threading) {
+            case ANY -> passport;
+            case SINGLE_THREAD -> NativeWorker.wrap(passport, interfaceClass);
+        };
+    }
+
     private static <T extends Passport> T buildClass(String libName, Class<T> interfaceClass) throws Throwable
     {
+        // A class written at build time only needs the downcall handles, its init() reads one per method.
+        // Nothing is hashed, written or compiled for it.
+        Class<? extends T> pregenerated = findPregenerated(interfaceClass);
         HashMap<String, MethodHandle> handles = loadMethodHandles(libName, interfaceClass);
-        PassportWriter<T> classWriter = new PassportWriter<>(interfaceClass);
+        if (pregenerated != null)
+            return pregenerated.getDeclaredConstructor(HashMap.class).newInstance(handles);
+
+        if (PassportCache.isEnabled())
+        {
+            // On a warm start the class is already compiled, so there's no need to write or compile anything
+            PassportCache cache = new PassportCache(interfaceClass);
+            Class<? extends T> foreignImpl = cache.load(interfaceClass);
+            if (foreignImpl == null)
+                foreignImpl = cache.store(interfaceClass, new PassportWriter<>(interfaceClass, cache.packageName(), cache.className()));
 
+            return foreignImpl.getDeclaredConstructor(HashMap.class).newInstance(handles);
+        }
+
+        PassportWriter<T> classWriter = new PassportWriter<>(interfaceClass);
         return classWriter.build(handles);
     }
 
+    /**
+     * Looks for the class that the jpassport-processor annotation processor writes at build time.
+     *
+     * @param interfaceClass The interface to find the implementation of.
+     * @return The implementation, or null if there isn't one made by this version of JPassport.
+     */
+    private static <T extends Passport> Class<? extends T> findPregenerated(Class<T> interfaceClass)
+    {
+        try {
+            var impl = Class.forName(PassportWriter.getPregeneratedClassName(interfaceClass.getName()), true, interfaceClass.getClassLoader());
+            if (!interfaceClass.isAssignableFrom(impl))
+                return null;
+
+            // A class written by another version of JPassport may call Utils methods that no longer match
+            var generatedBy = (int[]) impl.getField("GENERATED_BY").get(null);
+            if (!Arrays.equals(generatedBy, Version.getVersionParts()))
+                return null;
+
+            return impl.asSubclass(interfaceClass);
+        }
+        catch (ReflectiveOperationException | LinkageError ex) {
+            return null;
+        }
+    }
+
     /**
      * This method looks up the methods in the requested native library that match non-static
      * methods in the given interface class.
@@ -110,7 +213,7 @@ public class PassportFactory
         SymbolLookup lookup = SymbolLookup.loaderLookup();
 
         for (Method method : interfaceMethods) {
-            Class<?> retType = method.getReturnType();
+            Class<?> retType = resultType(method);
             Class<?>[] parameters = method.getParameterTypes();
 
             for (int n = 0; n < parameters.length; ++n) {
@@ -135,10 +238,11 @@ public class PassportFactory
 
                 MethodHandle methodHandle;
 
-                if (method.getAnnotation(Critical.class) == null)
+                var critical = method.getAnnotation(Critical.class);
+                if (critical == null)
                     methodHandle = cLinker.downcallHandle(addr, fd);
                 else
-                    methodHandle = cLinker.downcallHandle(addr, fd, Linker.Option.critical(false));
+                    methodHandle = cLinker.downcallHandle(addr, fd, Linker.Option.critical(critical.allowHeapAccess()));
 
                 methodMap.put(method.getName(), methodHandle);
             }
@@ -175,7 +279,8 @@ public class PassportFactory
     /**
      * Given an object and method name this will return a memory address that
      * corresponds to a method pointer that can be passed to native code.
-     * The method cannot be static.
+     * The method cannot be static. The pointer is freed when it is garbage collected,
+     * use {@link Callback} or {@link CallbackRegistry} to free it at a known time.
      *
      * @param ob The object that the method belongs to.
      * @param methodName The name of the method.
@@ -185,46 +290,62 @@ public class PassportFactory
      */
     public static FunctionPtr createCallback(Object ob, String methodName)
     {
-        var methods = getDeclaredMethods(ob.getClass());
-
-        methods = methods.stream().filter(m -> m.getName().equals(methodName)).collect(Collectors.toList());
-        if (methods.isEmpty())
-            throw new IllegalArgumentException("Could not find method " + methodName + " in class " + ob.getClass().getName());
-        else if (methods.size() > 1)
-            throw new IllegalArgumentException("Multiple overloads of method " + methodName + " in class " + ob.getClass().getName());
-
-        Method callbackMethod = methods.get(0);
-
-        Class<?> retType = callbackMethod.getReturnType();
-        Class<?>[] parameters = callbackMethod.getParameterTypes();
-
-        if (!retType.isPrimitive() && retType != MemorySegment.class)
-            throw new IllegalArgumentException("Callback method must return void, primitives, or MemoryAddress, not " + retType.getName());
+        return createCallback(ob, methodName, Arena.ofAuto());
+    }
 
+    /**
+     * The same as {@link #createCallback(Object, String)}, but the method pointer is only valid
+     * while the arena is open.
+     */
+    public static FunctionPtr createCallback(Object ob, String methodName, Arena arena)
+    {
+        return new FunctionPtr(CallbackRegistry.upcallStub(ob, methodName, arena));
+    }
 
-        for (Class<?> parameter : parameters) {
-            if (!parameter.isPrimitive() && parameter != MemorySegment.class)
-                throw new IllegalArgumentException("Callback parameters must be primitives or MemoryAddress, not " + parameter.getName());
-        }
+    /**
+     * Makes a function pointer that runs a Java function, ex. a lambda, when native code calls it.
+     * The interface method is written like a Passport method: a String is read from a char*, a Record is read
+     * from a pointer to its struct, a StructView or NativeArray wraps the pointer without a copy, and a primitive
+     * array is copied from a pointer using the length from its {@link jpassport.annotations.Array} annotation,
+     * with {@link jpassport.annotations.RefArg} the array is copied back when the function returns.
+     * <pre>
+     * public interface Compare { int compare(TestStructView a, TestStructView b); }
+     *
+     * FunctionPtr cmp = PassportFactory.createCallback(Compare.class, (a, b) -&gt; Integer.compare(a.s_int(), b.s_int()));
+     * </pre>
+     * The conversions are worked out once per interface. An exception thrown by the function while native code is
+     * calling it ends the program.
+     *
+     * @param functional A public interface with one abstract method.
+     * @param function The function to call.
+     * @return A pointer to the function that can be passed to native code.
+     */
+    public static <F> FunctionPtr createCallback(Class<F> functional, F function)
+    {
+        return createCallback(functional, function, Arena.ofAuto());
+    }
 
-        MemoryLayout[] memoryLayout = Arrays.stream(parameters).map(PassportFactory::classToMemory).toArray(MemoryLayout[]::new);
-        FunctionDescriptor fd;
-        if (void.class.equals(retType))
-            fd = FunctionDescriptor.ofVoid(memoryLayout);
-        else
-            fd = FunctionDescriptor.of(classToMemory(retType), memoryLayout);
+    /**
+     * The same as {@link #createCallback(Class, Object)}, but the function pointer is only valid
+     * while the arena is open.
+     */
+    public static <F> FunctionPtr createCallback(Class<F> functional, F function, Arena arena)
+    {
+        return new FunctionPtr(CallbackRegistry.upcallStub(functional, function, arena));
+    }
 
-        try {
-            var handle = MethodHandles.publicLookup().findVirtual(ob.getClass(), methodName, MethodType.methodType(retType, parameters));
-            var handleToCall = handle.bindTo(ob);
+    /**
+     * @return The type the native function returns: the return type of the method, or for a method returning
+     * CompletableFuture&lt;T&gt; the type T, as a primitive if T is a boxed primitive.
+     */
+    static Class<?> resultType(Method method)
+    {
+        if (!CompletableFuture.class.equals(method.getReturnType()))
+            return method.getReturnType();
 
-            var scope = Arena.ofAuto();
-            return new FunctionPtr(Linker.nativeLinker().upcallStub(handleToCall, fd, scope));
-        }
-        catch (NoSuchMethodException | IllegalAccessException ex)
-        {
-            throw new Error("Failed to create callback method", ex);
-        }
+        if (method.getGenericReturnType() instanceof ParameterizedType pt && pt.getActualTypeArguments()[0] instanceof Class<?> c)
+            return MethodType.methodType(c).unwrap().returnType();
+        throw new PassportException(method.getName() + " must give the type the CompletableFuture holds");
     }
 
     static List<Method> getDeclaredMethods(Class<?> interfaceClass) {
@@ -241,7 +362,7 @@ public class PassportFactory
     }
 
 
-    private static MemoryLayout classToMemory(Class<?> type)
+    static MemoryLayout classToMemory(Class<?> type)
     {
         if (double.class.equals(type))
             return ValueLayout.JAVA_DOUBLE;
@@ -1,9 +1,10 @@
 package jpassport;
 
 import jpassport.annotations.*;
+import jpassport.model.JMember;
+import jpassport.model.JMethod;
+import jpassport.model.JType;
 
-import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.foreign.Arena;
@@ -12,11 +13,11 @@ import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.nio.Buffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 //import static java.lang.StringTemplate.STR;
 //import static java.lang.foreign.ValueLayout.ADDRESS;
@@ -27,7 +28,7 @@ import static jpassport.Utils.Platform.Windows;
  * Given an interface class that extends Passport this class will generate a class that implements the interface
  * and allows calls through to a native library.
  *
- * This class can dynamically create, compile, and hand back the class, or just create the source code so you
+ * This class can dynamically create, compile (in memory), and hand back the class, or just create the source code so you
  * can compile later. If you use the PassportFactory then you do not need to use this class at all.
  *
  * In order to write out a class you will:
@@ -47,32 +48,33 @@ public class PassportWriter<T extends Passport>
     private final StringBuilder m_initSource = new StringBuilder();
     private final String m_className;
     private final String m_fullClassName;
+    private final Class<T> m_interfaceClass; // null when the writer is driven by the annotation processor
+    private boolean m_sourceComplete = false;
 
     private static int Class_ID = 1; //Used to make unique package names
 
-    private static final Map<Class<?>, String> typeToName = new HashMap<>()
+    private static final Map<String, String> typeToName = new HashMap<>()
     {
         {
-            put(byte.class, "Byte");
-            put(short.class, "Short");
-            put(int.class, "Int");
-            put(long.class, "Long");
-            put(float.class, "Float");
-            put(double.class, "Double");
+            put("byte", "Byte");
+            put("short", "Short");
+            put("int", "Int");
+            put("long", "Long");
+            put("float", "Float");
+            put("double", "Double");
         }
     };
 
-    private static final Map<Class<?>, String> typeToCName = new HashMap<>()
-    {
-        {
-            put(byte.class, "JAVA_CHAR");
-            put(short.class, "JAVA_SHORT");
-            put(int.class, "JAVA_INT");
-            put(long.class, "JAVA_LONG");
-            put(float.class, "JAVA_FLOAT");
-            put(double.class, "JAVA_DOUBLE");
-        }
-    };
+    private static final Map<String, Class<?>> s_unboxed = Map.of(
+            "java.lang.Void", void.class,
+            "java.lang.Boolean", boolean.class,
+            "java.lang.Byte", byte.class,
+            "java.lang.Short", short.class,
+            "java.lang.Character", char.class,
+            "java.lang.Integer", int.class,
+            "java.lang.Long", long.class,
+            "java.lang.Float", float.class,
+            "java.lang.Double", double.class);
 
     public PassportWriter(Class<T> interfaceClass)
     {
@@ -87,8 +89,26 @@ public class PassportWriter<T extends Passport>
      */
     public PassportWriter(Class<T> interfaceClass, String packageName, String className)
     {
-        List<Method> interfaceMethods = PassportFactory.getDeclaredMethods(interfaceClass);
-        Set<Class<?>> extraImports = findAllExtraImports(interfaceMethods);
+        this(JType.of(interfaceClass), interfaceClass, packageName, className);
+    }
+
+    /**
+     * Create a class based on the interface given. This is used when there is no loaded interface
+     * class, for example in the annotation processor. The class can only be written out, not built.
+     * @param interfaceType The Passport interface
+     * @param packageName The package to make the class for
+     * @param className The class name to build
+     */
+    public PassportWriter(JType interfaceType, String packageName, String className)
+    {
+        this(interfaceType, null, packageName, className);
+    }
+
+    private PassportWriter(JType interfaceType, Class<T> interfaceClass, String packageName, String className)
+    {
+        List<JMethod> interfaceMethods = interfaceType.methods();
+        Set<JType> extraImports = findAllExtraImports(interfaceMethods);
+        m_interfaceClass = interfaceClass;
         m_className = className;
         m_fullClassName = packageName + "." + m_className;
         String structLayouts = buildStructLayouts(extraImports);
@@ -130,8 +150,8 @@ public class PassportWriter<T extends Passport>
                     """,
                 packageName,
                 buildExtraImports(extraImports),
-                interfaceClass.getName(),
-                m_className, interfaceClass.getSimpleName(),
+                interfaceType.name(),
+                m_className, interfaceType.simpleName(),
                 structLayouts,
                 verParts[0], verParts[1], verParts[2],
                 Runtime.version().version().get(0),
@@ -145,7 +165,7 @@ public class PassportWriter<T extends Passport>
                                     private void init(){
                                 """);
 
-        if (interfaceClass.getModule().getName().equals("jpassport"))
+        if (interfaceType.moduleName() == null || interfaceType.moduleName().equals("jpassport"))
         {
             m_moduleSource.append("""
                     module foreign.caller {
@@ -159,11 +179,11 @@ public class PassportWriter<T extends Passport>
                         requires jpassport;
                         requires %s;
                     }
-                    """, interfaceClass.getModule().getName()));
+                    """, interfaceType.moduleName()));
         }
 
-        for (Method method : interfaceMethods) {
-            addMethod(method, method.getReturnType(), interfaceClass);
+        for (JMethod method : interfaceMethods) {
+            addMethod(method, method.returnType(), interfaceType);
         }
     }
 
@@ -172,128 +192,72 @@ public class PassportWriter<T extends Passport>
      * @param imports All of the record types.
      * @return The import statements for the records.
      */
-    public String buildExtraImports(Set<Class<?>> imports)
+    public String buildExtraImports(Set<JType> imports)
     {
         StringBuilder strImports = new StringBuilder();
-        for (Class<?> c : imports)
-            strImports.append("import ").append(c.getName()).append(";\n");
+        for (JType c : imports)
+            strImports.append("import ").append(c.name()).append(";\n");
         return strImports.toString();
     }
 
     /**
      * This code will build all of the code required to convert a Record object into a MemoryLayout.
-     * A MemoryLayout is the Java wrapper around a C struct.
+     * A MemoryLayout is the Java wrapper around a C struct. The layout itself is worked out at runtime by
+     * {@link Utils#structLayout(Class)}, so every generated class shares one cached layout per Record.
      *
      * @param records All of the record types that we need to handle.
      * @return The code to create all of the required MemoryLayouts
      */
-    public String buildStructLayouts(Set<Class<?>> records)
+    public static String buildStructLayouts(Set<JType> records)
     {
-        //We need to build all of the MemoryLayouts separately and bundle them together later.
-        //If any one record requires other records then we need to make sure the code is ordered
-        //properly so there are no forward references.
-        HashMap<Class<?>, List<Class<?>>> requiresMap = new HashMap<>();
-        HashMap<Class<?>, StringBuilder> layoutMap = new HashMap<>();
+        StringBuilder allStructs = new StringBuilder();
 
-        for (Class<?> c : records)
+        for (JType c : records)
         {
             if (!c.isRecord())
                 continue;
 
-            if (!requiresMap.containsKey(c))
-                requiresMap.put(c, new ArrayList<>());
-
-            StringBuilder sbLayout = new StringBuilder();
-            StringBuilder sbOffsets = new StringBuilder();
-            layoutMap.put(c, sbLayout);
-
-            sbLayout.append(String.format("private static final GroupLayout %sLayout = Utils.makeStruct(\n", c.getSimpleName()));
-
-            //Build an array cached with the required byte offsets. This reduces the overhead on calls using structs ~60%-75%
-            sbOffsets.append(String.format("\tprivate static final long[] %sLayoutOffsets = new long[] {\n", c.getSimpleName()));
-
-            for (Field f : c.getDeclaredFields())
-            {
-                int paddingBits = getPaddingBytes(f);
-
-                sbOffsets.append(String.format("\t\t%1$sLayout.byteOffset(groupElement(\"%2$s\")),\n", c.getSimpleName(), f.getName()));
-
-                // negative indicates pre-padding
-                if (paddingBits < 0)
-                    sbLayout.append(String.format("\t\tMemoryLayout.paddingLayout(%d),\n", -paddingBits));
-
-                Class<?> type = f.getType();
-                if (type.isPrimitive())
-                {
-                    sbLayout.append(String.format("\t\t%s.withName(\"%s\"),\n",typeToCName.get(type), f.getName()));
-                }
-                else if (type.isRecord())
-                {
-                    requiresMap.get(c).add(type);
-                    boolean isPtr = f.getAnnotationsByType(Ptr.class).length > 0;
-                    if (isPtr)
-                        sbLayout.append(String.format("\t\tADDRESS.withName(\"%s\"),\n", f.getName()));
-                    else
-                        sbLayout.append(String.format("\t\t%sLayout.withName(\"%s\"),\n",type.getSimpleName(), f.getName()));
-                }
-                else if (String.class.equals(type) || MemorySegment.class.equals(type) || isGenericPtr(type))
-                    sbLayout.append(String.format("\t\tADDRESS.withName(\"%s\"),\n", f.getName()));
-                else if (type.isArray())
-                {
-                    Annotation[] arrays = f.getAnnotationsByType(Array.class);
-                    boolean isPointer = f.getAnnotationsByType(Ptr.class).length > 0;
-
-                    if (arrays.length > 0)
-                    {
-                        int length = ((Array) arrays[0]).length();
-                        Class<?> arrType = type.getComponentType();
-
-                        sbLayout.append(String.format("\t\tMemoryLayout.sequenceLayout(%d, %s).withName(\"%s\"),\n", length, typeToCName.get(arrType), f.getName()));
-                    }
-                    else if (isPointer)
-                        sbLayout.append(String.format("\t\tADDRESS.withName(\"%s\"),\n", f.getName()));
-                    else
-                        throw new PassportException("Record arrays must be defined with either an Array or Ptr annotation");
-                }
-
-                if (paddingBits > 0)
-                    sbLayout.append(String.format("\t\tMemoryLayout.paddingLayout(%d),\n", paddingBits));
-            }
-            sbLayout.setLength(sbLayout.length() - 2);
-            sbLayout.append(");\n\n");
-            sbOffsets.append("\t};\n\n");
-
-            sbLayout.append(sbOffsets);
-        }
+            allStructs.append(String.format("private static final GroupLayout %sLayout = Utils.structLayout(%s.class);\n", c.simpleName(), c.name()));
 
-        StringBuilder allStructs = new StringBuilder();
-        // This code attempts to only write out Records that have all Records they depend on written out first.
-        //Without this code we could get compile failures because of forward references.
-        while (!requiresMap.isEmpty())
-        {
-            List<Class<?>> allRecords = new ArrayList<>(requiresMap.keySet());
-            for (Class<?> c : allRecords)
+            for (JMember f : c.recordComponents())
             {
-                List<Class<?>> required = requiresMap.get(c);
-                if (required.stream().anyMatch(layoutMap::containsKey))
-                    continue;
+                JType type = f.type();
+                if (type.isArray() && !f.hasAnnotation(Array.class) && !f.hasAnnotation(Ptr.class))
+                    throw new PassportException("Record arrays must be defined with either an Array or Ptr annotation");
 
-                allStructs.append(layoutMap.remove(c));
-                requiresMap.remove(c);
+                //Cache the byte offset of every member as a constant. This reduces the overhead on calls using structs ~60%-75%
+                allStructs.append(String.format("\tprivate static final long %1$s = %2$sLayout.byteOffset(groupElement(\"%3$s\"));\n",
+                        offsetName(c, f), c.simpleName(), f.name()));
             }
+            allStructs.append("\n");
         }
 
         return allStructs.toString();
     }
 
+    /**
+     * @return The name of the constant holding the byte offset of a Record member.
+     */
+    static String offsetName(JType record, JMember member)
+    {
+        return record.simpleName() + "Offset_" + member.name();
+    }
+
     public static int getPaddingBytes(Field field)
     {
-        Annotation[] annotations = field.getAnnotationsByType(StructPadding.class);
+        return getPaddingBytes(field.getAnnotation(StructPadding.class));
+    }
+
+    /**
+     * @param sp The padding annotation of a Record member, may be null.
+     * @return The number of bytes of padding to use on this platform.
+     */
+    public static int getPaddingBytes(StructPadding sp)
+    {
         int paddingBytes = 0;
 
-        if (annotations.length > 0)
+        if (sp != null)
         {
-            StructPadding sp = ((StructPadding) annotations[0]);
             paddingBytes = sp.bytes();
 
             Utils.Platform p = Utils.getPlatform();
@@ -315,68 +279,77 @@ public class PassportWriter<T extends Passport>
      * @param records all of the Record types we need to support.
      * @return The code that converts Records into MemorySegments
      */
-    public String buildStoreStructFunction(Set<Class<?>> records)
+    public String buildStoreStructFunction(Set<JType> records)
     {
         StringBuilder sb = new StringBuilder();
 
-        for (Class<?> c : records)
+        for (JType c : records)
         {
             if (!c.isRecord())
                 continue;
 
             sb.append(String.format("""
                         private MemorySegment store%1$s(SegmentAllocator scope, %1$s rec) {
-                            return store%1$s(scope, new %1$s[] {rec});
-                        };
+                            MemorySegment memStruct = scope.allocate(%1$sLayout);
+                            write%1$s(scope, memStruct, 0, rec);
+                            return memStruct;
+                        }
                             
                         private MemorySegment store%1$s(SegmentAllocator scope, %1$s[] recs) {
+                            if (recs == null)
+                                return MemorySegment.NULL;
+                        
                             long size = %1$sLayout.byteSize();
-                            MemorySegment memStruct = scope.allocate(size);
-                            
+                            MemorySegment memStruct = scope.allocate(size * recs.length, %1$sLayout.byteAlignment());
                             long offset = 0;
                             for (%1$s rec : recs) {
+                                write%1$s(scope, memStruct, offset, rec);
+                                offset += size;
+                            }
+                            return memStruct;
+                        }
+                        
+                        private void write%1$s(SegmentAllocator scope, MemorySegment memStruct, long offset, %1$s rec) {
                     """,
-                    c.getSimpleName()));
+                    c.simpleName()));
 
-            int Element = 0;
-            for (Field f : c.getDeclaredFields())
+            for (JMember f : c.recordComponents())
             {
-                Class<?> type = f.getType();
-                String offset = String.format("%sLayoutOffsets[%d] + offset", c.getSimpleName(), Element++);
+                JType type = f.type();
+                String offset = offsetName(c, f) + " + offset";
 
 
                 if (type.isPrimitive())
-                    sb.append(String.format("\t\tmemStruct.set(JAVA_%2$s, %3$s, rec.%1$s());\n", f.getName(), typeToName.get(type).toUpperCase(), offset));
+                    sb.append(String.format("\t\tmemStruct.set(JAVA_%2$s, %3$s, rec.%1$s());\n", f.name(), typeToName.get(type.name()).toUpperCase(), offset));
                 else if (type.isRecord())
                 {
-                    boolean isPtr = f.getAnnotationsByType(Ptr.class).length > 0;
+                    boolean isPtr = f.hasAnnotation(Ptr.class);
                     if (isPtr)
-                        sb.append(String.format("\t\tmemStruct.set(ADDRESS, %3$s, store%2$s(scope, rec.%1$s()));\n", f.getName(), type.getSimpleName(), offset));
+                        sb.append(String.format("\t\tmemStruct.set(ADDRESS, %3$s, store%2$s(scope, rec.%1$s()));\n", f.name(), type.simpleName(), offset));
                     else
-                        sb.append(String.format("\t\tmemStruct.asSlice(%3$s).copyFrom(store%2$s(scope, rec.%1$s()));\n", f.getName(), type.getSimpleName(), offset));
+                        sb.append(String.format("\t\twrite%2$s(scope, memStruct, %3$s, rec.%1$s());\n", f.name(), type.simpleName(), offset));
                 }
-                else if (MemorySegment.class.equals(type))
-                    sb.append(String.format("\t\tmemStruct.set(ADDRESS, %2$s, rec.%1$s());\n", f.getName(), offset));
-                else if (String.class.equals(type))
-                    sb.append(String.format("\t\tmemStruct.set(ADDRESS, %2$s, Utils.toCString(rec.%1$s(), scope));\n", f.getName(), offset));
+                else if (type.is(MemorySegment.class))
+                    sb.append(String.format("\t\tmemStruct.set(ADDRESS, %2$s, rec.%1$s());\n", f.name(), offset));
+                else if (type.is(String.class))
+                    sb.append(String.format("\t\tmemStruct.set(ADDRESS, %2$s, Utils.toCString(rec.%1$s(), scope));\n", f.name(), offset));
                 else if (type.isArray())
                 {
-                    Class<?> arrType = type.getComponentType();
-                    Annotation[] arrays = f.getAnnotationsByType(Array.class);
-                    boolean isPointer = f.getAnnotationsByType(Ptr.class).length > 0;
+                    JType arrType = type.componentType();
+                    boolean isArray = f.hasAnnotation(Array.class);
+                    boolean isPointer = f.hasAnnotation(Ptr.class);
 
                     if (arrType.isPrimitive())
                     {
-                        if (arrays.length > 0)
-                            sb.append(String.format("\t\tmemStruct.asSlice(%2$s).copyFrom(MemorySegment.ofArray(rec.%1$s()));\n", f.getName(), offset));
+                        if (isArray)
+                            sb.append(String.format("\t\tmemStruct.asSlice(%2$s).copyFrom(MemorySegment.ofArray(rec.%1$s()));\n", f.name(), offset));
                         else if (isPointer)
-                            sb.append(String.format("\t\tmemStruct.set(ADDRESS, %2$s, Utils.toMS(scope, rec.%1$s(), false));\n", f.getName(), offset));
+                            sb.append(String.format("\t\tmemStruct.set(ADDRESS, %2$s, Utils.toMS(scope, rec.%1$s(), false));\n", f.name(), offset));
                     }
 
                 }
             }
-            sb.append("\t\toffset += size;\n\t}\n");
-            sb.append("\n\t\treturn memStruct;\n\t}\n\n");
+            sb.append("\t}\n\n");
         }
 
         return sb.toString();
@@ -388,76 +361,83 @@ public class PassportWriter<T extends Passport>
      * @param records All of the record types to make readers for.
      * @return The code to read all of the Record types.
      */
-    private String buildReadStructFunction(Set<Class<?>> records)
+    private String buildReadStructFunction(Set<JType> records)
     {
         StringBuilder sb = new StringBuilder();
 
-        for (Class<?> c : records)
+        for (JType c : records)
         {
             if (!c.isRecord())
                 continue;
 
             sb.append(String.format("""
+                        private void read%1$s(MemorySegment memStruct, %1$s[] recs) {
+                            if (recs == null)
+                                return;
+                        
+                            long size = %1$sLayout.byteSize();
+                            memStruct = Utils.resize(memStruct, size * recs.length);
+                            for (int n = 0; n < recs.length; ++n)
+                                recs[n] = read%1$s(memStruct.asSlice(n * size, size), recs[n]);
+                        }
+                        
                         private %1$s read%1$s(MemorySegment memStruct, %1$s rec) {
                             GroupLayout layout = %1$sLayout;
                             memStruct = Utils.resize(memStruct, layout.byteSize());
                     """,
-                    c.getSimpleName()));
-
-            int Element = 0;
+                    c.simpleName()));
 
-            for (Field f : c.getDeclaredFields())
+            for (JMember f : c.recordComponents())
             {
-                String offset = String.format("%sLayoutOffsets[%d]", c.getSimpleName(), Element++);
+                String offset = offsetName(c, f);
 
-                Class<?> type = f.getType();
+                JType type = f.type();
                 if (type.isPrimitive())
-                    sb.append(String.format("\t\tvar %1$s = memStruct.get(JAVA_%2$s, %3$s);\n", f.getName(), typeToName.get(type).toUpperCase(), offset));
+                    sb.append(String.format("\t\tvar %1$s = memStruct.get(JAVA_%2$s, %3$s);\n", f.name(), typeToName.get(type.name()).toUpperCase(), offset));
                 else if (type.isRecord())
                 {
-                    boolean isPointer = f.getAnnotationsByType(Ptr.class).length > 0;
+                    boolean isPointer = f.hasAnnotation(Ptr.class);
                     if (isPointer)
-                        sb.append(String.format("\t\tvar %1$s = read%2$s(Utils.slice(memStruct, memStruct.get(ADDRESS, %3$s), %2$sLayout.byteSize()), rec.%1$s());\n", f.getName(), type.getSimpleName(), offset));
-//                        sb.append(String.format("\t\tvar %1$s = read%2$s(getAddressAtOffset(memStruct, %3$s).asSegment(%2$sLayout.byteSize(), memStruct.scope()), rec.%1$s());\n", f.getName(), type.getSimpleName(), offset));
+                        sb.append(String.format("\t\tvar %1$s = read%2$s(Utils.slice(memStruct, memStruct.get(ADDRESS, %3$s), %2$sLayout.byteSize()), rec.%1$s());\n", f.name(), type.simpleName(), offset));
                     else
-                        sb.append(String.format("\t\tvar %1$s = read%2$s(memStruct.asSlice(%3$s), rec.%1$s());\n", f.getName(), type.getSimpleName(), offset));
+                        sb.append(String.format("\t\tvar %1$s = read%2$s(memStruct.asSlice(%3$s), rec.%1$s());\n", f.name(), type.simpleName(), offset));
                 }
-                else if (MemorySegment.class.equals(type))
+                else if (type.is(MemorySegment.class))
                 {
-                    sb.append(String.format("\t\tvar %1$s = memStruct.get(ADDRESS, %2$s);\n", f.getName(), offset));
+                    sb.append(String.format("\t\tvar %1$s = memStruct.get(ADDRESS, %2$s);\n", f.name(), offset));
                 }
                 else if (isGenericPtr(type))
                 {
-                    sb.append(String.format("\t\tvar mem_%1$s = memStruct.get(ADDRESS, %2$s);\n", f.getName(), offset));
-                    sb.append(String.format("\t\tvar %1$s = new %2$s(mem_%1$s);\n", f.getName(), type.getName()));
+                    sb.append(String.format("\t\tvar mem_%1$s = memStruct.get(ADDRESS, %2$s);\n", f.name(), offset));
+                    sb.append(String.format("\t\tvar %1$s = new %2$s(mem_%1$s);\n", f.name(), type.name()));
                 }
-                else if (String.class.equals(type))
-                    sb.append(String.format("\t\tvar %1$s = Utils.readString(memStruct.get(ADDRESS, %2$s));\n", f.getName(), offset));
+                else if (type.is(String.class))
+                    sb.append(String.format("\t\tvar %1$s = Utils.readString(memStruct.get(ADDRESS, %2$s));\n", f.name(), offset));
                 else if (type.isArray())
                 {
-                    Class<?> arrType = type.getComponentType();
-                    Annotation[] arrays = f.getAnnotationsByType(Array.class);
-                    boolean isPointer = f.getAnnotationsByType(Ptr.class).length > 0;
+                    JType arrType = type.componentType();
+                    Array array = f.getAnnotation(Array.class);
+                    boolean isPointer = f.hasAnnotation(Ptr.class);
 
                     if (arrType.isPrimitive())
                     {
-                        if (arrays.length > 0) {
-                            int length = ((Array) arrays[0]).length();
-                            sb.append(String.format("\t\tvar %1$s = memStruct.asSlice(%4$s, %2$d * %5$s.BYTES).toArray(JAVA_%3$s);\n", f.getName(), length, typeToName.get(arrType).toUpperCase(), offset, typeToName.get(arrType)));
+                        if (array != null) {
+                            int length = array.length();
+                            sb.append(String.format("\t\tvar %1$s = memStruct.asSlice(%4$s, %2$d * %5$s.BYTES).toArray(JAVA_%3$s);\n", f.name(), length, typeToName.get(arrType.name()).toUpperCase(), offset, typeToName.get(arrType.name())));
                         }
                         else if (isPointer)
                         {
-                            sb.append(String.format("\t\tint %1$sSize = rec.%1$s().length;\n", f.getName()));
-                            sb.append(String.format("\t\tvar %1$s = Utils.toArr(JAVA_%2$s, memStruct, memStruct.get(ADDRESS, %3$s), %1$sSize);\n", f.getName(), typeToName.get(arrType).toUpperCase(), offset));
+                            sb.append(String.format("\t\tint %1$sSize = rec.%1$s().length;\n", f.name()));
+                            sb.append(String.format("\t\tvar %1$s = Utils.toArr(JAVA_%2$s, memStruct, memStruct.get(ADDRESS, %3$s), %1$sSize);\n", f.name(), typeToName.get(arrType.name()).toUpperCase(), offset));
                         }
                     }
                 }
             }
 
             // Building the Record class to return
-            sb.append(String.format("\t\treturn new %s(", c.getSimpleName()));
-            for (Field f : c.getDeclaredFields()) {
-                sb.append(f.getName()).append(",");
+            sb.append(String.format("\t\treturn new %s(", c.simpleName()));
+            for (JMember f : c.recordComponents()) {
+                sb.append(f.name()).append(",");
             }
             sb.setLength(sb.length() - 1);
             sb.append(");\n\t}\n\n");
@@ -472,19 +452,19 @@ public class PassportWriter<T extends Passport>
      * @param records All of the record types to make readers for.
      * @return The code to read all of the Record types.
      */
-    private String buildReadAnyStructFunction(Set<Class<?>> records)
+    private String buildReadAnyStructFunction(Set<JType> records)
     {
         StringBuilder sb = new StringBuilder();
 
         sb.append("\tpublic Object readStruct(MemorySegment segment, Object rec) {\n");
 
-        for (Class<?> c : records)
+        for (JType c : records)
         {
             if (!c.isRecord())
                 continue;
 
-            sb.append(String.format("\t\tif (rec instanceof %s vv) \n", c.getSimpleName()));
-            sb.append(String.format("\t\t\treturn read%s(segment, vv);\n", c.getSimpleName()));
+            sb.append(String.format("\t\tif (rec instanceof %s vv) \n", c.simpleName()));
+            sb.append(String.format("\t\t\treturn read%s(segment, vv);\n", c.simpleName()));
         }
 
         sb.append("\t\tthrow new IllegalArgumentException(\"Unknown type\");\n");
@@ -496,9 +476,13 @@ public class PassportWriter<T extends Passport>
      * This method is used to create the code to support a single interface method.
      * @param method The interface method to implement
      * @param retType The return type of the method.
+     * @param interfaceType The interface the method belongs to.
      */
-    public void addMethod(Method method, Class<?> retType, Class<T> interfaceClass)
+    public void addMethod(JMethod method, JType declaredRetType, JType interfaceType)
     {
+        boolean async = declaredRetType.is(CompletableFuture.class);
+        JType retType = resultType(declaredRetType);
+
         StringBuilder args = new StringBuilder();
         StringBuilder params = new StringBuilder();
         StringBuilder tryArgs = new StringBuilder();
@@ -508,114 +492,176 @@ public class PassportWriter<T extends Passport>
         String strCallReturn = "";
         String strReturn = "";
 
-        if (!void.class.equals(retType))
+        if (!retType.is(void.class))
         {
-            if (retType.equals(String.class))
+            if (retType.is(String.class))
             {
                 strCallReturn = "var ret = (MemorySegment)";
                 strReturn = "return Utils.readString(ret);";
-            } else if (retType.equals(MemorySegment.class)) {
+            } else if (retType.is(MemorySegment.class)) {
                 strCallReturn = "var ret = (MemorySegment)";
                 strReturn = "return ret;";
             }
             else if (isGenericPtr(retType))
             {
                 strCallReturn = "var ret = (MemorySegment)";
-                strReturn = "return new " + retType.getName() + "(ret);";
+                strReturn = "return new " + retType.name() + "(ret);";
+            }
+            else if (isStructView(retType))
+            {
+                strCallReturn = "var ret = (MemorySegment)";
+                strReturn = "return jpassport.StructViews.of(" + retType.simpleName() + ".class, ret);";
             }
             else
             {
-                strCallReturn = String.format("var ret = (%s)", retType.getSimpleName());
+                strCallReturn = String.format("var ret = (%s)", retType.simpleName());
                 strReturn = "return ret;";
             }
         }
 
-        Annotation[][] paramAnnotations = method.getParameterAnnotations();
-        var methodArgs = method.getParameters();
+        var methodArgs = method.parameters();
+        boolean allArraysAreRefArgs = interfaceType.hasAnnotation(RefArg.class);
+        boolean heapAccess = isHeapAccess(method.getAnnotation(Critical.class));
         int v = 1;
         boolean bHasAllocatedMemory = false;
         boolean bHasArenaArg = false;
+        // The expression of each native argument, for calls that hand the arguments to another thread
+        List<String> nativeArgs = new ArrayList<>();
 
-        for (Class<?> parameter : method.getParameterTypes())
+        for (JMember methodArg : methodArgs)
         {
-            if (Arena.class.equals(parameter))
-                args.append(String.format("%s scope,", parameter.getSimpleName()));
+            int paramsStart = params.length();
+            JType parameter = methodArg.type();
+            if (parameter.is(Arena.class))
+                args.append(String.format("%s scope,", parameter.simpleName()));
             else
-                args.append(String.format("%s v%d,", parameter.getSimpleName(), v));
+                args.append(String.format("%s v%d,", parameter.simpleName(), v));
 
-            if (isArrayOfPrimitives(parameter) || is2DArrayOfPrimitives(parameter))
+            if (heapAccess && isArrayOfPrimitives(parameter) && !methodArg.hasAnnotation(PtrPtrArg.class))
+            {
+                // The native code works on the Java array itself, so there is nothing to copy or read back
+                preCall.append(String.format("var vv%1$d = v%1$d == null ? MemorySegment.NULL : MemorySegment.ofArray(v%1$d);\n", v));
+                params.append("vv").append(v).append(',');
+            }
+            else if (isArrayOfPrimitives(parameter) || is2DArrayOfPrimitives(parameter))
             {
                 bHasAllocatedMemory = true;
-                if (isPtrPtrArg(paramAnnotations[v-1]))
-                    preCall.append(String.format("var vv%1$d = Utils.toPtrPTrMS(scope, v%1$d);", v));
-                else
-                {
-                    preCall.append(String.format("var vv%1$d = Utils.toMS(scope, v%1$d, %2$s);\n", v,
-                            isRefArgReadBackOnly(methodArgs[v - 1])));
-                }
+                boolean ptrPtr = methodArg.hasAnnotation(PtrPtrArg.class);
+                preCall.append(String.format("var vv%1$d = Utils.%2$s(scope, v%1$d, %3$s);\n", v,
+                        ptrPtr ? "toPtrPTrMS" : "toMS", !isCopyIn(methodArg)));
 
                 params.append("Utils.toAddr(vv").append(v).append("),");
 
-                if (isRefArg(paramAnnotations[v-1]) || (!is2DArrayOfPrimitives(parameter)) && isRefArg(interfaceClass.getAnnotations()))
-                    postCall.append(String.format("Utils.toArr(v%1$d, vv%1$d);\n", v));
+                if (isReadBack(methodArg, allArraysAreRefArgs))
+                    postCall.append(String.format("Utils.%2$s(v%1$d, vv%1$d);\n", v, ptrPtr ? "toPtrPtrArr" : "toArr"));
+            }
+            else if (isBuffer(parameter))
+            {
+                if (heapAccess)
+                    params.append(String.format("Utils.toHeapMS(v%d),", v));
+                else
+                {
+                    bHasAllocatedMemory = true;
+                    preCall.append(String.format("var vv%1$d = Utils.toMS(scope, v%1$d, %2$s);\n", v, !isCopyIn(methodArg)));
+                    params.append("Utils.toAddr(vv").append(v).append("),");
+                    if (isReadBack(methodArg, allArraysAreRefArgs))
+                        postCall.append(String.format("Utils.toArr(v%1$d, vv%1$d);\n", v));
+                }
             }
-            else if (String.class.equals(parameter))
+            else if (parameter.is(ArraySlice.class))
+            {
+                if (heapAccess)
+                    params.append(String.format("Utils.toHeapMS(v%d),", v));
+                else
+                {
+                    bHasAllocatedMemory = true;
+                    preCall.append(String.format("var vv%1$d = Utils.toMS(scope, v%1$d, %2$s);\n", v, !isCopyIn(methodArg)));
+                    params.append("Utils.toAddr(vv").append(v).append("),");
+                    if (isReadBack(methodArg, allArraysAreRefArgs))
+                        postCall.append(String.format("Utils.toArr(v%1$d, vv%1$d);\n", v));
+                }
+            }
+            else if (parameter.is(String.class) && isCachedString(methodArg, method, interfaceType))
+            {
+                params.append(String.format("jpassport.StringCache.get(v%d),", v));
+            }
+            else if (parameter.is(String.class))
             {
                 bHasAllocatedMemory = true;
                 preCall.append(String.format("MemorySegment vv%1$d = v%1$d == null ? MemorySegment.NULL : Utils.toCString(v%1$d, scope);\n", v));
                 params.append("vv").append(v).append(',');
             }
-            else if (Arena.class.equals(parameter))
+            else if (parameter.is(Arena.class))
             {
                 bHasArenaArg = true;
             }
-            else if (MemoryBlock.class.equals(parameter))
+            else if (parameter.is(MemoryBlock.class))
             {
                 bHasAllocatedMemory = true;
                 preCall.append(String.format("MemorySegment vv%1$d = v%1$d == null ? MemorySegment.NULL :v%1$d.toPtr(scope);\n", v));
                 params.append("vv").append(v).append(',');
                 postCall.append(String.format("v%1$d.readBack();\n", v));
             }
-            else if (parameter.isArray() && String.class.equals(parameter.getComponentType()))
+            else if (parameter.isArray() && parameter.componentType().is(String.class))
             {
                 bHasAllocatedMemory = true;
-                preCall.append(String.format("MemorySegment vv%1$d = v%1$d == null ? MemorySegment.NULL : Utils.toCString(v%1$d, scope);\n", v));
+                boolean readBack = isReadBack(methodArg, allArraysAreRefArgs);
+                if (isCopyIn(methodArg) && readBack)
+                {
+                    // The pointers and bytes that were passed are kept so unchanged elements are not decoded again
+                    preCall.append(String.format("jpassport.CStringArray cs%1$d = v%1$d == null ? null : jpassport.CStringArray.of(v%1$d, scope);\n", v));
+                    preCall.append(String.format("MemorySegment vv%1$d = cs%1$d == null ? MemorySegment.NULL : cs%1$d.segment();\n", v));
+                    postCall.append(String.format("if (cs%1$d != null) cs%1$d.readBack(v%1$d);\n", v));
+                }
+                else if (isCopyIn(methodArg))
+                    preCall.append(String.format("MemorySegment vv%1$d = v%1$d == null ? MemorySegment.NULL : Utils.toCString(v%1$d, scope);\n", v));
+                else
+                    preCall.append(String.format("MemorySegment vv%1$d = v%1$d == null ? MemorySegment.NULL : scope.allocate(ADDRESS.byteSize() * v%1$d.length);\n", v));
                 params.append("vv").append(v).append(',');
 
-                if (isRefArg(paramAnnotations[v-1]) || isRefArg(interfaceClass.getAnnotations()))
+                if (!isCopyIn(methodArg) && readBack)
                     postCall.append(String.format("Utils.fromCString(vv%1$d, v%1$d);\n", v));
             }
             else if (parameter.isRecord())
             {
                 bHasAllocatedMemory = true;
-                preCall.append(String.format("var vv%1$d =  store%2$s(scope, v%1$d);\n", v, parameter.getSimpleName()));
+                preCall.append(String.format("var vv%1$d =  store%2$s(scope, v%1$d);\n", v, parameter.simpleName()));
                 params.append("(MemorySegment)vv").append(v).append(",");
             }
-            else if (parameter.isArray() && parameter.getComponentType().isRecord())
+            else if (parameter.isArray() && parameter.componentType().isRecord())
             {
                 bHasAllocatedMemory = true;
-                Class<?> recordType = parameter.getComponentType();
-                preCall.append(String.format("var vv%1$d =  store%2$s(scope, v%1$d);\n", v, recordType.getSimpleName()));
+                JType recordType = parameter.componentType();
+                preCall.append(String.format("var vv%1$d =  store%2$s(scope, v%1$d);\n", v, recordType.simpleName()));
                 params.append("(MemorySegment)vv").append(v).append(",");
 
-                if (isRefArg(paramAnnotations[v-1]) || isRefArg(interfaceClass.getAnnotations()))
-                {
-                    postCall.append(String.format("v%1$d[0] = read%2$s(vv%1d, v%1$d[0]);", v, recordType.getSimpleName()));
-                }
+                if (isReadBack(methodArg, allArraysAreRefArgs))
+                    postCall.append(String.format("read%2$s(vv%1$d, v%1$d);\n", v, recordType.simpleName()));
+            }
+            else if (isNativeArray(parameter))
+            {
+                boolean ptrPtr = methodArg.hasAnnotation(PtrPtrArg.class);
+                if (ptrPtr && !parameter.isSubtypeOf(NativeMatrix.class))
+                    throw new PassportException("PtrPtrArg can only be used with a NativeMatrix: " + method.name());
+                params.append(String.format("(MemorySegment) (v%1$d == null ? MemorySegment.NULL : v%1$d.%2$s()),", v, ptrPtr ? "getPtrPtr" : "getPtr"));
             }
             else if (isGenericPtr(parameter))
                 params.append("v").append(v).append(".getPtr(),");
-            else if (parameter.isArray() && isGenericPtr(parameter.getComponentType()))
+            else if (isStructView(parameter))
+                params.append(String.format("(MemorySegment) (v%1$d == null ? MemorySegment.NULL : v%1$d.segment()),", v));
+            else if (parameter.isArray() && isGenericPtr(parameter.componentType()))
             {
                 bHasAllocatedMemory = true;
                 preCall.append(String.format("var vv%1$d = Utils.toMS(scope, v%1$d, %2$s);\n", v,
-                        isRefArgReadBackOnly(methodArgs[v - 1])));
+                        !isCopyIn(methodArg)));
                 params.append("Utils.toAddr(vv").append(v).append("),");
-                if (isRefArg(paramAnnotations[v-1]) || isRefArg(interfaceClass.getAnnotations()))
+                if (isReadBack(methodArg, allArraysAreRefArgs))
                     postCall.append(String.format("Utils.toArr(v%1$d, vv%1$d);\n", v));
             }
             else
                 params.append("v").append(v).append(",");
+            if (params.length() > paramsStart)
+                nativeArgs.add(params.substring(paramsStart, params.length() - 1));
             ++v;
         }
 
@@ -623,12 +669,46 @@ public class PassportWriter<T extends Passport>
             args.setLength(args.length() - 1);
         if (!params.isEmpty() && params.charAt(params.length() - 1) == ',')
             params.setLength(params.length() - 1);
+        // The native call of a Blocking method runs on another thread when called from a virtual thread
+        boolean blocking = !async && !method.hasAnnotation(Critical.class) &&
+                (method.hasAnnotation(Blocking.class) || interfaceType.hasAnnotation(Blocking.class));
         if (bHasAllocatedMemory && !bHasArenaArg)
         {
-            tryArgs.append("var scope = Arena.ofConfined();");
+            String scope;
+            if (method.hasAnnotation(PooledArena.class) || interfaceType.hasAnnotation(PooledArena.class))
+                scope = "jpassport.ThreadLocalArena.acquire()";
+            else
+                scope = "Arena.ofConfined()";
+            if (blocking)
+                scope = "onVirtual ? Arena.ofShared() : " + scope;
+            tryArgs.append("var scope = ").append(scope).append(";");
 //            preCall.insert(0, "var allocator = SegmentAllocator.newNativeArena(scope);\n\t\t");
         }
 
+        String callStatement;
+        if (!blocking)
+            callStatement = strCallReturn + " " + String.format("m_%s.invokeExact(%s)", method.name(), params) + ";";
+        else
+        {
+            StringBuilder locals = new StringBuilder();
+            String names = bindNativeArgs(nativeArgs, locals);
+            String call = String.format("m_%s.invokeExact(%s)", method.name(), names);
+
+            if (strCallReturn.isEmpty())
+                callStatement = String.format("%1$sif (onVirtual) {\n\tjpassport.AsyncCalls.checkShared(%3$s);\n\tjpassport.AsyncCalls.offload(() -> { %2$s; return null; });\n}\nelse\n\t%2$s;", locals, call, names);
+            else
+            {
+                String cast = strCallReturn.substring("var ret = ".length());
+                callStatement = String.format("%1$sif (onVirtual)\n\tjpassport.AsyncCalls.checkShared(%4$s);\nvar ret = onVirtual ?\n\t%2$s jpassport.AsyncCalls.offload(() -> %2$s %3$s) :\n\t%2$s %3$s;", locals, cast, call, names);
+            }
+        }
+
+        if (async)
+        {
+            addAsyncMethod(method, declaredRetType, args, bHasAllocatedMemory, bHasArenaArg, preCall, strCallReturn, nativeArgs, postCall, strReturn);
+            return;
+        }
+
         if (!tryArgs.isEmpty())
             tryArgs.insert(0, "(").append(")");
 
@@ -636,9 +716,10 @@ public class PassportWriter<T extends Passport>
                                 private MethodHandle m_%s;
                                 public %s %s(%s)
                                 {
+                                    %s
                                     try %s {
                                         %s
-                                        %s m_%s.invokeExact(%s);
+                                        %s
                                         %s
                                         %s
                                     }
@@ -649,23 +730,107 @@ public class PassportWriter<T extends Passport>
                                 }
                                 
                             """,
-                method.getName(),
-                retType.getSimpleName(), method.getName(),args,
+                method.name(),
+                retType.simpleName(), method.name(),args,
+                blocking ? "boolean onVirtual = Thread.currentThread().isVirtual();" : "",
                 tryArgs,
                 preCall.toString().replace("\n", "\n\t\t\t"),
-                strCallReturn, method.getName(), params,
+                callStatement.replace("\n", "\n\t\t\t"),
                 postCall.toString().replace("\n", "\n\t\t\t"),
                 strReturn));
 
-        m_initSource.append(String.format("\t\tm_%s = m_methods.get(\"%s\");\n", method.getName(), method.getName()));
+        m_initSource.append(String.format("\t\tm_%s = m_methods.get(\"%s\");\n", method.name(), method.name()));
     }
 
-    public List<Path> writeModule(Path buildRoot) throws IOException
+    /**
+     * The native arguments of a call that is handed to another thread are each worked out once into a local,
+     * so the same values are checked by {@link AsyncCalls#checkShared} and passed to the native call.
+     * @param nativeArgs The expression of each native argument.
+     * @param locals The declarations of the locals are added to this.
+     * @return The names of the locals, separated by commas.
+     */
+    private static String bindNativeArgs(List<String> nativeArgs, StringBuilder locals)
+    {
+        StringJoiner names = new StringJoiner(", ");
+        for (int n = 0; n < nativeArgs.size(); ++n)
+        {
+            locals.append(String.format("var arg%d = %s;\n", n + 1, nativeArgs.get(n)));
+            names.add("arg" + (n + 1));
+        }
+        return names.toString();
+    }
+
+    /**
+     * A method returning a CompletableFuture converts its arguments on the calling thread, the native call,
+     * read back and return conversion are handed to {@link AsyncCalls}. Argument memory comes from a shared
+     * Arena that AsyncCalls closes when the call is done.
+     */
+    private void addAsyncMethod(JMethod method, JType declaredRetType, StringBuilder args, boolean hasAllocatedMemory, boolean hasArenaArg,
+                                StringBuilder preCall, String strCallReturn, List<String> nativeArgs, StringBuilder postCall, String strReturn)
+    {
+        boolean ownsArena = hasAllocatedMemory && !hasArenaArg;
+        String params = bindNativeArgs(nativeArgs, preCall);
+        m_source.append(String.format("""
+                                private MethodHandle m_%s;
+                                public java.util.concurrent.CompletableFuture<%s> %s(%s)
+                                {
+                                    %s
+                                    try {
+                                        %s
+                                        jpassport.AsyncCalls.checkShared(%s);
+                                        return jpassport.AsyncCalls.submit(%s, () -> {
+                                            %s m_%s.invokeExact(%s);
+                                            %s
+                                            %s
+                                        });
+                                    }
+                                    catch(RuntimeException | Error ex)
+                                    {
+                                        %s
+                                        throw ex;
+                                    }
+                                    catch(Throwable th)
+                                    {
+                                        %s
+                                        throw new Error(th);
+                                    }
+                                }
+
+                            """,
+                method.name(),
+                declaredRetType.typeArguments().get(0).name(), method.name(), args,
+                ownsArena ? "var scope = Arena.ofShared();" : "",
+                preCall.toString().replace("\n", "\n\t\t\t"),
+                params,
+                ownsArena ? "scope" : "null",
+                strCallReturn, method.name(), params,
+                postCall.toString().replace("\n", "\n\t\t\t\t"),
+                strReturn.isEmpty() ? "return null;" : strReturn,
+                ownsArena ? "scope.close();" : "",
+                ownsArena ? "scope.close();" : ""));
+
+        m_initSource.append(String.format("\t\tm_%s = m_methods.get(\"%s\");\n", method.name(), method.name()));
+    }
+
+    /**
+     * @param retType The return type of an interface method.
+     * @return The type the native function returns: retType, or for CompletableFuture&lt;T&gt; the type T,
+     * as a primitive if T is a boxed primitive.
+     */
+    static JType resultType(JType retType)
     {
-        m_initSource.append("\t}");
-        m_source.append(m_initSource);
-        m_source.append("\n}");
+        if (!retType.is(CompletableFuture.class))
+            return retType;
+
+        List<JType> typeArgs = retType.typeArguments();
+        if (typeArgs.size() != 1)
+            throw new PassportException("A CompletableFuture return type must give the type of the result");
+        Class<?> primitive = s_unboxed.get(typeArgs.get(0).name());
+        return primitive != null ? JType.of(primitive) : typeArgs.get(0);
+    }
 
+    public List<Path> writeModule(Path buildRoot) throws IOException
+    {
         String[] packages = m_fullClassName.split("\\.");
         Path sourceRoot = buildRoot.resolve(packages[0]);
 
@@ -676,47 +841,136 @@ public class PassportWriter<T extends Passport>
             Utils.deleteFolder(sourceRoot);
         Files.createDirectories(sourceRoot);
         Path sourceFile = sourceRoot.resolve(m_className + ".java");
-        Files.writeString(sourceFile, m_source);
+        Files.writeString(sourceFile, getSource());
         Path moduleFile = buildRoot.resolve("module-info.java");
         Files.writeString(moduleFile, m_moduleSource);
 
         return List.of(moduleFile, sourceFile);
     }
 
-    T build(Map<String, MethodHandle> methods) throws Throwable
+    /**
+     * @return The complete source code of the class.
+     */
+    public String getSource()
     {
-        Path buildRoot = Utils.getBuildFolder();
-        List<Path> paths = writeModule(buildRoot);
-
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (!m_sourceComplete)
+        {
+            m_initSource.append("\t}");
+            m_source.append(m_initSource);
+            m_source.append("\n}");
+            m_sourceComplete = true;
+        }
+        return m_source.toString();
+    }
 
-        var fmanager = compiler.getStandardFileManager(null, null, null);
-        var compileThis = fmanager.getJavaFileObjectsFromPaths(paths);
+    public String getFullClassName()
+    {
+        return m_fullClassName;
+    }
 
-        var dothis = compiler.getTask(null, null, null,
-                List.of("--enable-preview", "--release", "22", "--module-path", System.getProperty("jdk.module.path")),
-                null, compileThis);
-//        compiler.run(null, null, null,
-//                 "--module-path", System.getProperty("jdk.module.path"),
-//                paths.get(0).toString(), paths.get(1).toString());
-        dothis.call();
+    /**
+     * The annotation processor writes the class for an interface next to the interface. Nested interfaces
+     * use their outer class names, ex. my.pkg.Outer$Linked is written as my.pkg.Outer_Linked_impl.
+     *
+     * @param interfaceBinaryName The binary name of the interface, ie. Class.getName()
+     * @return The fully qualified name of the class that the annotation processor writes.
+     */
+    public static String getPregeneratedClassName(String interfaceBinaryName)
+    {
+        return interfaceBinaryName.replace('$', '_') + "_impl";
+    }
 
-        URLClassLoader classLoader = URLClassLoader.newInstance(new URL[] {buildRoot.toUri().toURL()});
-        Class<? extends T> foreignImpl = (Class<? extends T>)Class.forName(m_fullClassName, true, classLoader);
+    T build(Map<String, MethodHandle> methods) throws Throwable
+    {
+        Class<? extends T> foreignImpl = PassportCompiler.define(m_interfaceClass, compile(), m_fullClassName);
         return foreignImpl.getDeclaredConstructor(methods.getClass()).newInstance(methods);
     }
 
+    /**
+     * Compiles the class in memory, nothing is written to disk.
+     *
+     * @return The binary class name to class file contents of every class that was compiled.
+     */
+    Map<String, byte[]> compile()
+    {
+        return PassportCompiler.compile(m_fullClassName, getSource(), m_interfaceClass);
+    }
+
     static boolean isRefArg(Annotation[] paramAnnotations)
     {
         return Arrays.stream(paramAnnotations).map(Annotation::annotationType).anyMatch(RefArg.class::equals);
     }
 
-    static boolean isRefArgReadBackOnly(Parameter methodArg)
+    /**
+     * @return True if the contents of an array argument must be copied to native memory before the call,
+     * false if blank memory is enough (Out or RefArg(read_back_only = true)).
+     */
+    static boolean isCopyIn(JMember methodArg)
+    {
+        return isCopyIn(methodArg.getAnnotation(RefArg.class), methodArg.getAnnotation(In.class),
+                methodArg.getAnnotation(Out.class), methodArg.getAnnotation(InOut.class));
+    }
+
+    static boolean isCopyIn(Parameter methodArg)
+    {
+        return isCopyIn(methodArg.getAnnotation(RefArg.class), methodArg.getAnnotation(In.class),
+                methodArg.getAnnotation(Out.class), methodArg.getAnnotation(InOut.class));
+    }
+
+    /**
+     * @param allArraysAreRefArgs True if the interface is annotated with RefArg.
+     * @return True if an array argument must be read back after the call.
+     */
+    static boolean isReadBack(JMember methodArg, boolean allArraysAreRefArgs)
+    {
+        return isReadBack(methodArg.getAnnotation(RefArg.class), methodArg.getAnnotation(In.class),
+                methodArg.getAnnotation(Out.class), methodArg.getAnnotation(InOut.class), allArraysAreRefArgs);
+    }
+
+    static boolean isReadBack(Parameter methodArg, boolean allArraysAreRefArgs)
+    {
+        return isReadBack(methodArg.getAnnotation(RefArg.class), methodArg.getAnnotation(In.class),
+                methodArg.getAnnotation(Out.class), methodArg.getAnnotation(InOut.class), allArraysAreRefArgs);
+    }
+
+    private static boolean isCopyIn(RefArg ref, In in, Out out, InOut inOut)
+    {
+        checkDirection(in, out, inOut);
+        if (out != null)
+            return false;
+        return in != null || inOut != null || ref == null || !ref.read_back_only();
+    }
+
+    private static boolean isReadBack(RefArg ref, In in, Out out, InOut inOut, boolean allArraysAreRefArgs)
+    {
+        checkDirection(in, out, inOut);
+        if (in != null)
+            return false;
+        return out != null || inOut != null || ref != null || allArraysAreRefArgs;
+    }
+
+    private static void checkDirection(In in, Out out, InOut inOut)
+    {
+        int count = (in != null ? 1 : 0) + (out != null ? 1 : 0) + (inOut != null ? 1 : 0);
+        if (count > 1)
+            throw new PassportException("Only one of @In, @Out and @InOut can be used on an argument");
+    }
+
+    static boolean isCachedString(JMember methodArg, JMethod method, JType interfaceType)
+    {
+        return methodArg.hasAnnotation(CachedString.class) || method.hasAnnotation(CachedString.class) ||
+                interfaceType.hasAnnotation(CachedString.class);
+    }
+
+    static boolean isCachedString(Parameter methodArg, Method method)
+    {
+        return methodArg.getAnnotation(CachedString.class) != null || method.getAnnotation(CachedString.class) != null ||
+                method.getDeclaringClass().getAnnotation(CachedString.class) != null;
+    }
+
+    static boolean isHeapAccess(Critical critical)
     {
-        var ref = methodArg.getAnnotationsByType(RefArg.class);
-        if (ref.length > 0)
-            return ref[0].read_back_only();
-        return false;
+        return critical != null && critical.allowHeapAccess();
     }
 
     static boolean isPtrPtrArg(Annotation[] paramAnnotations)
@@ -724,14 +978,14 @@ public class PassportWriter<T extends Passport>
         return Arrays.stream(paramAnnotations).map(Annotation::annotationType).anyMatch(PtrPtrArg.class::equals);
     }
 
-    private boolean isArrayOfPrimitives(Class<?> c)
+    private boolean isArrayOfPrimitives(JType c)
     {
-        return c.isArray() && c.getComponentType().isPrimitive();
+        return c.isArray() && c.componentType().isPrimitive();
     }
 
-    private boolean is2DArrayOfPrimitives(Class<?> c)
+    private boolean is2DArrayOfPrimitives(JType c)
     {
-        return c.isArray() && c.getComponentType().isArray() && isArrayOfPrimitives(c.getComponentType());
+        return c.isArray() && c.componentType().isArray() && isArrayOfPrimitives(c.componentType());
     }
 
     /**
@@ -741,30 +995,34 @@ public class PassportWriter<T extends Passport>
      * @param interfaceMethods All of the methods in the interfacee
      * @return The list of Record types that should be imported.
      */
-    private static Set<Class<?>> findAllExtraImports(List<Method> interfaceMethods) {
-        Set<Class<?>> extraImports = new HashSet<>();
-        for (Method m : interfaceMethods) {
-            Class<?> retType = m.getReturnType();
-            Class<?>[] params = m.getParameterTypes();
+    private static Set<JType> findAllExtraImports(List<JMethod> interfaceMethods) {
+        // Sorted so that the same interface always produces the same source
+        Set<JType> extraImports = new TreeSet<>(Comparator.comparing(JType::name));
+        for (JMethod m : interfaceMethods) {
+            JType retType = resultType(m.returnType());
+            List<JType> params = m.parameters().stream().map(JMember::type).toList();
 
             if (!isValidArgType(retType))
-                throw new PassportException(m.getName() + ". Types in the interface must by primitive, arrays of primitives, String, or Records. " + retType.getSimpleName() + " not supported.");
+                throw new PassportException(m.name() + ". Types in the interface must by primitive, arrays of primitives, String, or Records. " + retType.simpleName() + " not supported.");
 
-            List<Class<?>> invalid = Arrays.stream(params).filter(p -> !isValidArgType(p)).toList();
+            List<JType> invalid = params.stream().filter(p -> !isValidArgType(p)).toList();
             if (!invalid.isEmpty())
-                throw new PassportException(m.getName() + ". Types in the interface must by primitive, arrays of primitives, String, or Records. " + invalid.get(0).getSimpleName() + " not supported.");
+                throw new PassportException(m.name() + ". Types in the interface must by primitive, arrays of primitives, String, or Records. " + invalid.get(0).simpleName() + " not supported.");
 
-            if (retType.isRecord() || (retType.isArray() && retType.getComponentType().isRecord()) || isGenericPtr(retType))
+            if (retType.isRecord() || isGenericPtr(retType) || isStructView(retType))
                 extraImports.add(retType);
-            Arrays.stream(params).filter(Class::isRecord).forEach(extraImports::add);
-            Arrays.stream(params).filter(Class::isArray).map(Class::getComponentType).filter(Class::isRecord).forEach(extraImports::add);
-            Arrays.stream(params).filter(PassportWriter::isGenericPtr).forEach(extraImports::add);
+            if (retType.isArray() && retType.componentType().isRecord())
+                extraImports.add(retType.componentType());
+            params.stream().filter(JType::isRecord).forEach(extraImports::add);
+            params.stream().filter(JType::isArray).map(JType::componentType).filter(JType::isRecord).forEach(extraImports::add);
+            params.stream().filter(PassportWriter::isGenericPtr).forEach(extraImports::add);
+            params.stream().filter(PassportWriter::isNativeArray).forEach(extraImports::add);
+            params.stream().filter(p -> p.is(ArraySlice.class) || isBuffer(p) || isStructView(p)).forEach(extraImports::add);
+            params.stream().filter(JType::isArray).map(JType::componentType).filter(PassportWriter::isGenericPtr).forEach(extraImports::add);
         }
 
-        extraImports.remove(String.class);
-        extraImports.remove(MemorySegment.class);
         //In case any of the Records are made up of Records then this will pick those up to
-        for (Class<?> c : extraImports)
+        for (JType c : List.copyOf(extraImports))
         {
             if (c.isRecord())
                 extraImports.addAll(findSubRecords(c));
@@ -778,14 +1036,14 @@ public class PassportWriter<T extends Passport>
      * @param record A record class to search for other records
      * @return All of the sub-Records.
      */
-    static Set<Class<?>> findSubRecords(Class<?> record)
+    static Set<JType> findSubRecords(JType record)
     {
-        Set<Class<?>> subRecords = new HashSet<>();
-        for (Field f : record.getDeclaredFields()) {
-            if (f.getType().isRecord())
+        Set<JType> subRecords = new HashSet<>();
+        for (JMember f : record.recordComponents()) {
+            if (f.type().isRecord())
             {
-                subRecords.add(f.getType());
-                subRecords.addAll(findSubRecords(f.getType()));
+                subRecords.add(f.type());
+                subRecords.addAll(findSubRecords(f.type()));
             }
         }
         return subRecords;
@@ -796,25 +1054,49 @@ public class PassportWriter<T extends Passport>
      * Primitive
      * Primitive[]
      * Primitive[][]
+     * ArraySlice
+     * java.nio Buffers
      * Record
+     * StructView
      * String
      * MemorySegment
      *
      * @param c The type to check
      * @return Is the type something we can work with
      */
-    private static boolean isValidArgType(Class<?> c)
+    private static boolean isValidArgType(JType c)
     {
         if (c.isPrimitive())
             return true;
         if (c.isRecord())
             return true;
-        if (c.isArray() && (c.componentType().isPrimitive() || c.getComponentType().isRecord()
-                || isGenericPtr(c.getComponentType()) || c.getComponentType().equals(String.class)))
+        if (c.isArray() && (c.componentType().isPrimitive() || c.componentType().isRecord()
+                || isGenericPtr(c.componentType()) || c.componentType().is(String.class)))
             return true;
-        if (MemorySegment.class.equals(c) || String.class.equals(c) || isGenericPtr(c) || MemoryBlock.class.equals(c) || Arena.class.equals(c))
+        if (c.is(MemorySegment.class) || c.is(String.class) || isGenericPtr(c) || c.is(MemoryBlock.class) || c.is(Arena.class)
+                || isNativeArray(c) || c.is(ArraySlice.class) || isBuffer(c) || isStructView(c))
             return true;
-        return c.isArray() && c.getComponentType().isArray() && c.getComponentType().getComponentType().isPrimitive();
+        return c.isArray() && c.componentType().isArray() && c.componentType().componentType().isPrimitive();
+    }
+
+    static boolean isNativeArray(JType c)
+    {
+        return !c.isPrimitive() && !c.isArray() && c.isSubtypeOf(NativeArray.class);
+    }
+
+    static boolean isBuffer(JType c)
+    {
+        return !c.isPrimitive() && !c.isArray() && c.isSubtypeOf(Buffer.class);
+    }
+
+    static boolean isStructView(JType c)
+    {
+        return !c.isPrimitive() && !c.isArray() && c.isSubtypeOf(StructView.class);
+    }
+
+    static boolean isGenericPtr(JType c)
+    {
+        return c.isSubtypeOf(GenericPointer.class);
     }
 
     static boolean isGenericPtr(Class<?> c)
@@ -0,0 +1,665 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jpassport.annotations.Blocking;
+import jpassport.annotations.Critical;
+import jpassport.annotations.PooledArena;
+import jpassport.annotations.PtrPtrArg;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Parameter;
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static jpassport.PassportWriter.isGenericPtr;
+
+/**
+ * Everything the proxy needs to call one interface method, worked out once when the proxy is made.
+ * The reflection that used to happen on every call (parameter types, annotations, which arguments
+ * are read back, finding the Arena) is done here, so a call is just: convert the arguments, invoke
+ * the handle, read back, convert the return value.
+ *
+ * In composed mode (see {@link PassportFactory#compose(String, Class)}) those steps are not run from Java code
+ * at all. The converters, read-backs and return conversion are folded around the downcall with MethodHandle
+ * combinators, so each method is one MethodHandle that the JIT can inline from end to end.
+ */
+final class ProxyMethod
+{
+    @FunctionalInterface
+    interface ArgConverter
+    {
+        Object convert(Object value, Arena arena);
+    }
+
+    @FunctionalInterface
+    interface ReadBack
+    {
+        /** nativeArg is what the converter made, for most types the MemorySegment passed to C. */
+        void read(Object value, Object nativeArg);
+    }
+
+    private static final ArgConverter PASS_THROUGH = (value, arena) -> value;
+
+    private static final MethodHandle CONVERT;
+    private static final MethodHandle READ_BACK_RETURN;
+    private static final MethodHandle READ_BACK_VOID;
+    private static final MethodHandle NEW_POINTER;
+    private static final MethodHandle READ_STRING;
+    private static final MethodHandle VIEW_OF;
+    private static final MethodHandle SEGMENT_OF;
+    private static final MethodHandle OPEN_CONFINED;
+    private static final MethodHandle OPEN_POOLED;
+    private static final MethodHandle CLOSE_RETURN;
+    private static final MethodHandle CLOSE_VOID;
+
+    static
+    {
+        var lookup = MethodHandles.lookup();
+        try {
+            CONVERT = lookup.findStatic(ProxyMethod.class, "convert",
+                    MethodType.methodType(Object.class, ArgConverter.class, Arena.class, Object.class));
+            READ_BACK_RETURN = lookup.findStatic(ProxyMethod.class, "readBackReturn",
+                    MethodType.methodType(Object.class, ReadBack.class, Object.class, Object.class, Object.class));
+            READ_BACK_VOID = lookup.findStatic(ProxyMethod.class, "readBackVoid",
+                    MethodType.methodType(void.class, ReadBack.class, Object.class, Object.class));
+            NEW_POINTER = lookup.findStatic(ProxyMethod.class, "newPointer",
+                    MethodType.methodType(Object.class, Constructor.class, MemorySegment.class));
+            READ_STRING = lookup.findStatic(Utils.class, "readString",
+                    MethodType.methodType(String.class, MemorySegment.class));
+            VIEW_OF = lookup.findStatic(StructViews.class, "of",
+                    MethodType.methodType(StructView.class, Class.class, MemorySegment.class));
+            SEGMENT_OF = lookup.findStatic(ProxyMethod.class, "segmentOf",
+                    MethodType.methodType(MemorySegment.class, Object.class));
+            OPEN_CONFINED = lookup.findStatic(Arena.class, "ofConfined", MethodType.methodType(Arena.class));
+            OPEN_POOLED = lookup.findStatic(ThreadLocalArena.class, "acquire", MethodType.methodType(ThreadLocalArena.class)).
+                    asType(MethodType.methodType(Arena.class));
+            CLOSE_RETURN = lookup.findStatic(ProxyMethod.class, "closeArena",
+                    MethodType.methodType(Object.class, Throwable.class, Object.class, Arena.class));
+            CLOSE_VOID = lookup.findStatic(ProxyMethod.class, "closeArena",
+                    MethodType.methodType(void.class, Throwable.class, Arena.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final String m_name;
+    /** The downcall, adapted to take all the native arguments as one Object[] and return Object. */
+    private final MethodHandle m_handle;
+    /** Index in the Java arguments of the Arena the caller passed, or -1. */
+    private final int m_arenaIndex;
+    /** For each native argument, the index of the Java argument it comes from. */
+    private final int[] m_javaIndex;
+    private final ArgConverter[] m_converters;
+    /** Native argument index to read back, paired with m_readBacks. */
+    private final int[] m_readBackIndex;
+    private final ReadBack[] m_readBacks;
+    /** In composed mode, the whole call as (Arena, Object[] javaArgs) -> Object. */
+    private final MethodHandle m_composed;
+    /**
+     * In composed mode, the whole call as (Object[] javaArgs) -> Object with the Arena opened and closed inside
+     * the handle. Null if the method takes an Arena from the caller.
+     */
+    private final MethodHandle m_composedCall;
+    private final boolean m_needsArena;
+    private final boolean m_pooled;
+    private final boolean m_returnsString;
+    private final Constructor<?> m_returnPointer;
+    private final Class<? extends StructView> m_returnView;
+    /** True if the method returns a CompletableFuture, the native call is then run by {@link AsyncCalls}. */
+    private final boolean m_async;
+    /** True for a Blocking method, the native call is run by {@link AsyncCalls#offload} when called from a virtual thread. */
+    private final boolean m_blocking;
+
+    ProxyMethod(Method method, MethodHandle handle, boolean allArraysAreReadBack)
+    {
+        this(method, handle, allArraysAreReadBack, false);
+    }
+
+    /**
+     * @param method The interface method.
+     * @param handle The downcall from {@link PassportFactory#loadMethodHandles(String, Class)}, or null if it was not found.
+     * @param allArraysAreReadBack True if the interface is annotated with RefArg.
+     * @param compose True to fold the whole call into one MethodHandle.
+     */
+    ProxyMethod(Method method, MethodHandle handle, boolean allArraysAreReadBack, boolean compose)
+    {
+        m_name = method.getName();
+
+        Parameter[] params = method.getParameters();
+        int arenaIndex = -1;
+        List<Integer> javaIndex = new ArrayList<>();
+        for (int n = 0; n < params.length; ++n)
+        {
+            if (Arena.class.equals(params[n].getType()))
+                arenaIndex = n;
+            else
+                javaIndex.add(n);
+        }
+        m_arenaIndex = arenaIndex;
+        m_javaIndex = javaIndex.stream().mapToInt(Integer::intValue).toArray();
+
+        m_converters = new ArgConverter[m_javaIndex.length];
+        List<Integer> readBackIndex = new ArrayList<>();
+        List<ReadBack> readBacks = new ArrayList<>();
+        boolean needsArena = false;
+        List<Integer> cstringArrays = new ArrayList<>();
+        boolean heapAccess = PassportWriter.isHeapAccess(method.getAnnotation(Critical.class));
+
+        for (int n = 0; n < m_javaIndex.length; ++n)
+        {
+            Parameter p = params[m_javaIndex[n]];
+            Class<?> type = p.getType();
+
+            if (type.isPrimitive())
+            {
+                m_converters[n] = PASS_THROUGH;
+                continue;
+            }
+
+            if (NativeArray.class.isAssignableFrom(type))
+            {
+                // Already in native memory, only the address is passed
+                if (p.getAnnotation(PtrPtrArg.class) == null)
+                    m_converters[n] = (value, arena) -> value == null ? MemorySegment.NULL : ((NativeArray) value).getPtr();
+                else if (NativeMatrix.class.isAssignableFrom(type))
+                    m_converters[n] = (value, arena) -> value == null ? MemorySegment.NULL : ((NativeMatrix) value).getPtrPtr();
+                else
+                    throw new PassportException("PtrPtrArg can only be used with a NativeMatrix: " + method.getName());
+                continue;
+            }
+
+            if (StructView.class.isAssignableFrom(type))
+            {
+                m_converters[n] = (value, arena) -> value == null ? MemorySegment.NULL : ((StructView) value).segment();
+                continue;
+            }
+
+            // Memory that is already native is passed as is, there is nothing to allocate
+            if (MemorySegment.class.equals(type))
+            {
+                m_converters[n] = (value, arena) -> value == null ? MemorySegment.NULL : value;
+                continue;
+            }
+
+            if (isGenericPtr(type) && p.getAnnotation(PtrPtrArg.class) == null)
+            {
+                m_converters[n] = (value, arena) -> value == null ? MemorySegment.NULL : ((GenericPointer) value).getPtr();
+                continue;
+            }
+
+            if (String.class.equals(type) && PassportWriter.isCachedString(p, method))
+            {
+                m_converters[n] = (value, arena) -> StringCache.get((String) value);
+                continue;
+            }
+
+            if (heapAccess && ArraySlice.class.equals(type))
+            {
+                m_converters[n] = (value, arena) -> Utils.toHeapMS((ArraySlice<?>) value);
+                continue;
+            }
+
+            if (heapAccess && Buffer.class.isAssignableFrom(type))
+            {
+                m_converters[n] = (value, arena) -> Utils.toHeapMS((Buffer) value);
+                continue;
+            }
+
+            if (heapAccess && type.isArray() && type.getComponentType().isPrimitive() && p.getAnnotation(PtrPtrArg.class) == null)
+            {
+                m_converters[n] = heapConverterFor(type);
+                continue;
+            }
+
+            m_converters[n] = converterFor(type, p.getAnnotation(PtrPtrArg.class) != null, !PassportWriter.isCopyIn(p));
+            needsArena = true;
+            if (String[].class.equals(type) && PassportWriter.isCopyIn(p))
+                cstringArrays.add(n);
+
+            ReadBack rb = readBackFor(type, p.getAnnotation(PtrPtrArg.class) != null);
+            if (rb != null && (MemoryBlock.class.equals(type) ||
+                    PassportWriter.isReadBack(p, (type.isArray() || ArraySlice.class.equals(type) || Buffer.class.isAssignableFrom(type)) && allArraysAreReadBack)))
+            {
+                readBackIndex.add(n);
+                readBacks.add(rb);
+            }
+        }
+        m_needsArena = needsArena;
+        m_pooled = method.getAnnotation(PooledArena.class) != null ||
+                method.getDeclaringClass().getAnnotation(PooledArena.class) != null;
+        m_readBackIndex = readBackIndex.stream().mapToInt(Integer::intValue).toArray();
+        m_readBacks = readBacks.toArray(ReadBack[]::new);
+
+        m_async = CompletableFuture.class.equals(method.getReturnType());
+        m_blocking = !m_async && method.getAnnotation(Critical.class) == null &&
+                (method.getAnnotation(Blocking.class) != null || method.getDeclaringClass().getAnnotation(Blocking.class) != null);
+        Class<?> retType = PassportFactory.resultType(method);
+        m_returnsString = String.class.equals(retType);
+        Constructor<?> retCons = null;
+        if (!retType.isPrimitive() && isGenericPtr(retType))
+        {
+            try {
+                retCons = retType.getConstructor(MemorySegment.class);
+            }
+            catch (NoSuchMethodException ex) {
+                throw new PassportException(retType.getName() + " needs a public constructor that takes a MemorySegment");
+            }
+        }
+        m_returnPointer = retCons;
+        m_returnView = StructView.class.isAssignableFrom(retType) ? retType.asSubclass(StructView.class) : null;
+
+        // A String[] is converted to a CStringArray, the downcall is given its segment
+        for (int n : cstringArrays)
+            handle = handle == null ? null : MethodHandles.filterArguments(handle, n, SEGMENT_OF);
+
+        m_handle = handle == null ? null : handle.asSpreader(Object[].class, m_javaIndex.length).
+                asType(MethodType.methodType(Object.class, Object[].class));
+        // An async call is split between the calling thread and the executor, so it is never composed
+        MethodHandle composed = handle == null || !compose || m_async ? null : compose(method, handle);
+        m_composed = composed == null ? null : composed.asSpreader(Object[].class, params.length).
+                asType(MethodType.methodType(Object.class, Arena.class, Object[].class));
+        m_composedCall = composed == null || m_arenaIndex >= 0 ? null : openArena(composed).
+                asSpreader(Object[].class, params.length).asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    /**
+     * Takes the Arena parameter off of a composed handle: the Arena is opened and closed in the handle
+     * (foldArguments + tryFinally), or null is passed if the method does not allocate.
+     */
+    private MethodHandle openArena(MethodHandle composed)
+    {
+        if (!m_needsArena)
+            return MethodHandles.insertArguments(composed, 0, (Object) null);
+
+        Class<?> ret = composed.type().returnType();
+        MethodHandle close = ret == void.class ? CLOSE_VOID :
+                CLOSE_RETURN.asType(MethodType.methodType(ret, Throwable.class, ret, Arena.class));
+        MethodHandle h = MethodHandles.tryFinally(composed, close);
+        return MethodHandles.foldArguments(h, m_pooled ? OPEN_POOLED : OPEN_CONFINED);
+    }
+
+    /**
+     * Builds (Arena, javaArgs...) -> return type around the downcall. Every parameter of the handle being built
+     * is tracked by a slot: a value &gt;= 0 is that native argument, JAVA + n is Java argument n, and ARENA
+     * is the Arena used for allocations. At the end all of the slots are mapped onto the Java arguments.
+     */
+    private MethodHandle compose(Method method, MethodHandle downcall)
+    {
+        final int ARENA = -1;
+        final int JAVA = 1 << 16;
+
+        Class<?>[] javaTypes = method.getParameterTypes();
+        MethodHandle h = downcall;
+        List<Integer> slots = new ArrayList<>();
+        for (int n = 0; n < m_javaIndex.length; ++n)
+            slots.add(n);
+
+        // Read back after the call: post(ret, value, segment) is run on the result of the downcall
+        boolean isVoid = downcall.type().returnType() == void.class;
+        for (int n = 0; n < m_readBacks.length; ++n)
+        {
+            int nativeIndex = m_readBackIndex[n];
+            int javaIndex = m_javaIndex[nativeIndex];
+            Class<?> ret = h.type().returnType();
+
+            MethodHandle post;
+            if (isVoid)
+                post = MethodHandles.insertArguments(READ_BACK_VOID, 0, m_readBacks[n]).
+                        asType(MethodType.methodType(void.class, javaTypes[javaIndex], downcall.type().parameterType(nativeIndex)));
+            else
+                post = MethodHandles.insertArguments(READ_BACK_RETURN, 0, m_readBacks[n]).
+                        asType(MethodType.methodType(ret, ret, javaTypes[javaIndex], downcall.type().parameterType(nativeIndex)));
+
+            h = MethodHandles.collectArguments(post, 0, h);
+            slots.add(JAVA + javaIndex);
+            slots.add(nativeIndex);
+        }
+        h = dedupe(h, slots);
+
+        // Convert each Java argument into the native argument it becomes
+        for (int n = 0; n < m_javaIndex.length; ++n)
+        {
+            int pos = slots.indexOf(n);
+            int javaIndex = m_javaIndex[n];
+            if (javaTypes[javaIndex].isPrimitive())
+            {
+                slots.set(pos, JAVA + javaIndex);
+                continue;
+            }
+
+            MethodHandle conv = MethodHandles.insertArguments(CONVERT, 0, m_converters[n]).
+                    asType(MethodType.methodType(h.type().parameterType(pos), Arena.class, javaTypes[javaIndex]));
+            h = MethodHandles.collectArguments(h, pos, conv);
+            slots.remove(pos);
+            slots.add(pos, JAVA + javaIndex);
+            slots.add(pos, ARENA);
+        }
+
+        if (m_returnsString)
+            h = MethodHandles.filterReturnValue(h, READ_STRING);
+        else if (m_returnPointer != null)
+            h = MethodHandles.filterReturnValue(h, MethodHandles.insertArguments(NEW_POINTER, 0, m_returnPointer));
+        else if (m_returnView != null)
+            h = MethodHandles.filterReturnValue(h, MethodHandles.insertArguments(VIEW_OF, 0, m_returnView));
+
+        // Map every slot onto (Arena, javaArgs...), Arena parameters of the method itself are simply never used
+        Class<?>[] target = new Class<?>[javaTypes.length + 1];
+        target[0] = Arena.class;
+        System.arraycopy(javaTypes, 0, target, 1, javaTypes.length);
+        int[] reorder = slots.stream().mapToInt(slot -> slot == ARENA ? 0 : slot - JAVA + 1).toArray();
+        return MethodHandles.permuteArguments(h, MethodType.methodType(h.type().returnType(), target), reorder);
+    }
+
+    /**
+     * Removes repeated slots so each value is passed to the handle once.
+     */
+    static MethodHandle dedupe(MethodHandle h, List<Integer> slots)
+    {
+        List<Integer> unique = slots.stream().distinct().toList();
+        if (unique.size() == slots.size())
+            return h;
+
+        Class<?>[] types = new Class<?>[unique.size()];
+        for (int n = 0; n < types.length; ++n)
+            types[n] = h.type().parameterType(slots.indexOf(unique.get(n)));
+
+        int[] reorder = slots.stream().mapToInt(unique::indexOf).toArray();
+        h = MethodHandles.permuteArguments(h, MethodType.methodType(h.type().returnType(), types), reorder);
+        slots.clear();
+        slots.addAll(unique);
+        return h;
+    }
+
+    Object invoke(Object[] args) throws Throwable
+    {
+        if (m_handle == null)
+            throw new Error("Method does not exist: " + m_name);
+
+        Arena passedArena = m_arenaIndex < 0 ? null : (Arena) args[m_arenaIndex];
+        if (m_async)
+            return invokeAsync(args, passedArena);
+        if (m_blocking && Thread.currentThread().isVirtual())
+            return invokeOffloaded(args, passedArena);
+        if (m_composedCall != null)
+            return (Object) m_composedCall.invokeExact(args);
+
+        if (!m_needsArena || passedArena != null)
+            return m_composed != null ? (Object) m_composed.invokeExact(passedArena, args) : call(args, passedArena);
+
+        try (var scope = m_pooled ? ThreadLocalArena.acquire() : Arena.ofConfined()) {
+            return m_composed != null ? (Object) m_composed.invokeExact((Arena) scope, args) : call(args, scope);
+        }
+    }
+
+    /**
+     * The arguments are converted here, the rest of the call is run by the executor. Memory for the arguments
+     * comes from a shared Arena that is closed when the call is done, unless the caller passed an Arena.
+     * Memory confined to this thread is rejected before anything is submitted, see {@link AsyncCalls}.
+     */
+    private Object invokeAsync(Object[] args, Arena passedArena) throws Throwable
+    {
+        Arena owned = m_needsArena && passedArena == null ? Arena.ofShared() : null;
+        try {
+            Object[] nativeArgs = nativeArgs(args, owned != null ? owned : passedArena);
+            AsyncCalls.checkShared(nativeArgs);
+            return AsyncCalls.submit(owned, () -> finish(args, nativeArgs, (Object) m_handle.invokeExact(nativeArgs)));
+        }
+        catch (Throwable th) {
+            if (owned != null)
+                owned.close();
+            throw th;
+        }
+    }
+
+    /**
+     * Called on a virtual thread: only the native call is handed to the executor, so the carrier thread is free
+     * while C blocks. The memory for the arguments is shared since the executor's thread uses it.
+     */
+    private Object invokeOffloaded(Object[] args, Arena passedArena) throws Throwable
+    {
+        try (var scope = m_needsArena && passedArena == null ? Arena.ofShared() : null) {
+            Object[] nativeArgs = nativeArgs(args, scope != null ? scope : passedArena);
+            AsyncCalls.checkShared(nativeArgs);
+            return finish(args, nativeArgs, AsyncCalls.offload(() -> (Object) m_handle.invokeExact(nativeArgs)));
+        }
+    }
+
+    private Object call(Object[] args, Arena arena) throws Throwable
+    {
+        Object[] nativeArgs = nativeArgs(args, arena);
+        return finish(args, nativeArgs, (Object) m_handle.invokeExact(nativeArgs));
+    }
+
+    private Object[] nativeArgs(Object[] args, Arena arena)
+    {
+        Object[] nativeArgs = new Object[m_javaIndex.length];
+        for (int n = 0; n < nativeArgs.length; ++n)
+            nativeArgs[n] = m_converters[n].convert(args[m_javaIndex[n]], arena);
+        return nativeArgs;
+    }
+
+    private Object finish(Object[] args, Object[] nativeArgs, Object ret) throws Throwable
+    {
+        for (int n = 0; n < m_readBacks.length; ++n)
+        {
+            int i = m_readBackIndex[n];
+            Object value = args[m_javaIndex[i]];
+            if (value != null)
+                m_readBacks[n].read(value, nativeArgs[i]);
+        }
+
+        if (m_returnsString)
+            return Utils.readString((MemorySegment) ret);
+        if (m_returnPointer != null)
+            return m_returnPointer.newInstance((MemorySegment) ret);
+        if (m_returnView != null)
+            return StructViews.of(m_returnView, (MemorySegment) ret);
+        return ret;
+    }
+
+    private static Object convert(ArgConverter conv, Arena arena, Object value)
+    {
+        return conv.convert(value, arena);
+    }
+
+    private static Object readBackReturn(ReadBack rb, Object ret, Object value, Object nativeArg)
+    {
+        if (value != null)
+            rb.read(value, nativeArg);
+        return ret;
+    }
+
+    private static void readBackVoid(ReadBack rb, Object value, Object nativeArg)
+    {
+        if (value != null)
+            rb.read(value, nativeArg);
+    }
+
+    private static MemorySegment segmentOf(Object nativeArg)
+    {
+        return nativeArg instanceof CStringArray strs ? strs.segment() : (MemorySegment) nativeArg;
+    }
+
+    private static Object closeArena(Throwable th, Object ret, Arena arena)
+    {
+        arena.close();
+        return ret;
+    }
+
+    private static void closeArena(Throwable th, Arena arena)
+    {
+        arena.close();
+    }
+
+    private static Object newPointer(Constructor<?> cons, MemorySegment segment) throws ReflectiveOperationException
+    {
+        return cons.newInstance(segment);
+    }
+
+    /**
+     * For Critical(allowHeapAccess = true), the array is handed to native code as is.
+     */
+    private static ArgConverter heapConverterFor(Class<?> type)
+    {
+        ArgConverter conv;
+        if (byte[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((byte[]) value);
+        else if (char[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((char[]) value);
+        else if (short[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((short[]) value);
+        else if (int[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((int[]) value);
+        else if (long[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((long[]) value);
+        else if (float[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((float[]) value);
+        else if (double[].class.equals(type))
+            conv = (value, arena) -> MemorySegment.ofArray((double[]) value);
+        else
+            throw new PassportException("Heap access is not supported for " + type.getSimpleName());
+
+        return (value, arena) -> value == null ? MemorySegment.NULL : conv.convert(value, arena);
+    }
+
+    private static ArgConverter converterFor(Class<?> type, boolean ptrPtr, boolean readBackOnly)
+    {
+        if (type.isRecord() || (type.isArray() && type.getComponentType().isRecord()))
+            return (value, arena) -> { throw new IllegalArgumentException("Record types not supported"); };
+
+        ArgConverter conv = null;
+        if (ptrPtr)
+        {
+            if (byte[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (byte[][]) value, readBackOnly);
+            else if (char[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (char[][]) value, readBackOnly);
+            else if (short[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (short[][]) value, readBackOnly);
+            else if (int[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (int[][]) value, readBackOnly);
+            else if (long[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (long[][]) value, readBackOnly);
+            else if (float[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (float[][]) value, readBackOnly);
+            else if (double[][].class.equals(type))
+                conv = (value, arena) -> Utils.toPtrPTrMS(arena, (double[][]) value, readBackOnly);
+        }
+        else if (isGenericPtr(type))
+            conv = (value, arena) -> ((GenericPointer) value).getPtr();
+        else if (type.isArray() && !type.getComponentType().isPrimitive() && isGenericPtr(type.getComponentType()))
+            conv = (value, arena) -> Utils.toMS(arena, (GenericPointer[]) value, readBackOnly);
+        else if (ArraySlice.class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (ArraySlice<?>) value, readBackOnly);
+        else if (Buffer.class.isAssignableFrom(type))
+            conv = (value, arena) -> Utils.toMS(arena, (Buffer) value, readBackOnly);
+        else if (String.class.equals(type))
+            conv = (value, arena) -> Utils.toCString((String) value, arena);
+        else if (MemoryBlock.class.equals(type))
+            conv = (value, arena) -> ((MemoryBlock) value).toPtr(arena);
+        else if (String[].class.equals(type) && readBackOnly)
+            conv = (value, arena) -> arena.allocate(ValueLayout.ADDRESS.byteSize() * ((String[]) value).length);
+        else if (String[].class.equals(type))
+            conv = (value, arena) -> CStringArray.of((String[]) value, arena);
+        else if (byte[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (byte[]) value, readBackOnly);
+        else if (char[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (char[]) value, readBackOnly);
+        else if (short[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (short[]) value, readBackOnly);
+        else if (int[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (int[]) value, readBackOnly);
+        else if (long[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (long[]) value, readBackOnly);
+        else if (float[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (float[]) value, readBackOnly);
+        else if (double[].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (double[]) value, readBackOnly);
+        else if (byte[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (byte[][]) value, readBackOnly);
+        else if (char[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (char[][]) value, readBackOnly);
+        else if (short[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (short[][]) value, readBackOnly);
+        else if (int[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (int[][]) value, readBackOnly);
+        else if (long[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (long[][]) value, readBackOnly);
+        else if (float[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (float[][]) value, readBackOnly);
+        else if (double[][].class.equals(type))
+            conv = (value, arena) -> Utils.toMS(arena, (double[][]) value, readBackOnly);
+
+        // Anything else (ex. MemorySegment) is handed to the native call as is
+        ArgConverter nonNull = conv == null ? PASS_THROUGH : conv;
+        return (value, arena) -> value == null ? MemorySegment.NULL : nonNull.convert(value, arena);
+    }
+
+    private static ReadBack readBackFor(Class<?> type, boolean ptrPtr)
+    {
+        if (byte[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((byte[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((byte[][]) value, (MemorySegment) seg);
+        if (char[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((char[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((char[][]) value, (MemorySegment) seg);
+        if (short[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((short[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((short[][]) value, (MemorySegment) seg);
+        if (int[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((int[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((int[][]) value, (MemorySegment) seg);
+        if (long[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((long[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((long[][]) value, (MemorySegment) seg);
+        if (float[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((float[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((float[][]) value, (MemorySegment) seg);
+        if (double[][].class.equals(type))
+            return ptrPtr ? (value, seg) -> Utils.toPtrPtrArr((double[][]) value, (MemorySegment) seg) : (value, seg) -> Utils.toArr((double[][]) value, (MemorySegment) seg);
+        if (byte[].class.equals(type))
+            return (value, seg) -> Utils.toArr((byte[]) value, (MemorySegment) seg);
+        if (char[].class.equals(type))
+            return (value, seg) -> Utils.toArr((char[]) value, (MemorySegment) seg);
+        if (short[].class.equals(type))
+            return (value, seg) -> Utils.toArr((short[]) value, (MemorySegment) seg);
+        if (int[].class.equals(type))
+            return (value, seg) -> Utils.toArr((int[]) value, (MemorySegment) seg);
+        if (long[].class.equals(type))
+            return (value, seg) -> Utils.toArr((long[]) value, (MemorySegment) seg);
+        if (float[].class.equals(type))
+            return (value, seg) -> Utils.toArr((float[]) value, (MemorySegment) seg);
+        if (double[].class.equals(type))
+            return (value, seg) -> Utils.toArr((double[]) value, (MemorySegment) seg);
+        if (ArraySlice.class.equals(type))
+            return (value, seg) -> Utils.toArr((ArraySlice<?>) value, (MemorySegment) seg);
+        if (Buffer.class.isAssignableFrom(type))
+            return (value, seg) -> Utils.toArr((Buffer) value, (MemorySegment) seg);
+        if (String[].class.equals(type))
+            return (value, arg) -> {
+                if (arg instanceof CStringArray strs)
+                    strs.readBack((String[]) value);
+                else
+                    Utils.fromCString((MemorySegment) arg, (String[]) value);
+            };
+        if (MemoryBlock.class.equals(type))
+            return (value, seg) -> ((MemoryBlock) value).readBack();
+        if (type.isArray() && !type.getComponentType().isPrimitive() && isGenericPtr(type.getComponentType()))
+            return (value, seg) -> Utils.toArr((GenericPointer[]) value, (MemorySegment) seg);
+        return null;
+    }
+}
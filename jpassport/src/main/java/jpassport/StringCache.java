@@ -0,0 +1,116 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The C strings used for {@link jpassport.annotations.CachedString} arguments. Strings are looked up by their
+ * contents in a ConcurrentHashMap, so a hit takes no lock. The size defaults to 1024 strings and can be set with
+ * the system property <code>jpassport.string.cache.size</code>.
+ *
+ * Eviction is approximate (the CLOCK algorithm): a hit marks its string as used. Once the cache is over its size,
+ * one thread sweeps it, dropping the strings that were not used since the last sweep and unmarking the others,
+ * until the cache is down to 3/4 of its size. Other threads do not wait for the sweep.
+ *
+ * Each C string has its own automatic Arena, so a dropped string is only freed once nothing refers to it, a call that
+ * is using it when it is dropped is not affected.
+ */
+public final class StringCache
+{
+    private static final int MAX_SIZE = Integer.getInteger("jpassport.string.cache.size", 1024);
+
+    private static final ConcurrentHashMap<String, Entry> s_strings = new ConcurrentHashMap<>(64);
+    private static final ReentrantLock s_sweep = new ReentrantLock();
+
+    private static final class Entry
+    {
+        final MemorySegment m_cstr;
+        volatile boolean m_used;
+
+        Entry(String s)
+        {
+            m_cstr = Arena.ofAuto().allocateFrom(s);
+        }
+    }
+
+    private StringCache()
+    {
+    }
+
+    /**
+     * @param s The String to pass to native code.
+     * @return The cached C string, or NULL if s is null.
+     */
+    public static MemorySegment get(String s)
+    {
+        if (s == null)
+            return MemorySegment.NULL;
+
+        Entry entry = s_strings.get(s);
+        if (entry != null)
+        {
+            // Only write when the flag changes, a hot string is then just read by every thread
+            if (!entry.m_used)
+                entry.m_used = true;
+            return entry.m_cstr;
+        }
+
+        entry = s_strings.computeIfAbsent(s, Entry::new);
+        if (s_strings.size() > MAX_SIZE)
+            sweep();
+        return entry.m_cstr;
+    }
+
+    private static void sweep()
+    {
+        if (!s_sweep.tryLock())
+            return;
+
+        try {
+            int target = MAX_SIZE - MAX_SIZE / 4;
+            while (s_strings.size() > target)
+            {
+                for (var it = s_strings.values().iterator(); it.hasNext() && s_strings.size() > target; )
+                {
+                    Entry entry = it.next();
+                    if (entry.m_used)
+                        entry.m_used = false;
+                    else
+                        it.remove();
+                }
+            }
+        }
+        finally {
+            s_sweep.unlock();
+        }
+    }
+
+    /**
+     * @return The number of strings in the cache.
+     */
+    public static int size()
+    {
+        return s_strings.size();
+    }
+
+    /**
+     * Drops every string from the cache.
+     */
+    public static void clear()
+    {
+        s_strings.clear();
+    }
+}
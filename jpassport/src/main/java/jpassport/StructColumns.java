@@ -0,0 +1,216 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jpassport.annotations.Ptr;
+
+import java.lang.foreign.GroupLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.ValueLayout;
+import java.lang.reflect.RecordComponent;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+
+/**
+ * An array of C structs held as one Java array per primitive member (struct of arrays) instead of one Record
+ * per struct. Reading a million structs this way makes a handful of arrays rather than a million Records.
+ *
+ * <pre>
+ * StructColumns cols = StructColumns.read(PassingData.class, structs, count);
+ * int[] ints = cols.ints("s_int");
+ * double[] doubles = cols.doubles("s_double");
+ *
+ * StructColumns toPass = StructColumns.allocate(PassingData.class, count);
+ * Arrays.fill(toPass.ints("s_int"), 5);
+ * MemorySegment structs = toPass.write(arena);
+ * </pre>
+ *
+ * Members of embedded Records are named with a dot, ex. "ts.s_int". Members that are not primitives
+ * (Strings, pointers, Array members) have no column, and are left alone by {@link #write(MemorySegment)}.
+ */
+public final class StructColumns
+{
+    private record Column(long offset, Object values) {}
+
+    private final GroupLayout m_layout;
+    private final int m_count;
+    private final Map<String, Column> m_columns = new LinkedHashMap<>();
+
+    private StructColumns(Class<? extends Record> record, int count)
+    {
+        if (count < 0)
+            throw new IllegalArgumentException("Negative count: " + count);
+
+        m_layout = Utils.structLayout(record);
+        m_count = count;
+        addColumns(record, m_layout, 0, "");
+    }
+
+    /**
+     * @param record The Record that describes the struct.
+     * @param count The number of structs.
+     * @return Columns of zeros for count structs.
+     */
+    public static StructColumns allocate(Class<? extends Record> record, int count)
+    {
+        return new StructColumns(record, count);
+    }
+
+    /**
+     * @param record The Record that describes the struct.
+     * @param structs Memory holding the structs one after another, ex. a pointer returned by C.
+     * @param count The number of structs to read.
+     * @return The columns of the structs.
+     */
+    public static StructColumns read(Class<? extends Record> record, MemorySegment structs, int count)
+    {
+        StructColumns cols = new StructColumns(record, count);
+        cols.read(structs);
+        return cols;
+    }
+
+    /**
+     * Reads the structs into the existing columns, so the same arrays can be filled over and over.
+     */
+    public void read(MemorySegment structs)
+    {
+        MemorySegment all = Utils.resize(structs, byteSize());
+        long stride = m_layout.byteSize();
+        for (Column col : m_columns.values())
+        {
+            long offset = col.offset();
+            switch (col.values())
+            {
+                case byte[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) arr[n] = all.get(ValueLayout.JAVA_BYTE, offset); }
+                case short[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) arr[n] = all.get(ValueLayout.JAVA_SHORT, offset); }
+                case int[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) arr[n] = all.get(ValueLayout.JAVA_INT, offset); }
+                case long[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) arr[n] = all.get(ValueLayout.JAVA_LONG, offset); }
+                case float[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) arr[n] = all.get(ValueLayout.JAVA_FLOAT, offset); }
+                case double[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) arr[n] = all.get(ValueLayout.JAVA_DOUBLE, offset); }
+                default -> throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * Writes every column into structs that are already in native memory.
+     */
+    public void write(MemorySegment structs)
+    {
+        MemorySegment all = Utils.resize(structs, byteSize());
+        long stride = m_layout.byteSize();
+        for (Column col : m_columns.values())
+        {
+            long offset = col.offset();
+            switch (col.values())
+            {
+                case byte[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) all.set(ValueLayout.JAVA_BYTE, offset, arr[n]); }
+                case short[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) all.set(ValueLayout.JAVA_SHORT, offset, arr[n]); }
+                case int[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) all.set(ValueLayout.JAVA_INT, offset, arr[n]); }
+                case long[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) all.set(ValueLayout.JAVA_LONG, offset, arr[n]); }
+                case float[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) all.set(ValueLayout.JAVA_FLOAT, offset, arr[n]); }
+                case double[] arr -> { for (int n = 0; n < arr.length; ++n, offset += stride) all.set(ValueLayout.JAVA_DOUBLE, offset, arr[n]); }
+                default -> throw new IllegalStateException();
+            }
+        }
+    }
+
+    /**
+     * @return New, zeroed memory for the structs with every column written into it.
+     */
+    public MemorySegment write(SegmentAllocator allocator)
+    {
+        MemorySegment structs = allocator.allocate(byteSize(), m_layout.byteAlignment());
+        write(structs);
+        return structs;
+    }
+
+    public int count()
+    {
+        return m_count;
+    }
+
+    /**
+     * @return The size of all of the structs in native memory.
+     */
+    public long byteSize()
+    {
+        return m_layout.byteSize() * m_count;
+    }
+
+    /**
+     * @return The names of all of the columns, in the order they are in the struct.
+     */
+    public Set<String> names()
+    {
+        return Collections.unmodifiableSet(m_columns.keySet());
+    }
+
+    public byte[] bytes(String name)
+    {
+        return column(name, byte[].class);
+    }
+
+    public short[] shorts(String name)
+    {
+        return column(name, short[].class);
+    }
+
+    public int[] ints(String name)
+    {
+        return column(name, int[].class);
+    }
+
+    public long[] longs(String name)
+    {
+        return column(name, long[].class);
+    }
+
+    public float[] floats(String name)
+    {
+        return column(name, float[].class);
+    }
+
+    public double[] doubles(String name)
+    {
+        return column(name, double[].class);
+    }
+
+    private <A> A column(String name, Class<A> type)
+    {
+        Column col = m_columns.get(name);
+        if (col == null)
+            throw new IllegalArgumentException("No column named " + name);
+        if (!type.isInstance(col.values()))
+            throw new IllegalArgumentException("Column " + name + " is a " + col.values().getClass().getSimpleName() + " not a " + type.getSimpleName());
+        return type.cast(col.values());
+    }
+
+    private void addColumns(Class<?> record, GroupLayout layout, long baseOffset, String prefix)
+    {
+        for (RecordComponent rc : record.getRecordComponents())
+        {
+            Class<?> type = rc.getType();
+            long offset = baseOffset + layout.byteOffset(groupElement(rc.getName()));
+
+            if (type.isPrimitive())
+                m_columns.put(prefix + rc.getName(), new Column(offset, java.lang.reflect.Array.newInstance(type, m_count)));
+            else if (type.isRecord() && rc.getAnnotation(Ptr.class) == null)
+                addColumns(type, (GroupLayout) layout.select(groupElement(rc.getName())), offset, prefix + rc.getName() + ".");
+        }
+    }
+}
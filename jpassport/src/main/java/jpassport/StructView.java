@@ -0,0 +1,38 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A C struct that is read and written in place in native memory. Extend this interface, annotate it with
+ * {@link jpassport.annotations.ViewOf}, and declare a method for each struct member you need:
+ *
+ * <ul>
+ * <li><code>int s_int()</code> and <code>void s_int(int value)</code> for primitives and MemorySegments.</li>
+ * <li><code>String name()</code> for a char* member, and <code>MemorySegment name()</code> for any pointer member.</li>
+ * <li><code>double values(int index)</code>, <code>void values(int index, double value)</code>, <code>double[] values()</code>
+ * and <code>void values(double[] value)</code> for an Array member.</li>
+ * <li><code>OtherView inner()</code> for a member that is another struct (or a Ptr to one), where OtherView is a
+ * StructView of that struct.</li>
+ * </ul>
+ *
+ * Unlike a Record, nothing is copied when a view is passed to or returned from a native method, only the address
+ * is passed. Use {@link StructViews} to make views.
+ */
+public interface StructView
+{
+    /**
+     * @return The native memory of the struct.
+     */
+    MemorySegment segment();
+}
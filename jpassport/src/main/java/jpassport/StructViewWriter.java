@@ -0,0 +1,209 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jpassport.annotations.Array;
+import jpassport.annotations.Ptr;
+import jpassport.annotations.ViewOf;
+import jpassport.model.JMember;
+import jpassport.model.JMethod;
+import jpassport.model.JType;
+
+import java.lang.foreign.MemorySegment;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the class behind a {@link StructView}. The class holds only the MemorySegment of the struct, every
+ * accessor reads or writes the native memory directly using the same cached offsets the Passport classes use.
+ */
+final class StructViewWriter
+{
+    private static int Class_ID = 1; //Used to make unique package names
+
+    private final Class<? extends StructView> m_view;
+    private final String m_fullClassName;
+    private final StringBuilder m_source = new StringBuilder();
+
+    StructViewWriter(Class<? extends StructView> view)
+    {
+        ViewOf viewOf = view.getAnnotation(ViewOf.class);
+        if (viewOf == null)
+            throw new PassportException(view.getName() + " must have a ViewOf annotation");
+
+        m_view = view;
+        String packageName = "jpassport.view_" + Class_ID++;
+        String className = view.getSimpleName() + "_view";
+        m_fullClassName = packageName + "." + className;
+
+        JType viewType = JType.of(view);
+        JType record = JType.of(viewOf.value());
+        Set<JType> records = new HashSet<>(PassportWriter.findSubRecords(record));
+        records.add(record);
+
+        m_source.append(String.format("""
+                package %s;
+
+                import %s;
+                import jpassport.Utils;
+                import jpassport.StructViews;
+                import java.lang.foreign.*;
+                import java.util.Objects;
+                import static java.lang.foreign.ValueLayout.*;
+                import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+
+                /**
+                This is code generated by the JPassport library
+                https://github.com/boulder-on/JPassport
+                **/
+                public final class %s implements %s {
+                    %s
+                    public static final GroupLayout LAYOUT = %sLayout;
+
+                    private final MemorySegment m_segment;
+
+                    public %s(MemorySegment segment)
+                    {
+                        m_segment = segment;
+                    }
+
+                    @Override
+                    public MemorySegment segment()
+                    {
+                        return m_segment;
+                    }
+
+                """,
+                packageName,
+                viewType.name(),
+                className, viewType.simpleName(),
+                PassportWriter.buildStructLayouts(records),
+                record.simpleName(),
+                className));
+
+        for (JMethod method : viewType.methods())
+            addAccessor(record, method);
+
+        m_source.append("}\n");
+    }
+
+    /**
+     * @return The class implementing the view, compiled and loaded.
+     */
+    Class<? extends StructView> build() throws ClassNotFoundException
+    {
+        return PassportCompiler.define(m_view, PassportCompiler.compile(m_fullClassName, m_source.toString(), m_view), m_fullClassName);
+    }
+
+    String getSource()
+    {
+        return m_source.toString();
+    }
+
+    private void addAccessor(JType record, JMethod method)
+    {
+        JMember member = record.recordComponents().stream().filter(m -> m.name().equals(method.name())).findFirst()
+                .orElseThrow(() -> new PassportException(m_view.getSimpleName() + "." + method.name() + " does not match a member of " + record.simpleName()));
+
+        String offset = PassportWriter.offsetName(record, member);
+        JType type = member.type();
+        JType retType = method.returnType();
+        List<JMember> params = method.parameters();
+        String signature = String.format("\t@Override\n\tpublic %s %s(%s)\n\t{\n", retType.name(), method.name(),
+                String.join(", ", params.stream().map(p -> p.type().name() + " " + p.name()).toList()));
+
+        String body;
+        if (params.isEmpty())
+            body = getter(member, retType, offset);
+        else if (params.size() == 1 && retType.is(void.class))
+            body = setter(member, params.get(0), offset);
+        else if (params.size() == 1 && type.isArray() && member.hasAnnotation(Array.class) && params.get(0).type().is(int.class))
+            body = String.format("\t\treturn m_segment.get(JAVA_%1$s, %2$s + (long) Objects.checkIndex(%3$s, %4$d) * JAVA_%1$s.byteSize());\n",
+                    layoutName(type.componentType()), offset, params.get(0).name(), member.getAnnotation(Array.class).length());
+        else if (params.size() == 2 && type.isArray() && member.hasAnnotation(Array.class) && params.get(0).type().is(int.class))
+            body = String.format("\t\tm_segment.set(JAVA_%1$s, %2$s + (long) Objects.checkIndex(%3$s, %4$d) * JAVA_%1$s.byteSize(), %5$s);\n",
+                    layoutName(type.componentType()), offset, params.get(0).name(), member.getAnnotation(Array.class).length(), params.get(1).name());
+        else
+            throw unsupported(method.name());
+
+        m_source.append(signature).append(body).append("\t}\n\n");
+    }
+
+    private String getter(JMember member, JType retType, String offset)
+    {
+        JType type = member.type();
+        boolean isAddress = isAddress(member);
+
+        if (type.isPrimitive() && retType.equals(type))
+            return String.format("\t\treturn m_segment.get(JAVA_%s, %s);\n", layoutName(type), offset);
+        if (isAddress && retType.is(MemorySegment.class))
+            return String.format("\t\treturn m_segment.get(ADDRESS, %s);\n", offset);
+        if (type.is(String.class) && retType.is(String.class))
+            return String.format("\t\treturn Utils.readString(m_segment.get(ADDRESS, %s));\n", offset);
+        if (PassportWriter.isGenericPtr(type) && retType.equals(type))
+            return String.format("\t\treturn new %s(m_segment.get(ADDRESS, %s));\n", type.name(), offset);
+        if (type.isRecord() && retType.isSubtypeOf(StructView.class))
+        {
+            if (member.hasAnnotation(Ptr.class))
+                return String.format("\t\treturn StructViews.of(%s.class, m_segment.get(ADDRESS, %s));\n", retType.name(), offset);
+            return String.format("\t\treturn StructViews.of(%s.class, m_segment.asSlice(%s, %sLayout.byteSize()));\n",
+                    retType.name(), offset, type.simpleName());
+        }
+        if (type.isArray() && member.hasAnnotation(Array.class) && retType.equals(type))
+        {
+            JType arrType = type.componentType();
+            return String.format("\t\treturn m_segment.asSlice(%1$s, %2$d * JAVA_%3$s.byteSize()).toArray(JAVA_%3$s);\n",
+                    offset, member.getAnnotation(Array.class).length(), layoutName(arrType));
+        }
+        throw unsupported(member.name());
+    }
+
+    private String setter(JMember member, JMember param, String offset)
+    {
+        JType type = member.type();
+        JType paramType = param.type();
+
+        if (type.isPrimitive() && paramType.equals(type))
+            return String.format("\t\tm_segment.set(JAVA_%s, %s, %s);\n", layoutName(type), offset, param.name());
+        if (isAddress(member) && paramType.is(MemorySegment.class))
+            return String.format("\t\tm_segment.set(ADDRESS, %s, %s);\n", offset, param.name());
+        if (PassportWriter.isGenericPtr(type) && paramType.equals(type))
+            return String.format("\t\tm_segment.set(ADDRESS, %s, %s.getPtr());\n", offset, param.name());
+        if (type.isArray() && member.hasAnnotation(Array.class) && paramType.equals(type))
+        {
+            JType arrType = type.componentType();
+            return String.format("""
+                    \t\tObjects.checkFromIndexSize(0, %1$s.length, %2$d);
+                    \t\tMemorySegment.copy(%1$s, 0, m_segment, JAVA_%3$s, %4$s, %1$s.length);
+                    """, param.name(), member.getAnnotation(Array.class).length(), layoutName(arrType), offset);
+        }
+        throw unsupported(member.name());
+    }
+
+    private static boolean isAddress(JMember member)
+    {
+        JType type = member.type();
+        return type.is(String.class) || type.is(MemorySegment.class) || PassportWriter.isGenericPtr(type)
+                || member.hasAnnotation(Ptr.class);
+    }
+
+    private static String layoutName(JType primitive)
+    {
+        return primitive.name().toUpperCase();
+    }
+
+    private PassportException unsupported(String name)
+    {
+        return new PassportException(m_view.getSimpleName() + "." + name + " is not a supported StructView accessor");
+    }
+}
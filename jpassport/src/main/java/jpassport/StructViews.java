@@ -0,0 +1,164 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.GroupLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Makes {@link StructView}s. The class behind a view is written and compiled the first time the view type
+ * is used, after that making a view only wraps the memory.
+ *
+ * <pre>
+ * try (var arena = Arena.ofConfined())
+ * {
+ *     PassingDataView data = StructViews.allocate(PassingDataView.class, arena);
+ *     data.s_int(5);
+ *     linked.passStruct(data);
+ *
+ *     MemorySegment many = StructViews.allocateArray(PassingDataView.class, arena, 1000);
+ *     linked.passStructArray(many, 1000);
+ *     for (PassingDataView d : StructViews.ofArray(PassingDataView.class, many))
+ *         total += d.s_double();
+ * }
+ * </pre>
+ */
+public final class StructViews
+{
+    private record ViewClass(MethodHandle constructor, GroupLayout layout) {}
+
+    private static final ClassValue<ViewClass> s_views = new ClassValue<>()
+    {
+        @Override
+        protected ViewClass computeValue(Class<?> type)
+        {
+            if (!type.isInterface() || !StructView.class.isAssignableFrom(type))
+                throw new IllegalArgumentException(type.getName() + " is not an interface that extends StructView");
+
+            try {
+                Class<?> impl = new StructViewWriter(type.asSubclass(StructView.class)).build();
+                var cons = MethodHandles.publicLookup().findConstructor(impl, MethodType.methodType(void.class, MemorySegment.class));
+                return new ViewClass(cons.asType(MethodType.methodType(StructView.class, MemorySegment.class)),
+                        (GroupLayout) impl.getField("LAYOUT").get(null));
+            }
+            catch (ReflectiveOperationException ex) {
+                throw new PassportException("Could not make the StructView " + type.getName() + ": " + ex.getMessage());
+            }
+        }
+    };
+
+    private StructViews()
+    {
+    }
+
+    /**
+     * @param view The view type.
+     * @param segment The memory of the struct. A pointer returned by C (with a size of 0) is resized to fit the struct.
+     * @return A view of the memory, or null if the segment is null or NULL.
+     */
+    public static <V extends StructView> V of(Class<V> view, MemorySegment segment)
+    {
+        if (segment == null || segment.address() == 0)
+            return null;
+
+        ViewClass vc = s_views.get(view);
+        try {
+            return view.cast((StructView) vc.constructor().invokeExact(Utils.resize(segment, vc.layout().byteSize())));
+        }
+        catch (Throwable th) {
+            throw new Error(th);
+        }
+    }
+
+    /**
+     * @return A view of a new, zeroed struct.
+     */
+    public static <V extends StructView> V allocate(Class<V> view, SegmentAllocator allocator)
+    {
+        return of(view, allocator.allocate(layout(view)));
+    }
+
+    /**
+     * @return Zeroed memory for count structs one after another, as C would lay out an array of them.
+     */
+    public static MemorySegment allocateArray(Class<? extends StructView> view, SegmentAllocator allocator, long count)
+    {
+        GroupLayout layout = layout(view);
+        return allocator.allocate(layout.byteSize() * count, layout.byteAlignment());
+    }
+
+    /**
+     * @param segment Memory holding an array of structs, its size gives the number of elements.
+     * @return A list of views, one per struct. Each view is made when it is asked for.
+     */
+    public static <V extends StructView> List<V> ofArray(Class<V> view, MemorySegment segment)
+    {
+        long size = layout(view).byteSize();
+        return ofArray(view, segment, (int) (segment.byteSize() / size));
+    }
+
+    /**
+     * @param segment Memory holding an array of structs, ex. a pointer returned by C.
+     * @param count The number of structs in the array.
+     * @return A list of views, one per struct. Each view is made when it is asked for.
+     */
+    public static <V extends StructView> List<V> ofArray(Class<V> view, MemorySegment segment, int count)
+    {
+        long size = layout(view).byteSize();
+        MemorySegment all = Utils.resize(segment, size * count);
+        return new ViewList<>(view, all, size, count);
+    }
+
+    /**
+     * @return The struct layout the view works with.
+     */
+    public static GroupLayout layout(Class<? extends StructView> view)
+    {
+        return s_views.get(view).layout();
+    }
+
+    private static final class ViewList<V extends StructView> extends AbstractList<V> implements RandomAccess
+    {
+        private final Class<V> m_view;
+        private final MemorySegment m_segment;
+        private final long m_size;
+        private final int m_count;
+
+        ViewList(Class<V> view, MemorySegment segment, long size, int count)
+        {
+            m_view = view;
+            m_segment = segment;
+            m_size = size;
+            m_count = count;
+        }
+
+        @Override
+        public V get(int index)
+        {
+            return of(m_view, m_segment.asSlice(m_size * Objects.checkIndex(index, m_count), m_size));
+        }
+
+        @Override
+        public int size()
+        {
+            return m_count;
+        }
+    }
+}
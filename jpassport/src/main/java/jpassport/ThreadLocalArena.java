@@ -0,0 +1,115 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+
+/**
+ * An Arena that hands out slices of one long-lived block of native memory per thread. This is used in place of
+ * Arena.ofConfined() for methods marked with {@link jpassport.annotations.PooledArena}, so passing a String or a
+ * small array does not malloc and free native memory on every call.
+ *
+ * <code>acquire()</code> marks the current position in the block, and <code>close()</code> moves back to it, so
+ * nested calls on the same thread (ex. a callback that calls another native method) each get their own space.
+ * If the block is too small the memory comes from a confined Arena instead, and the block is made bigger (up to 1MB)
+ * once the outermost call is done.
+ *
+ * Memory handed out by this Arena is only valid until it is closed. Unlike a confined Arena, using the memory after
+ * that is not caught, it will just hold whatever the next call put there.
+ */
+public final class ThreadLocalArena implements Arena
+{
+    private static final long INITIAL_SIZE = 8 * 1024;
+    /** Calls that need more than this always use a confined Arena, so one huge call doesn't pin memory forever. */
+    private static final long MAX_SIZE = 1024 * 1024;
+    private static final int MAX_DEPTH = 64;
+
+    private static final ThreadLocal<ThreadLocalArena> s_arenas = ThreadLocal.withInitial(ThreadLocalArena::new);
+
+    private MemorySegment m_block;
+    private long m_offset = 0;
+    private long m_wanted = 0;
+    private final long[] m_marks = new long[MAX_DEPTH];
+    private int m_depth = 0;
+    private Arena m_overflow;
+
+    private ThreadLocalArena()
+    {
+        m_block = Arena.ofAuto().allocate(INITIAL_SIZE, 16);
+    }
+
+    /**
+     * @return The Arena for the current thread. It must be closed on the same thread, use try-with-resources.
+     */
+    public static ThreadLocalArena acquire()
+    {
+        var arena = s_arenas.get();
+        if (arena.m_depth == MAX_DEPTH)
+            throw new PassportException("Too many nested calls using a pooled arena");
+
+        arena.m_marks[arena.m_depth++] = arena.m_offset;
+        return arena;
+    }
+
+    @Override
+    public MemorySegment allocate(long byteSize, long byteAlignment)
+    {
+        if (m_depth == 0)
+            throw new IllegalStateException("The pooled arena was used after it was closed");
+
+        long base = m_block.address();
+        long start = ((base + m_offset + byteAlignment - 1) & -byteAlignment) - base;
+        if (start + byteSize > m_block.byteSize())
+        {
+            if (start + byteSize <= MAX_SIZE)
+                m_wanted = Math.max(m_wanted, start + byteSize);
+            if (m_overflow == null)
+                m_overflow = Arena.ofConfined();
+            return m_overflow.allocate(byteSize, byteAlignment);
+        }
+
+        m_offset = start + byteSize;
+        // Match the other Arenas, memory is handed out zeroed
+        return m_block.asSlice(start, byteSize, byteAlignment).fill((byte) 0);
+    }
+
+    @Override
+    public MemorySegment.Scope scope()
+    {
+        return m_block.scope();
+    }
+
+    @Override
+    public void close()
+    {
+        if (m_depth == 0)
+            throw new IllegalStateException("The pooled arena is already closed");
+
+        m_offset = m_marks[--m_depth];
+        if (m_depth > 0)
+            return;
+
+        if (m_overflow != null)
+        {
+            m_overflow.close();
+            m_overflow = null;
+        }
+
+        if (m_wanted > m_block.byteSize())
+        {
+            // Nothing is using the old block now, the GC frees it
+            m_block = Arena.ofAuto().allocate(Math.min(Long.highestOneBit(m_wanted) << 1, MAX_SIZE), 16);
+            m_wanted = 0;
+        }
+    }
+}
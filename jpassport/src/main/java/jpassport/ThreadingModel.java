@@ -0,0 +1,32 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+/**
+ * Which threads a Passport makes its native calls on.
+ */
+public enum ThreadingModel
+{
+    /** Native calls are made on the thread that calls the method. */
+    ANY,
+
+    /**
+     * Every native call for the Passport is made on one worker thread of its own, for C libraries that are
+     * not thread-safe. Callers queue their calls and wait for the worker, calls that queue up while the worker
+     * is busy are run one after another without waking it again. Calls made from the worker itself (ex. from a
+     * callback) run right away.
+     *
+     * Memory passed in by the caller (an Arena, a MemorySegment or a StructView) is used on the worker thread,
+     * so it cannot come from a confined Arena. Methods returning CompletableFuture are not allowed.
+     */
+    SINGLE_THREAD
+}
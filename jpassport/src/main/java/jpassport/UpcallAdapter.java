@@ -0,0 +1,483 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport;
+
+import jpassport.annotations.Array;
+import jpassport.annotations.Ptr;
+import jpassport.annotations.RefArg;
+
+import java.lang.foreign.GroupLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
+
+/**
+ * Builds the target of an upcall from a functional interface. The arguments native code passes are converted
+ * to what the interface method asks for with the same MethodHandle combinators composed mode uses around a
+ * downcall, so an upcall does no reflection:
+ * <ul>
+ *     <li>primitives and MemorySegment are passed as is</li>
+ *     <li>a String is read from a char*</li>
+ *     <li>a StructView or NativeArray wraps the pointer without a copy, it is only valid until the method returns</li>
+ *     <li>a Record is read from a pointer to the struct</li>
+ *     <li>a primitive array is copied from the pointer, its length comes from an Array annotation. With RefArg
+ *     it is copied back to the pointer when the method returns.</li>
+ * </ul>
+ * The method may return void, a primitive, a MemorySegment, a GenericPointer, a NativeArray or a StructView.
+ */
+final class UpcallAdapter
+{
+    @FunctionalInterface
+    private interface MemberReader
+    {
+        Object read(MemorySegment struct, long offset) throws Throwable;
+    }
+
+    /**
+     * Reads one Record. The read is one MethodHandle, (MemorySegment struct, long offset) -> Object: the record's
+     * constructor with each of its arguments read straight from the struct, so nothing is boxed or put in an array.
+     */
+    private record RecordReader(MethodHandle read, long size)
+    {
+        Object read(MemorySegment struct, long offset) throws Throwable
+        {
+            return (Object) read.invokeExact(struct, offset);
+        }
+    }
+
+    private static final ClassValue<RecordReader> s_records = new ClassValue<>()
+    {
+        @Override
+        protected RecordReader computeValue(Class<?> type)
+        {
+            return recordReader(type);
+        }
+    };
+
+    private static final MethodHandle READ_ARRAY;
+    private static final MethodHandle WRITE_ARRAY_RETURN;
+    private static final MethodHandle WRITE_ARRAY_VOID;
+    private static final MethodHandle SIZED;
+    private static final MethodHandle IS_NULL;
+    private static final MethodHandle READ_RECORD;
+    private static final MethodHandle READ_STRING;
+    private static final MethodHandle VIEW_OF;
+    private static final MethodHandle ADDRESS_OF;
+    private static final MethodHandle MEMBER_READ;
+    private static final MethodHandle PLUS;
+    private static final MethodHandle GET_BYTE;
+    private static final MethodHandle GET_SHORT;
+    private static final MethodHandle GET_INT;
+    private static final MethodHandle GET_LONG;
+    private static final MethodHandle GET_FLOAT;
+    private static final MethodHandle GET_DOUBLE;
+
+    static
+    {
+        var lookup = MethodHandles.lookup();
+        try {
+            READ_ARRAY = lookup.findStatic(UpcallAdapter.class, "readArray",
+                    MethodType.methodType(Object.class, ValueLayout.class, MemorySegment.class, long.class));
+            WRITE_ARRAY_RETURN = lookup.findStatic(UpcallAdapter.class, "writeArrayReturn",
+                    MethodType.methodType(Object.class, ValueLayout.class, Object.class, Object.class, MemorySegment.class));
+            WRITE_ARRAY_VOID = lookup.findStatic(UpcallAdapter.class, "writeArrayVoid",
+                    MethodType.methodType(void.class, ValueLayout.class, Object.class, MemorySegment.class));
+            SIZED = lookup.findStatic(UpcallAdapter.class, "sized",
+                    MethodType.methodType(MemorySegment.class, ValueLayout.class, MemorySegment.class, long.class));
+            IS_NULL = lookup.findStatic(UpcallAdapter.class, "isNull",
+                    MethodType.methodType(boolean.class, MemorySegment.class));
+            READ_RECORD = lookup.findStatic(UpcallAdapter.class, "readRecord",
+                    MethodType.methodType(Object.class, Class.class, MemorySegment.class));
+            ADDRESS_OF = lookup.findStatic(UpcallAdapter.class, "addressOf",
+                    MethodType.methodType(MemorySegment.class, Object.class));
+            READ_STRING = lookup.findStatic(Utils.class, "readString",
+                    MethodType.methodType(String.class, MemorySegment.class));
+            VIEW_OF = lookup.findStatic(StructViews.class, "of",
+                    MethodType.methodType(StructView.class, Class.class, MemorySegment.class));
+            MEMBER_READ = lookup.findVirtual(MemberReader.class, "read",
+                    MethodType.methodType(Object.class, MemorySegment.class, long.class));
+            PLUS = lookup.findStatic(Long.class, "sum", MethodType.methodType(long.class, long.class, long.class));
+            GET_BYTE = getter(lookup, byte.class, ValueLayout.OfByte.class, ValueLayout.JAVA_BYTE);
+            GET_SHORT = getter(lookup, short.class, ValueLayout.OfShort.class, ValueLayout.JAVA_SHORT);
+            GET_INT = getter(lookup, int.class, ValueLayout.OfInt.class, ValueLayout.JAVA_INT);
+            GET_LONG = getter(lookup, long.class, ValueLayout.OfLong.class, ValueLayout.JAVA_LONG);
+            GET_FLOAT = getter(lookup, float.class, ValueLayout.OfFloat.class, ValueLayout.JAVA_FLOAT);
+            GET_DOUBLE = getter(lookup, double.class, ValueLayout.OfDouble.class, ValueLayout.JAVA_DOUBLE);
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private UpcallAdapter()
+    {
+    }
+
+    /**
+     * @param functional A public interface with one abstract method.
+     * @return (functional, native arguments...) -> native return, ready to be bound to an implementation.
+     */
+    static MethodHandle adapt(Class<?> functional)
+    {
+        Method method = functionalMethod(functional);
+        MethodHandle h;
+        try {
+            h = MethodHandles.publicLookup().unreflect(method);
+        }
+        catch (IllegalAccessException ex) {
+            throw new PassportException(functional.getName() + " must be public to be used as a callback");
+        }
+
+        boolean allArraysAreReadBack = functional.isAnnotationPresent(RefArg.class);
+        Parameter[] params = method.getParameters();
+        Class<?>[] javaTypes = method.getParameterTypes();
+        String name = functional.getSimpleName() + "." + method.getName();
+
+        // Slot 0 is the function object, n + 1 is native argument n and JAVA + n is Java argument n
+        final int JAVA = 1 << 16;
+        List<Integer> slots = new ArrayList<>();
+        slots.add(0);
+        for (int n = 0; n < params.length; ++n)
+            slots.add(JAVA + n);
+
+        // Copy arrays back to native memory once the method returns
+        boolean isVoid = h.type().returnType() == void.class;
+        for (int n = 0; n < params.length; ++n)
+        {
+            if (!javaTypes[n].isArray() || !(allArraysAreReadBack || params[n].isAnnotationPresent(RefArg.class)))
+                continue;
+
+            ValueLayout layout = elementLayout(name, javaTypes[n]);
+            Class<?> ret = h.type().returnType();
+            MethodHandle post;
+            if (isVoid)
+                post = MethodHandles.insertArguments(WRITE_ARRAY_VOID, 0, layout).
+                        asType(MethodType.methodType(void.class, javaTypes[n], MemorySegment.class));
+            else
+                post = MethodHandles.insertArguments(WRITE_ARRAY_RETURN, 0, layout).
+                        asType(MethodType.methodType(ret, ret, javaTypes[n], MemorySegment.class));
+
+            h = MethodHandles.collectArguments(post, 0, h);
+            slots.add(JAVA + n);
+            slots.add(n + 1);
+        }
+        h = ProxyMethod.dedupe(h, slots);
+
+        // Convert each native argument into the Java argument it becomes
+        Class<?>[] nativeTypes = new Class<?>[params.length];
+        for (int n = 0; n < params.length; ++n)
+        {
+            int pos = slots.indexOf(JAVA + n);
+            Class<?> type = javaTypes[n];
+            nativeTypes[n] = type.isPrimitive() ? type : MemorySegment.class;
+            if (type.isPrimitive() || MemorySegment.class.equals(type))
+            {
+                slots.set(pos, n + 1);
+                continue;
+            }
+
+            MethodHandle conv = converterFor(name, params[n], type);
+            int lengthArg = -1;
+            if (conv.type().parameterCount() == 2)
+            {
+                lengthArg = params[n].getAnnotation(Array.class).lengthArg();
+                if (lengthArg >= params.length || !isCount(javaTypes[lengthArg]))
+                    throw new PassportException(name + ": parameter " + lengthArg + " cannot be the length of " + params[n].getName());
+                conv = conv.asType(MethodType.methodType(type, MemorySegment.class, javaTypes[lengthArg]));
+            }
+
+            h = MethodHandles.collectArguments(h, pos, conv);
+            slots.remove(pos);
+            if (lengthArg >= 0)
+                slots.add(pos, lengthArg + 1);
+            slots.add(pos, n + 1);
+        }
+
+        Class<?> retType = h.type().returnType();
+        if (!retType.isPrimitive() && !MemorySegment.class.equals(retType))
+        {
+            if (!GenericPointer.class.isAssignableFrom(retType) && !NativeArray.class.isAssignableFrom(retType)
+                    && !StructView.class.isAssignableFrom(retType))
+                throw new PassportException(name + ": " + retType.getSimpleName() + " cannot be returned from a callback");
+            h = MethodHandles.filterReturnValue(h, ADDRESS_OF.asType(MethodType.methodType(MemorySegment.class, retType)));
+        }
+
+        Class<?>[] target = new Class<?>[params.length + 1];
+        target[0] = functional;
+        System.arraycopy(nativeTypes, 0, target, 1, nativeTypes.length);
+        return MethodHandles.permuteArguments(h, MethodType.methodType(h.type().returnType(), target),
+                slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * @return (MemorySegment) -> type, or (MemorySegment, long length) -> type when the length is another argument.
+     */
+    private static MethodHandle converterFor(String name, Parameter param, Class<?> type)
+    {
+        if (String.class.equals(type))
+            return READ_STRING;
+        if (StructView.class.isAssignableFrom(type))
+            return MethodHandles.insertArguments(VIEW_OF, 0, type).asType(MethodType.methodType(type, MemorySegment.class));
+        if (type.isRecord())
+            return MethodHandles.insertArguments(READ_RECORD, 0, type).asType(MethodType.methodType(type, MemorySegment.class));
+        if (GenericPointer.class.isAssignableFrom(type))
+            return constructor(name, type);
+        if (NativeArray.class.isAssignableFrom(type))
+        {
+            MethodHandle array = MethodHandles.filterReturnValue(
+                    withLength(name, param, MethodHandles.insertArguments(SIZED, 0, nativeArrayLayout(name, type))), constructor(name, type));
+            MethodHandle isNull = MethodHandles.dropArguments(IS_NULL, 1, array.type().parameterList().subList(1, array.type().parameterCount()));
+            return MethodHandles.guardWithTest(isNull, MethodHandles.dropArguments(MethodHandles.zero(type), 0, array.type().parameterList()), array);
+        }
+        if (type.isArray() && type.getComponentType().isPrimitive())
+        {
+            MethodHandle array = MethodHandles.insertArguments(READ_ARRAY, 0, elementLayout(name, type));
+            return withLength(name, param, array.asType(array.type().changeReturnType(type)));
+        }
+
+        throw new PassportException(name + ": " + type.getSimpleName() + " is not supported as a callback argument");
+    }
+
+    /**
+     * Fills in the length of an array converter when it is fixed, otherwise leaves it for the length argument.
+     */
+    private static MethodHandle withLength(String name, Parameter param, MethodHandle conv)
+    {
+        Array array = param.getAnnotation(Array.class);
+        if (array == null)
+            throw new PassportException(name + ": " + param.getName() + " needs an Array annotation to give its length");
+        return array.lengthArg() >= 0 ? conv : MethodHandles.insertArguments(conv, 1, (long) array.length());
+    }
+
+    private static MethodHandle constructor(String name, Class<?> type)
+    {
+        try {
+            return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class, MemorySegment.class));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new PassportException(name + ": " + type.getSimpleName() + " needs a public constructor that takes a MemorySegment");
+        }
+    }
+
+    private static Method functionalMethod(Class<?> functional)
+    {
+        if (!functional.isInterface())
+            throw new IllegalArgumentException(functional.getName() + " is not an interface");
+
+        List<Method> methods = Arrays.stream(functional.getMethods()).
+                filter(m -> Modifier.isAbstract(m.getModifiers())).
+                filter(m -> !isObjectMethod(m)).toList();
+        if (methods.size() != 1)
+            throw new IllegalArgumentException(functional.getName() + " must have exactly one abstract method");
+        return methods.get(0);
+    }
+
+    private static boolean isObjectMethod(Method method)
+    {
+        try {
+            Object.class.getMethod(method.getName(), method.getParameterTypes());
+            return true;
+        }
+        catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isCount(Class<?> type)
+    {
+        return int.class.equals(type) || long.class.equals(type) || short.class.equals(type) || byte.class.equals(type);
+    }
+
+    private static ValueLayout elementLayout(String name, Class<?> arrayType)
+    {
+        Class<?> type = arrayType.getComponentType();
+        if (byte.class.equals(type)) return ValueLayout.JAVA_BYTE;
+        if (char.class.equals(type)) return ValueLayout.JAVA_CHAR;
+        if (short.class.equals(type)) return ValueLayout.JAVA_SHORT;
+        if (int.class.equals(type)) return ValueLayout.JAVA_INT;
+        if (long.class.equals(type)) return ValueLayout.JAVA_LONG;
+        if (float.class.equals(type)) return ValueLayout.JAVA_FLOAT;
+        if (double.class.equals(type)) return ValueLayout.JAVA_DOUBLE;
+        throw new PassportException(name + ": " + arrayType.getSimpleName() + " is not supported as a callback argument");
+    }
+
+    private static ValueLayout nativeArrayLayout(String name, Class<?> type)
+    {
+        if (NativeByteArray.class.equals(type)) return ValueLayout.JAVA_BYTE;
+        if (NativeShortArray.class.equals(type)) return ValueLayout.JAVA_SHORT;
+        if (NativeIntArray.class.equals(type)) return ValueLayout.JAVA_INT;
+        if (NativeLongArray.class.equals(type)) return ValueLayout.JAVA_LONG;
+        if (NativeFloatArray.class.equals(type)) return ValueLayout.JAVA_FLOAT;
+        if (NativeDoubleArray.class.equals(type)) return ValueLayout.JAVA_DOUBLE;
+        throw new PassportException(name + ": " + type.getSimpleName() + " is not supported as a callback argument");
+    }
+
+    private static MethodHandle getter(MethodHandles.Lookup lookup, Class<?> carrier, Class<?> layoutType, ValueLayout layout)
+            throws NoSuchMethodException, IllegalAccessException
+    {
+        MethodHandle get = lookup.findVirtual(MemorySegment.class, "get", MethodType.methodType(carrier, layoutType, long.class));
+        return MethodHandles.insertArguments(get, 1, layout);
+    }
+
+    /**
+     * Builds the RecordReader of a record: every member gets a (MemorySegment, long) -> member type handle, these
+     * are folded into the constructor and the (MemorySegment, long) pairs are merged into one.
+     */
+    private static RecordReader recordReader(Class<?> record)
+    {
+        GroupLayout layout = Utils.structLayout(record);
+        RecordComponent[] components = record.getRecordComponents();
+        MethodHandle[] readers = new MethodHandle[components.length];
+
+        for (int n = 0; n < components.length; ++n)
+        {
+            RecordComponent rc = components[n];
+            Class<?> type = rc.getType();
+            MemberReader member = null;
+
+            if (byte.class.equals(type))
+                readers[n] = GET_BYTE;
+            else if (short.class.equals(type))
+                readers[n] = GET_SHORT;
+            else if (int.class.equals(type))
+                readers[n] = GET_INT;
+            else if (long.class.equals(type))
+                readers[n] = GET_LONG;
+            else if (float.class.equals(type))
+                readers[n] = GET_FLOAT;
+            else if (double.class.equals(type))
+                readers[n] = GET_DOUBLE;
+            else if (String.class.equals(type))
+                member = (s, o) -> Utils.readString(s.get(ValueLayout.ADDRESS, o));
+            else if (MemorySegment.class.equals(type))
+                member = (s, o) -> s.get(ValueLayout.ADDRESS, o);
+            else if (GenericPointer.class.isAssignableFrom(type))
+            {
+                MethodHandle cons = constructor(record.getSimpleName(), type).asType(MethodType.methodType(Object.class, MemorySegment.class));
+                member = (s, o) -> (Object) cons.invokeExact(s.get(ValueLayout.ADDRESS, o));
+            }
+            else if (type.isRecord() && rc.isAnnotationPresent(Ptr.class))
+                member = (s, o) -> readRecord(type, s.get(ValueLayout.ADDRESS, o));
+            else if (type.isRecord())
+                readers[n] = s_records.get(type).read();
+            else if (type.isArray() && type.getComponentType().isPrimitive() && rc.isAnnotationPresent(Array.class))
+            {
+                ValueLayout element = elementLayout(record.getSimpleName(), type);
+                long size = element.byteSize() * rc.getAnnotation(Array.class).length();
+                member = (s, o) -> readArray(element, s.asSlice(o, size), size / element.byteSize());
+            }
+            else
+                throw new PassportException(record.getSimpleName() + "." + rc.getName() + " cannot be read in a callback");
+
+            if (member != null)
+                readers[n] = MEMBER_READ.bindTo(member);
+            readers[n] = readers[n].asType(MethodType.methodType(type, MemorySegment.class, long.class));
+
+            long offset = layout.byteOffset(groupElement(rc.getName()));
+            if (offset != 0)
+                readers[n] = MethodHandles.filterArguments(readers[n], 1, MethodHandles.insertArguments(PLUS, 0, offset));
+        }
+
+        MethodHandle read;
+        try {
+            Class<?>[] types = Arrays.stream(components).map(RecordComponent::getType).toArray(Class<?>[]::new);
+            read = MethodHandles.publicLookup().findConstructor(record, MethodType.methodType(void.class, types));
+        }
+        catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new PassportException(record.getName() + " must be public to be read in a callback");
+        }
+
+        // From the last member back, so the position of each member not yet replaced stays the same
+        for (int n = readers.length - 1; n >= 0; --n)
+            read = MethodHandles.collectArguments(read, n, readers[n]);
+
+        int[] reorder = new int[2 * readers.length];
+        for (int n = 0; n < reorder.length; ++n)
+            reorder[n] = n % 2;
+        read = MethodHandles.permuteArguments(read, MethodType.methodType(read.type().returnType(), MemorySegment.class, long.class), reorder);
+        return new RecordReader(read.asType(MethodType.methodType(Object.class, MemorySegment.class, long.class)), layout.byteSize());
+    }
+
+    private static Object readRecord(Class<?> record, MemorySegment struct) throws Throwable
+    {
+        if (isNull(struct))
+            return null;
+        RecordReader reader = s_records.get(record);
+        return reader.read(Utils.resize(struct, reader.size()), 0);
+    }
+
+    private static Object readArray(ValueLayout layout, MemorySegment segment, long length)
+    {
+        if (isNull(segment))
+            return null;
+
+        MemorySegment values = sized(layout, segment, length);
+        return switch (layout)
+        {
+            case ValueLayout.OfByte l -> values.toArray(l);
+            case ValueLayout.OfChar l -> values.toArray(l);
+            case ValueLayout.OfShort l -> values.toArray(l);
+            case ValueLayout.OfInt l -> values.toArray(l);
+            case ValueLayout.OfLong l -> values.toArray(l);
+            case ValueLayout.OfFloat l -> values.toArray(l);
+            case ValueLayout.OfDouble l -> values.toArray(l);
+            default -> throw new IllegalArgumentException(layout.toString());
+        };
+    }
+
+    private static Object writeArrayReturn(ValueLayout layout, Object ret, Object array, MemorySegment segment)
+    {
+        writeArrayVoid(layout, array, segment);
+        return ret;
+    }
+
+    private static void writeArrayVoid(ValueLayout layout, Object array, MemorySegment segment)
+    {
+        if (array == null || isNull(segment))
+            return;
+        int length = java.lang.reflect.Array.getLength(array);
+        MemorySegment.copy(array, 0, sized(layout, segment, length), layout, 0, length);
+    }
+
+    private static MemorySegment sized(ValueLayout layout, MemorySegment segment, long length)
+    {
+        return segment.byteSize() == 0 ? segment.reinterpret(layout.byteSize() * length) : segment;
+    }
+
+    private static boolean isNull(MemorySegment segment)
+    {
+        return segment == null || segment.address() == 0;
+    }
+
+    private static MemorySegment addressOf(Object value)
+    {
+        return switch (value)
+        {
+            case null -> MemorySegment.NULL;
+            case GenericPointer ptr -> ptr.getPtr();
+            case NativeArray arr -> arr.getPtr();
+            case StructView view -> view.segment();
+            default -> throw new IllegalArgumentException(value.getClass().getName());
+        };
+    }
+}
@@ -14,12 +14,20 @@ package jpassport;
 
 import jpassport.annotations.Array;
 import jpassport.annotations.Ptr;
+import jpassport.annotations.StructPadding;
 
 import java.io.IOException;
-import java.lang.annotation.Annotation;
 import java.lang.foreign.*;
-import java.lang.invoke.MethodHandle;
-import java.lang.reflect.Field;
+import java.lang.reflect.RecordComponent;
+import java.nio.Buffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -27,6 +35,7 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 
 public class Utils {
@@ -38,39 +47,88 @@ public class Utils {
         return seg;
     }
 
-    /* Double ///////////////////////////////////////////////////////////////// */
-    public static MemorySegment toMS(SegmentAllocator scope, double[] arr, boolean isReadBackOnly) {
-        if (arr == null)
-            return null;
-        return isReadBackOnly ? scope.allocate((long)arr.length * Double.BYTES) :
-                scope.allocateFrom(ValueLayout.JAVA_DOUBLE, arr);
+    /* 2D arrays ///////////////////////////////////////////////////////////////// */
+
+    private static long totalLength(Object[] rows) {
+        long total = 0;
+        for (Object row : rows)
+            total += row == null ? 0 : java.lang.reflect.Array.getLength(row);
+        return total;
     }
 
-    public static MemorySegment toMS(SegmentAllocator scope, double[][] arr, boolean isReadBackOnly) {
-        if (arr == null)
+    /**
+     * Copies the rows one after the other into a single block. The rows do not need to be the same length.
+     */
+    private static MemorySegment rowsToMS(SegmentAllocator scope, Object[] rows, ValueLayout layout, boolean isReadBackOnly) {
+        if (rows == null)
+            return null;
+
+        MemorySegment segment = scope.allocate(totalLength(rows) * layout.byteSize(), layout.byteAlignment());
+        if (!isReadBackOnly) {
+            long offset = 0;
+            for (Object row : rows) {
+                if (row == null)
+                    continue;
+                int len = java.lang.reflect.Array.getLength(row);
+                MemorySegment.copy(row, 0, segment, layout, offset, len);
+                offset += len * layout.byteSize();
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Makes one block holding the table of row pointers followed by the data of every row.
+     */
+    private static MemorySegment rowsToPtrPtrMS(SegmentAllocator scope, Object[] rows, ValueLayout layout, boolean isReadBackOnly) {
+        if (rows == null)
             return null;
 
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Double.BYTES);
-        int n = 0;
-        for (double[] row : arr) {
-            segment.asSlice(n, (long) row.length * Double.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Double.BYTES;
-        }
+        long tableSize = rows.length * ValueLayout.ADDRESS.byteSize();
+        MemorySegment segment = scope.allocate(tableSize + totalLength(rows) * layout.byteSize(), ValueLayout.ADDRESS.byteAlignment());
+        long offset = tableSize;
+        for (int n = 0; n < rows.length; ++n) {
+            if (rows[n] == null) {
+                segment.setAtIndex(ValueLayout.ADDRESS, n, MemorySegment.NULL);
+                continue;
+            }
 
+            int len = java.lang.reflect.Array.getLength(rows[n]);
+            segment.setAtIndex(ValueLayout.ADDRESS, n, MemorySegment.ofAddress(segment.address() + offset));
+            if (!isReadBackOnly)
+                MemorySegment.copy(rows[n], 0, segment, layout, offset, len);
+            offset += len * layout.byteSize();
+        }
         return segment;
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, double[][] arr) {
+    private static void msToRows(MemorySegment segment, long offset, Object[] rows, ValueLayout layout) {
+        if (rows == null)
+            return;
+
+        for (Object row : rows) {
+            if (row == null)
+                continue;
+            int len = java.lang.reflect.Array.getLength(row);
+            MemorySegment.copy(segment, layout, offset, row, 0, len);
+            offset += len * layout.byteSize();
+        }
+    }
+
+    /* Double ///////////////////////////////////////////////////////////////// */
+    public static MemorySegment toMS(SegmentAllocator scope, double[] arr, boolean isReadBackOnly) {
         if (arr == null)
             return null;
+        return isReadBackOnly ? scope.allocate((long)arr.length * Double.BYTES) :
+                scope.allocateFrom(ValueLayout.JAVA_DOUBLE, arr);
+    }
 
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (double[] a : arr) {
-            MemorySegment subSeg = scope.allocateFrom(ValueLayout.JAVA_DOUBLE, a);
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, subSeg);
-        }
-        return segment;
+    public static MemorySegment toMS(SegmentAllocator scope, double[][] arr, boolean isReadBackOnly) {
+        return rowsToMS(scope, arr, ValueLayout.JAVA_DOUBLE, isReadBackOnly);
+    }
+
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, double[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_DOUBLE, isReadBackOnly);
     }
 
     public static void toArr(double[] arr, MemorySegment segment) {
@@ -80,6 +138,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_DOUBLE, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(double[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_DOUBLE);
+    }
+
+    public static void toPtrPtrArr(double[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_DOUBLE);
+    }
+
     public static double[] toArr(ValueLayout.OfDouble layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -111,30 +178,11 @@ public class Utils {
     }
 
     public static MemorySegment toMS(SegmentAllocator scope, float[][] arr, boolean isReadBackOnly) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Float.BYTES);
-        int n = 0;
-        for (float[] row : arr) {
-            segment.asSlice(n, (long) row.length * Float.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Float.BYTES;
-        }
-
-        return segment;
+        return rowsToMS(scope, arr, ValueLayout.JAVA_FLOAT, isReadBackOnly);
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, float[][] arr) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (float[] a : arr) {
-            MemorySegment subSeg = scope.allocateFrom(ValueLayout.JAVA_FLOAT, a);
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, subSeg);
-        }
-        return segment;
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, float[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_FLOAT, isReadBackOnly);
     }
 
     public static void toArr(float[] arr, MemorySegment segment) {
@@ -144,6 +192,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_FLOAT, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(float[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_FLOAT);
+    }
+
+    public static void toPtrPtrArr(float[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_FLOAT);
+    }
+
     public static float[] toArr(ValueLayout.OfFloat layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -200,40 +257,129 @@ public class Utils {
         }
     }
 
-    /* Long ///////////////////////////////////////////////////////////////// */
+    /* Slices ///////////////////////////////////////////////////////////////// */
 
-    public static MemorySegment toMS(SegmentAllocator scope, long[] arr, boolean isReadBackOnly) {
-        if (arr == null)
+    public static MemorySegment toMS(SegmentAllocator scope, ArraySlice<?> slice, boolean isReadBackOnly) {
+        if (slice == null)
             return null;
-        return isReadBackOnly ? scope.allocate((long)arr.length * Long.BYTES) :
-                scope.allocateFrom(ValueLayout.JAVA_LONG, arr);
+
+        MemorySegment segment = scope.allocate(slice.byteSize(), slice.layout().byteAlignment());
+        if (!isReadBackOnly)
+            MemorySegment.copy(slice.array(), slice.offset(), segment, slice.layout(), 0, slice.length());
+        return segment;
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, long[][] arr) {
-        if (arr == null)
+    public static MemorySegment toHeapMS(ArraySlice<?> slice) {
+        if (slice == null)
+            return MemorySegment.NULL;
+
+        return slice.toHeapSegment();
+    }
+
+    public static void toArr(ArraySlice<?> slice, MemorySegment segment) {
+        if (slice == null)
+            return;
+
+        MemorySegment.copy(segment, slice.layout(), 0, slice.array(), slice.offset(), slice.length());
+    }
+
+    /* Buffers ///////////////////////////////////////////////////////////////// */
+
+    /**
+     * A direct buffer is already in native memory, so it is passed as is. A heap buffer is copied
+     * like an array, into memory aligned for its elements. Either way only the elements between the
+     * position and the limit are passed.
+     *
+     * @throws IllegalArgumentException If the elements are more than one byte and not in the native byte order.
+     */
+    public static MemorySegment toMS(SegmentAllocator scope, Buffer buffer, boolean isReadBackOnly) {
+        if (buffer == null)
             return null;
 
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (long[] a : arr) {
-            MemorySegment subSeg = scope.allocateFrom(ValueLayout.JAVA_LONG, a);
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, subSeg);
-        }
-        return segment;
+        MemorySegment segment = nativeOrderSegment(buffer);
+        if (segment.isNative())
+            return segment;
+
+        MemorySegment copy = scope.allocate(segment.byteSize(), elementSize(buffer));
+        if (!isReadBackOnly)
+            copy.copyFrom(segment);
+        return copy;
     }
 
-    public static MemorySegment toMS(SegmentAllocator scope, long[][] arr, boolean isReadBackOnly) {
+    /**
+     * The bytes of a buffer are handed to C as they are, so a view such as ByteBuffer.asDoubleBuffer(), which is
+     * big endian unless the ByteBuffer's order was set, would be read byte swapped on most machines.
+     */
+    private static MemorySegment nativeOrderSegment(Buffer buffer)
+    {
+        ByteOrder order = byteOrder(buffer);
+        if (order != null && order != ByteOrder.nativeOrder())
+            throw new IllegalArgumentException("A " + buffer.getClass().getSimpleName() + " in " + order +
+                    " byte order can not be passed, it must be in the native order (" + ByteOrder.nativeOrder() + ")");
+        return MemorySegment.ofBuffer(buffer);
+    }
+
+    /**
+     * @return The byte order of the buffer's elements, or null for a ByteBuffer since bytes have no order.
+     */
+    private static ByteOrder byteOrder(Buffer buffer)
+    {
+        if (buffer instanceof DoubleBuffer b)
+            return b.order();
+        if (buffer instanceof LongBuffer b)
+            return b.order();
+        if (buffer instanceof IntBuffer b)
+            return b.order();
+        if (buffer instanceof FloatBuffer b)
+            return b.order();
+        if (buffer instanceof ShortBuffer b)
+            return b.order();
+        if (buffer instanceof CharBuffer b)
+            return b.order();
+        return null;
+    }
+
+    private static long elementSize(Buffer buffer)
+    {
+        if (buffer instanceof DoubleBuffer || buffer instanceof LongBuffer)
+            return Long.BYTES;
+        if (buffer instanceof IntBuffer || buffer instanceof FloatBuffer)
+            return Integer.BYTES;
+        if (buffer instanceof ShortBuffer || buffer instanceof CharBuffer)
+            return Short.BYTES;
+        return Byte.BYTES;
+    }
+
+    public static MemorySegment toHeapMS(Buffer buffer) {
+        if (buffer == null)
+            return MemorySegment.NULL;
+
+        return nativeOrderSegment(buffer);
+    }
+
+    public static void toArr(Buffer buffer, MemorySegment segment) {
+        // C wrote straight into a direct buffer, and a read only buffer can't take what C wrote
+        if (buffer == null || buffer.isDirect() || buffer.isReadOnly())
+            return;
+
+        MemorySegment.ofBuffer(buffer).copyFrom(segment);
+    }
+
+    /* Long ///////////////////////////////////////////////////////////////// */
+
+    public static MemorySegment toMS(SegmentAllocator scope, long[] arr, boolean isReadBackOnly) {
         if (arr == null)
             return null;
+        return isReadBackOnly ? scope.allocate((long)arr.length * Long.BYTES) :
+                scope.allocateFrom(ValueLayout.JAVA_LONG, arr);
+    }
 
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Long.BYTES);
-        int n = 0;
-        for (long[] row : arr) {
-            segment.asSlice(n, (long) row.length * Long.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Long.BYTES;
-        }
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, long[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_LONG, isReadBackOnly);
+    }
 
-        return segment;
+    public static MemorySegment toMS(SegmentAllocator scope, long[][] arr, boolean isReadBackOnly) {
+        return rowsToMS(scope, arr, ValueLayout.JAVA_LONG, isReadBackOnly);
     }
 
     public static void toArr(long[] arr, MemorySegment segment) {
@@ -243,6 +389,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_LONG, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(long[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_LONG);
+    }
+
+    public static void toPtrPtrArr(long[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_LONG);
+    }
+
     public static long[] toArr(ValueLayout.OfLong layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -273,30 +428,12 @@ public class Utils {
                 scope.allocateFrom(ValueLayout.JAVA_INT, arr);
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, int[][] arr) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (int[] a : arr) {
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, scope.allocateFrom(ValueLayout.JAVA_INT, a));
-        }
-        return segment;
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, int[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_INT, isReadBackOnly);
     }
 
     public static MemorySegment toMS(SegmentAllocator scope, int[][] arr, boolean isReadBackOnly) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Integer.BYTES);
-        int n = 0;
-        for (int[] row : arr) {
-            segment.asSlice(n, (long) row.length * Integer.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Integer.BYTES;
-        }
-
-        return segment;
+        return rowsToMS(scope, arr, ValueLayout.JAVA_INT, isReadBackOnly);
     }
 
     public static void toArr(int[] arr, MemorySegment segment) {
@@ -306,6 +443,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_INT, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(int[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_INT);
+    }
+
+    public static void toPtrPtrArr(int[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_INT);
+    }
+
     public static int[] toArr(ValueLayout.OfInt layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -337,30 +483,12 @@ public class Utils {
                 scope.allocateFrom(ValueLayout.JAVA_SHORT, arr);
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, short[][] arr) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (short[] a : arr) {
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, scope.allocateFrom(ValueLayout.JAVA_SHORT, a));
-        }
-        return segment;
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, short[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_SHORT, isReadBackOnly);
     }
 
     public static MemorySegment toMS(SegmentAllocator scope, short[][] arr, boolean isReadBackOnly) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Short.BYTES);
-        int n = 0;
-        for (short[] row : arr) {
-            segment.asSlice(n, (long) row.length * Short.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Short.BYTES;
-        }
-
-        return segment;
+        return rowsToMS(scope, arr, ValueLayout.JAVA_SHORT, isReadBackOnly);
     }
 
     public static void toArr(short[] arr, MemorySegment segment) {
@@ -369,6 +497,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_SHORT, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(short[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_SHORT);
+    }
+
+    public static void toPtrPtrArr(short[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_SHORT);
+    }
+
     public static short[] toArr(ValueLayout.OfShort layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -398,29 +535,12 @@ public class Utils {
         return isReadBackOnly ? scope.allocate(arr.length) : scope.allocateFrom(ValueLayout.JAVA_BYTE, arr);
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, byte[][] arr) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (byte[] a : arr)
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, scope.allocateFrom(ValueLayout.JAVA_BYTE, a));
-        return segment;
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, byte[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_BYTE, isReadBackOnly);
     }
 
     public static MemorySegment toMS(SegmentAllocator scope, byte[][] arr, boolean isReadBackOnly) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Byte.BYTES);
-        int n = 0;
-        for (byte[] row : arr) {
-            segment.asSlice(n, row.length * Byte.BYTES).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Byte.BYTES;
-        }
-
-        return segment;
+        return rowsToMS(scope, arr, ValueLayout.JAVA_BYTE, isReadBackOnly);
     }
 
     public static void toArr(byte[] arr, MemorySegment segment) {
@@ -429,6 +549,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(byte[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_BYTE);
+    }
+
+    public static void toPtrPtrArr(byte[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_BYTE);
+    }
+
     public static byte[] toArr(ValueLayout.OfByte layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -458,29 +587,12 @@ public class Utils {
         return isReadBackOnly ? scope.allocate(Character.BYTES * arr.length) : scope.allocateFrom(ValueLayout.JAVA_CHAR, arr);
     }
 
-    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, char[][] arr) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * Long.BYTES);
-        int n = 0;
-        for (char[] a : arr)
-            segment.setAtIndex(ValueLayout.ADDRESS, n++, scope.allocateFrom(ValueLayout.JAVA_CHAR, a));
-        return segment;
+    public static MemorySegment toPtrPTrMS(SegmentAllocator scope, char[][] arr, boolean isReadBackOnly) {
+        return rowsToPtrPtrMS(scope, arr, ValueLayout.JAVA_CHAR, isReadBackOnly);
     }
 
     public static MemorySegment toMS(SegmentAllocator scope, char[][] arr, boolean isReadBackOnly) {
-        if (arr == null)
-            return null;
-
-        MemorySegment segment = scope.allocate((long) arr.length * arr[0].length * Byte.BYTES);
-        int n = 0;
-        for (char[] row : arr) {
-            segment.asSlice(n, (int)(row.length * Character.BYTES)).copyFrom(MemorySegment.ofArray(row));
-            n += row.length * Byte.BYTES;
-        }
-
-        return segment;
+        return rowsToMS(scope, arr, ValueLayout.JAVA_CHAR, isReadBackOnly);
     }
 
     public static void toArr(char[] arr, MemorySegment segment) {
@@ -489,6 +601,15 @@ public class Utils {
         MemorySegment.copy(segment, ValueLayout.JAVA_CHAR, 0, arr, 0, arr.length);
     }
 
+    public static void toArr(char[][] arr, MemorySegment segment) {
+        msToRows(segment, 0, arr, ValueLayout.JAVA_CHAR);
+    }
+
+    public static void toPtrPtrArr(char[][] arr, MemorySegment segment) {
+        if (arr != null)
+            msToRows(segment, arr.length * ValueLayout.ADDRESS.byteSize(), arr, ValueLayout.JAVA_CHAR);
+    }
+
     public static char[] toArr(ValueLayout.OfChar layout, MemorySegment seg, MemorySegment addr, int count) {
         if (MemorySegment.NULL.equals(addr))
             return null;
@@ -518,18 +639,69 @@ public class Utils {
         return MemorySegment.ofAddress(addr.address()).asSlice(0, bytes);
     }
 
+    /** The longest C string that will be read, a string with no terminator is cut off here. */
+    private static final long MAX_STRING_LENGTH = Math.min(Long.getLong("jpassport.string.max.length", Integer.MAX_VALUE), Integer.MAX_VALUE - 8);
+    private static final ValueLayout.OfLong STRING_WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /**
+     * Reads a C string. A pointer returned by C (with a size of 0) is read up to its terminator, the string is
+     * searched 8 bytes at a time in Java rather than calling strlen. A string that is all ASCII is copied straight
+     * into the String, anything else is decoded as UTF-8.
+     *
+     * @param addr The C string.
+     * @return The String, or null for a NULL pointer.
+     */
     public static String readString(MemorySegment addr) {
-        if (MemorySegment.NULL.equals(addr))
+        if (addr == null || MemorySegment.NULL.equals(addr))
             return null;
 
-        if (addr.byteSize() == 0)
+        long limit = addr.byteSize() == 0 ? MAX_STRING_LENGTH : Math.min(addr.byteSize(), MAX_STRING_LENGTH);
+        MemorySegment str = addr.byteSize() == 0 ? addr.reinterpret(limit) : addr;
+
+        //All of the bytes before the terminator or'd together, to tell if any are not ASCII
+        long seen = 0;
+        long len = 0;
+
+        // Go a byte at a time until the address is 8 byte aligned. An aligned 8 byte read can never cross into
+        // the next page, so reading past the terminator is safe even when the string is at the end of mapped memory.
+        for (; len < limit && ((str.address() + len) & 7) != 0; ++len)
         {
-            // This is slightly horrible. I can't find a better way. Use C's strlen to figure out
-            //how big the memory segment really is.
-            return addr.reinterpret(strLen(addr)+1).getString(0);
+            byte b = str.get(ValueLayout.JAVA_BYTE, len);
+            if (b == 0)
+                return decodeString(str, len, seen);
+            seen |= b;
         }
 
-        return addr.getString(0);
+        for (; len + 8 <= limit; len += 8)
+        {
+            long word = str.get(STRING_WORD, len);
+            long zeros = (word - LOW_BITS) & ~word & HIGH_BITS;
+            if (zeros != 0)
+            {
+                int index = Long.numberOfTrailingZeros(zeros) >>> 3;
+                seen |= word & ((1L << (index * 8)) - 1);
+                return decodeString(str, len + index, seen);
+            }
+            seen |= word;
+        }
+
+        for (; len < limit; ++len)
+        {
+            byte b = str.get(ValueLayout.JAVA_BYTE, len);
+            if (b == 0)
+                break;
+            seen |= b;
+        }
+        return decodeString(str, len, seen);
+    }
+
+    private static String decodeString(MemorySegment str, long len, long seen)
+    {
+        byte[] bytes = new byte[(int) len];
+        MemorySegment.copy(str, ValueLayout.JAVA_BYTE, 0, bytes, 0, bytes.length);
+        return new String(bytes, (seen & HIGH_BITS) == 0 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
     }
 
     public static MemorySegment resize(MemorySegment addr, long bytes)
@@ -539,36 +711,21 @@ public class Utils {
         return addr;
     }
 
-    static MethodHandle strlen = null;
-
-    private static long strLen(MemorySegment seg)
-    {
-        if (strlen == null)
-        {
-            Linker linker = Linker.nativeLinker();
-            SymbolLookup stdlib = linker.defaultLookup();
-            strlen = linker.downcallHandle(
-                    stdlib.find("strlen").get(),
-                    FunctionDescriptor.of(ValueLayout.JAVA_LONG, ValueLayout.ADDRESS)
-            );
-
-        }
-        try {
-            return (long)strlen.invokeExact(seg);
-        } catch (Throwable e) {
-            return 0;
-        }
+    public static MemorySegment toCString(String[] s, Arena scope) {
+        return toCString(s, (SegmentAllocator) scope);
     }
 
-    public static MemorySegment toCString(String[] s, Arena scope) {
-        var segment = scope.allocate(ValueLayout.JAVA_LONG.byteSize() * s.length);
-        for (int i = 0; i < s.length; ++i)
-        {
-            segment.setAtIndex(ValueLayout.ADDRESS, i, toCString(s[i], scope));
-        }
-        return segment;
+    /**
+     * Makes a char** in one allocation, see {@link CStringArray}.
+     */
+    public static MemorySegment toCString(String[] s, SegmentAllocator scope) {
+        return CStringArray.of(s, scope).segment();
     }
 
+    /**
+     * Reads a char** back into a String[] one element at a time. Use {@link CStringArray#readBack(String[])}
+     * for memory that was made from the same array.
+     */
     public static void fromCString(MemorySegment mem, String[] s)
     {
         for (int n = 0; n < s.length; ++n)
@@ -638,94 +795,111 @@ public class Utils {
         return Platform.Unknown;
     }
 
-    private static long typeToSize(Class<?> type)
+    private static final ClassValue<GroupLayout> s_structLayouts = new ClassValue<>()
     {
-
-        if (type.equals(byte.class)) return ValueLayout.JAVA_CHAR.byteSize();
-        if (type.equals(short.class)) return ValueLayout.JAVA_SHORT.byteSize();
-        if (type.equals(int.class)) return ValueLayout.JAVA_INT.byteSize();
-        if (type.equals(long.class)) return ValueLayout.JAVA_LONG.byteSize();
-        if (type.equals(float.class)) return ValueLayout.JAVA_FLOAT.byteSize();
-        if (type.equals(double.class)) return ValueLayout.JAVA_DOUBLE.byteSize();
-        if (type.isRecord()) return size_of(type);
-        throw new IllegalArgumentException("Cannot get size for non-primative");
-    };
-    public static long size_of(Class<?> c)
-    {
-        if (!c.isRecord())
-            throw new IllegalArgumentException("Can only get size of records, not " + c.getName());
-
-        int size = 0;
-        for (Field f : c.getDeclaredFields())
+        @Override
+        protected GroupLayout computeValue(Class<?> type)
         {
-            size += PassportWriter.getPaddingBytes(f);
-
-            Class<?> type = f.getType();
-            if (type.isPrimitive())
-                size += typeToSize(type);
-            else if (type.isRecord())
+            List<MemoryLayout> members = new ArrayList<>();
+            for (RecordComponent rc : type.getRecordComponents())
             {
-                boolean isPtr = f.getAnnotationsByType(Ptr.class).length > 0;
-                if (isPtr)
-                    size += ValueLayout.ADDRESS.byteSize();
-                else
-                    size += size_of(type);
+                int paddingBytes = PassportWriter.getPaddingBytes(rc.getAnnotation(StructPadding.class));
+
+                // negative indicates pre-padding
+                if (paddingBytes < 0)
+                    members.add(MemoryLayout.paddingLayout(-paddingBytes));
+                members.add(memberLayout(type, rc).withName(rc.getName()));
+                if (paddingBytes > 0)
+                    members.add(MemoryLayout.paddingLayout(paddingBytes));
             }
-            else if (String.class.equals(type))
-                size += ValueLayout.ADDRESS.byteSize();
-            else if (type.isArray())
-            {
-                Annotation[] arrays = f.getAnnotationsByType(Array.class);
-                boolean isPointer = f.getAnnotationsByType(Ptr.class).length > 0;
+            return makeStruct(members.toArray(MemoryLayout[]::new));
+        }
+    };
 
-                if (arrays.length > 0)
-                {
-                    int length = ((Array) arrays[0]).length();
-                    size += length * typeToSize(type.getComponentType());
-                }
-                else if (isPointer)
-                    size += ValueLayout.ADDRESS.byteSize();
-            }
+    private static MemoryLayout memberLayout(Class<?> record, RecordComponent rc)
+    {
+        Class<?> type = rc.getType();
+        boolean isPtr = rc.isAnnotationPresent(Ptr.class);
+
+        if (type.isPrimitive())
+            return primitiveLayout(record, type);
+        if (type.isRecord())
+            return isPtr ? ValueLayout.ADDRESS : structLayout(type);
+        if (String.class.equals(type) || MemorySegment.class.equals(type) || PassportWriter.isGenericPtr(type))
+            return ValueLayout.ADDRESS;
+        if (type.isArray())
+        {
+            Array array = rc.getAnnotation(Array.class);
+            if (array != null)
+                return MemoryLayout.sequenceLayout(array.length(), primitiveLayout(record, type.getComponentType()));
+            if (isPtr)
+                return ValueLayout.ADDRESS;
+            throw new PassportException("Record arrays must be defined with either an Array or Ptr annotation");
         }
-        return size;
+        throw new PassportException(record.getSimpleName() + "." + rc.getName() + ": " + type.getSimpleName() + " cannot be a struct member");
+    }
+
+    private static ValueLayout primitiveLayout(Class<?> record, Class<?> type)
+    {
+        if (type.equals(byte.class)) return ValueLayout.JAVA_BYTE;
+        if (type.equals(short.class)) return ValueLayout.JAVA_SHORT;
+        if (type.equals(int.class)) return ValueLayout.JAVA_INT;
+        if (type.equals(long.class)) return ValueLayout.JAVA_LONG;
+        if (type.equals(float.class)) return ValueLayout.JAVA_FLOAT;
+        if (type.equals(double.class)) return ValueLayout.JAVA_DOUBLE;
+        throw new PassportException(record.getSimpleName() + ": " + type.getSimpleName() + " cannot be a struct member");
     }
 
     /**
-     * Called by generated code to build the memory layout for a struct. This automatically
-     * tries to figure out where padding is needed in the struct in order to get proper byte
-     * alignment.
+     * The layout of the C struct a Record stands for. It is worked out once per Record, the generated
+     * classes, StructViews and StructColumns all share it.
+     *
+     * @param record A Record class.
+     * @return The layout, with every member at its natural alignment.
+     */
+    public static GroupLayout structLayout(Class<?> record)
+    {
+        if (!record.isRecord())
+            throw new IllegalArgumentException("Can only get the layout of records, not " + record.getName());
+        return s_structLayouts.get(record);
+    }
+
+    public static long size_of(Class<?> c)
+    {
+        if (!c.isRecord())
+            throw new IllegalArgumentException("Can only get size of records, not " + c.getName());
+        return s_structLayouts.get(c).byteSize();
+    }
+
+    /**
+     * Builds the memory layout for a struct the way a C compiler would: every member is placed at
+     * a multiple of its own alignment, and the struct is padded at the end to a multiple of its largest
+     * member alignment so that arrays of it stay aligned.
      * @param layout The members of the struct
      * @return The full GroupLayout of the struct.
      */
     public static GroupLayout makeStruct(MemoryLayout ... layout)
     {
-        int byteBarrier = System.getProperty("sun.arch.data.model").contains("64") ? 8 : 4;
-        ArrayList<MemoryLayout> memLayout = new ArrayList<>();
-        memLayout.add(layout[0]);
-        long nextBarrier = byteBarrier;
-
-        var curSize = memLayout.stream().mapToLong(MemoryLayout::byteSize).sum();
-        while (nextBarrier <= curSize) nextBarrier += byteBarrier;
+        ArrayList<MemoryLayout> memLayout = new ArrayList<>(layout.length * 2);
+        long size = 0;
+        long structAlignment = 1;
 
-        for (int n = 1; n < layout.length; ++n)
+        for (MemoryLayout member : layout)
         {
-            curSize = memLayout.stream().mapToLong(MemoryLayout::byteSize).sum();
-            long nextItemSize = layout[n].byteSize();
-
-            //if an array is next, then we only need to byte align the first element of the array
-            if (layout[n] instanceof SequenceLayout seq)
-                nextItemSize = seq.byteSize() / seq.elementCount();
-
-            // If the next piece of memory we are adding crosses the byte alignement barrier
-            // then we need to pad the struct to alow byte alignment
-            if (curSize + nextItemSize > nextBarrier)
-                memLayout.add(MemoryLayout.paddingLayout(nextBarrier - curSize));
-            memLayout.add(layout[n]);
-
-            curSize = memLayout.stream().mapToLong(MemoryLayout::byteSize).sum();
-            while (nextBarrier <= curSize) nextBarrier += byteBarrier;
+            //The alignment of a sequence is the alignment of its elements
+            long alignment = member.byteAlignment();
+            long padding = (alignment - size % alignment) % alignment;
+            if (padding > 0)
+                memLayout.add(MemoryLayout.paddingLayout(padding));
+            memLayout.add(member);
+
+            size += padding + member.byteSize();
+            structAlignment = Math.max(structAlignment, alignment);
         }
 
+        long tailPadding = (structAlignment - size % structAlignment) % structAlignment;
+        if (tailPadding > 0)
+            memLayout.add(MemoryLayout.paddingLayout(tailPadding));
 
         return MemoryLayout.structLayout(memLayout.toArray(new MemoryLayout[0]));
     }
@@ -15,9 +15,21 @@ import java.lang.annotation.Target;
  *  In the above example, if PassingArrays is annotated with RefArg to indicate that it should
  *  be read back after the native call, then the Array annotation indicates that s_double[]
  *  should always be read as 5 doubles.
+ *
+ *  On a parameter of a callback interface (see {@link jpassport.Callback#of(Class, Object)}) it gives the
+ *  number of elements native code passed, either as a fixed length or as the index of the parameter
+ *  that holds the count:
+ *  <pre>
+ *  void onData(<code>@Array(lengthArg = 1)</code> double[] values, int count);
+ *  </pre>
  */
 @Retention(RetentionPolicy.RUNTIME)
-@Target({ElementType.RECORD_COMPONENT, ElementType.FIELD})
+@Target({ElementType.RECORD_COMPONENT, ElementType.FIELD, ElementType.PARAMETER})
 public @interface Array {
     int length() default 1;
+
+    /**
+     * For callback parameters, the index of the parameter that holds the number of elements.
+     */
+    int lengthArg() default -1;
 }
@@ -0,0 +1,20 @@
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * For native functions that can run for a long time. A native call pins the carrier thread of a virtual thread
+ * until it returns, so when a method with this annotation is called from a virtual thread the native call is
+ * handed to the platform threads of jpassport.AsyncCalls and the virtual thread parks until it is done. Calls
+ * from platform threads are made directly, as are methods that are also Critical.
+ *
+ * Put this on a method, or on the interface to use it for every method. Memory passed in by the caller (ex. a
+ * MemorySegment or StructView) must be usable from other threads, memory from a confined Arena is not.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Blocking {
+}
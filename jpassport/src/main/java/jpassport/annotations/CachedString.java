@@ -0,0 +1,19 @@
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * String arguments are normally encoded to a new C string on every call. With this annotation the C string
+ * is kept in a cache (see jpassport.StringCache) and passed again whenever the same String is used, so repeated
+ * keys and names are only encoded once.
+ *
+ * Put this on a String parameter, a method, or on the interface to use it for every String parameter.
+ * The native code must not change the string, every call that passes the same text shares the memory.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER, ElementType.METHOD, ElementType.TYPE})
+public @interface CachedString {
+}
@@ -13,8 +13,14 @@ import java.lang.annotation.Target;
  * function), and does not call back into Java (e.g. using an upcall stub). Using this linker option is a hint which
  * some implementations may use to apply optimizations that are only valid for critical functions. Using this linker
  * option when linking non-critical functions is likely to have adverse effects, such as loss of performance, or JVM crashes.
+ *
+ * Set allowHeapAccess to true to pass 1D primitive arrays to the function directly, without copying them to
+ * native memory and back. The function sees the Java array itself, so any changes it makes are seen in the array
+ * right away (no RefArg is needed). The garbage collector is held off while the function runs, which is
+ * another reason to only use this with functions that return quickly.
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface Critical {
+    boolean allowHeapAccess() default false;
 }
@@ -0,0 +1,30 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The argument is only written by the foreign library. Native memory is allocated for it but the
+ * contents of the Java array are not copied in, after the call the memory is read back into the array.
+ * This is the same as RefArg(read_back_only = true). For arrays of Records the values are still copied
+ * in, the Records are needed to read the structs back.
+ *
+ * Cannot be used with In or InOut.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface Out {
+}
@@ -0,0 +1,20 @@
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Any memory needed to pass arguments (Strings, arrays, Records, MemoryBlocks) is normally allocated from
+ * a new confined Arena that is closed when the call returns. With this annotation the memory comes from a
+ * block that each thread keeps and reuses (see jpassport.ThreadLocalArena), so small calls do not allocate native
+ * memory at all.
+ *
+ * Put this on a method, or on the interface to use it for every method. Do not use it if the native code keeps
+ * a pointer to an argument after it returns, the memory is reused by the next call.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface PooledArena {
+}
@@ -0,0 +1,28 @@
+package jpassport.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Put this on a {@link jpassport.StructView} interface to give the Record that describes the C struct. The
+ * struct is laid out from the Record exactly as it would be if the Record was passed (StructPadding, Array and
+ * Ptr all apply), and the view's methods are matched to the Record's members by name.
+ *
+ * <pre>
+ * public record PassingData(@StructPadding(bytes = 4) int s_int, long s_long, ...) {}
+ *
+ * &#64;ViewOf(PassingData.class)
+ * public interface PassingDataView extends StructView {
+ *     int s_int();
+ *     void s_int(int value);
+ *     long s_long();
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ViewOf {
+    Class<? extends Record> value();
+}
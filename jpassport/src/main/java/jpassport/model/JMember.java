@@ -0,0 +1,31 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.model;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * A named and typed member, either a method parameter or a Record component.
+ */
+public interface JMember
+{
+    String name();
+
+    JType type();
+
+    <A extends Annotation> A getAnnotation(Class<A> annotation);
+
+    default boolean hasAnnotation(Class<? extends Annotation> annotation)
+    {
+        return getAnnotation(annotation) != null;
+    }
+}
@@ -0,0 +1,76 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.model;
+
+import java.lang.annotation.Annotation;
+import java.util.List;
+
+/**
+ * A type as seen by the PassportWriter. The writer only needs a small part of what java.lang.Class
+ * offers. Describing that part here lets the same code generation run against loaded classes (when
+ * linking at run time) or against source elements (in the annotation processor, where there are no
+ * classes yet).
+ */
+public interface JType
+{
+    /**
+     * @param c A loaded class.
+     * @return The class described as a JType.
+     */
+    static JType of(Class<?> c)
+    {
+        return new ReflectedType(c);
+    }
+
+    /** The canonical name, ex. java.lang.String, double[], my.pkg.Outer.Inner */
+    String name();
+
+    /** The name as it would be written after an import, ex. String, double[], Inner */
+    String simpleName();
+
+    /** The package the type belongs to, or "" for primitives, arrays and the default package. */
+    String packageName();
+
+    /** The module the type belongs to, or null if it belongs to an unnamed module. */
+    String moduleName();
+
+    boolean isPrimitive();
+
+    boolean isArray();
+
+    /** The component type of an array, or null if this is not an array. */
+    JType componentType();
+
+    /** The type arguments, ex. Double for CompletableFuture&lt;Double&gt;. Empty for types that are not parameterized. */
+    List<JType> typeArguments();
+
+    boolean isRecord();
+
+    /** True if this is exactly the given class. */
+    boolean is(Class<?> c);
+
+    /** True if this type is the given class or extends/implements it. */
+    boolean isSubtypeOf(Class<?> c);
+
+    /** The components of a Record in declaration order, empty for all other types. */
+    List<JMember> recordComponents();
+
+    /** The abstract methods declared directly by an interface (no static or default methods). */
+    List<JMethod> methods();
+
+    <A extends Annotation> A getAnnotation(Class<A> annotation);
+
+    default boolean hasAnnotation(Class<? extends Annotation> annotation)
+    {
+        return getAnnotation(annotation) != null;
+    }
+}
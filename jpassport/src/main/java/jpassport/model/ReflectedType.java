@@ -0,0 +1,221 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.model;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JType backed by a loaded class.
+ */
+record ReflectedType(Class<?> type, Type generic) implements JType
+{
+    ReflectedType(Class<?> type)
+    {
+        this(type, type);
+    }
+
+    @Override
+    public String name()
+    {
+        return type.getCanonicalName();
+    }
+
+    @Override
+    public String simpleName()
+    {
+        return type.getSimpleName();
+    }
+
+    @Override
+    public String packageName()
+    {
+        return type.getPackageName();
+    }
+
+    @Override
+    public String moduleName()
+    {
+        return type.getModule().getName();
+    }
+
+    @Override
+    public boolean isPrimitive()
+    {
+        return type.isPrimitive();
+    }
+
+    @Override
+    public boolean isArray()
+    {
+        return type.isArray();
+    }
+
+    @Override
+    public JType componentType()
+    {
+        return type.isArray() ? new ReflectedType(type.getComponentType()) : null;
+    }
+
+    @Override
+    public List<JType> typeArguments()
+    {
+        if (!(generic instanceof ParameterizedType pt))
+            return List.of();
+        return Arrays.stream(pt.getActualTypeArguments()).map(ReflectedType::of).toList();
+    }
+
+    private static JType of(Type t)
+    {
+        if (t instanceof Class<?> c)
+            return new ReflectedType(c);
+        if (t instanceof ParameterizedType pt)
+            return new ReflectedType((Class<?>) pt.getRawType(), pt);
+        // Wildcards and type variables have no one class, they are treated as Object
+        return new ReflectedType(Object.class);
+    }
+
+    @Override
+    public boolean isRecord()
+    {
+        return type.isRecord();
+    }
+
+    @Override
+    public boolean is(Class<?> c)
+    {
+        return type.equals(c);
+    }
+
+    @Override
+    public boolean isSubtypeOf(Class<?> c)
+    {
+        return c.isAssignableFrom(type);
+    }
+
+    @Override
+    public List<JMember> recordComponents()
+    {
+        if (!type.isRecord())
+            return List.of();
+        return Arrays.stream(type.getRecordComponents()).map(c -> (JMember) new ReflectedComponent(c)).toList();
+    }
+
+    @Override
+    public List<JMethod> methods()
+    {
+        return Arrays.stream(type.getDeclaredMethods()).
+                filter(method -> !Modifier.isStatic(method.getModifiers())).
+                filter(method -> !method.isDefault()).
+                map(m -> (JMethod) new ReflectedMethod(m)).toList();
+    }
+
+    @Override
+    public <A extends Annotation> A getAnnotation(Class<A> annotation)
+    {
+        return type.getAnnotation(annotation);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        return o instanceof JType t && name().equals(t.name());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return name().hashCode();
+    }
+
+    @Override
+    public String toString()
+    {
+        return name();
+    }
+
+    private record ReflectedComponent(RecordComponent component) implements JMember
+    {
+        @Override
+        public String name()
+        {
+            return component.getName();
+        }
+
+        @Override
+        public JType type()
+        {
+            return new ReflectedType(component.getType());
+        }
+
+        @Override
+        public <A extends Annotation> A getAnnotation(Class<A> annotation)
+        {
+            return component.getAnnotation(annotation);
+        }
+    }
+
+    private record ReflectedParameter(Parameter parameter) implements JMember
+    {
+        @Override
+        public String name()
+        {
+            return parameter.getName();
+        }
+
+        @Override
+        public JType type()
+        {
+            return new ReflectedType(parameter.getType());
+        }
+
+        @Override
+        public <A extends Annotation> A getAnnotation(Class<A> annotation)
+        {
+            return parameter.getAnnotation(annotation);
+        }
+    }
+
+    private record ReflectedMethod(Method method) implements JMethod
+    {
+        @Override
+        public String name()
+        {
+            return method.getName();
+        }
+
+        @Override
+        public JType returnType()
+        {
+            return new ReflectedType(method.getReturnType(), method.getGenericReturnType());
+        }
+
+        @Override
+        public List<JMember> parameters()
+        {
+            return Arrays.stream(method.getParameters()).map(p -> (JMember) new ReflectedParameter(p)).toList();
+        }
+
+        @Override
+        public <A extends Annotation> A getAnnotation(Class<A> annotation)
+        {
+            return method.getAnnotation(annotation);
+        }
+    }
+}
@@ -3,4 +3,5 @@ module jpassport {
 
     exports jpassport;
     exports jpassport.annotations;
+    exports jpassport.model;
 }
\ No newline at end of file
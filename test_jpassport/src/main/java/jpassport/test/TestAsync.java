@@ -0,0 +1,29 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.RefArg;
+
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Functions from TestLink that are run on the async executor.
+ */
+public interface TestAsync extends Passport {
+    CompletableFuture<Double> sumD(double d, double d2);
+    CompletableFuture<Double> sumArrD(double[] d, int len);
+    CompletableFuture<Void> readD(@RefArg double[] val, int set);
+    CompletableFuture<Integer> cstringLength(String s);
+    CompletableFuture<Double> sumArrDD(MemorySegment d, MemorySegment d2, int len);
+}
@@ -0,0 +1,27 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.Blocking;
+import jpassport.annotations.RefArg;
+
+/**
+ * Functions from TestLink whose native calls are moved off of the carrier when called from a virtual thread.
+ */
+@Blocking
+public interface TestBlocking extends Passport {
+    int blockFor(int millis);
+    double sumArrD(double[] d, int len);
+    void readD(@RefArg double[] val, int set);
+    int cstringLength(String s);
+}
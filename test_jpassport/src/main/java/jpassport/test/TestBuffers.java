@@ -0,0 +1,29 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.RefArg;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Functions from TestLink called with NIO buffers, both direct and heap.
+ */
+public interface TestBuffers extends Passport {
+    double sumArrD(DoubleBuffer d, int len);
+    int sumArrI(IntBuffer d, int len);
+    byte sumArrB(ByteBuffer d, byte len);
+    void readD(@RefArg DoubleBuffer d, int set);
+}
@@ -0,0 +1,24 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.CachedString;
+
+/**
+ * Functions from TestLink that are passed Strings from the string cache.
+ */
+public interface TestCachedStrings extends Passport {
+    @CachedString
+    int cstringLength(String s);
+    String mallocString(@CachedString String origString);
+}
@@ -0,0 +1,30 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.Critical;
+
+/**
+ * The same functions as TestLink, but the arrays are passed without being copied.
+ */
+public interface TestCritical extends Passport {
+
+    @Critical(allowHeapAccess = true)
+    double sumArrD(double[] d, int len);
+
+    @Critical(allowHeapAccess = true)
+    int sumArrI(int[] d, int len);
+
+    @Critical(allowHeapAccess = true)
+    void readD(double[] d, int set);
+}
@@ -0,0 +1,29 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.In;
+import jpassport.annotations.InOut;
+import jpassport.annotations.Out;
+import jpassport.annotations.RefArg;
+
+/**
+ * Functions from TestLink with the copy direction of each array set explicitly. Every array is
+ * a RefArg unless the argument says otherwise.
+ */
+@RefArg
+public interface TestDirections extends Passport {
+    void readD(@In double[] d, int set);
+    double sumArrD(@Out double[] d, int len);
+    void readI(@InOut int[] d, int set);
+}
@@ -1,7 +1,12 @@
 package jpassport.test;
 
 
+import jpassport.Passport;
+import jpassport.PassportFactory;
+import jpassport.ThreadingModel;
+
 import java.lang.foreign.MemorySegment;
+import java.lang.reflect.Array;
 import java.util.Locale;
 
 public class TestLinkHelp {
@@ -12,6 +17,24 @@ public class TestLinkHelp {
     }
 
 
+    /**
+     * @return The test library linked to type with link(), proxy() and compose(), in that order.
+     */
+    public static <T extends Passport> T[] allModes(Class<T> type) throws Throwable
+    {
+        return allModes(type, ThreadingModel.ANY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Passport> T[] allModes(Class<T> type, ThreadingModel threading) throws Throwable
+    {
+        T[] linked = (T[]) Array.newInstance(type, 3);
+        linked[0] = PassportFactory.link(getLibName(), type, threading);
+        linked[1] = PassportFactory.proxy(getLibName(), type, threading);
+        linked[2] = PassportFactory.compose(getLibName(), type, threading);
+        return linked;
+    }
+
     public static String getLibName()
     {
         if (System.getProperty("os.name").equalsIgnoreCase("linux"))
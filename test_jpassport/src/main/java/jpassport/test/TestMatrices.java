@@ -0,0 +1,25 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.PtrPtrArg;
+import jpassport.annotations.RefArg;
+
+/**
+ * 2D arrays that C writes into, and arrays whose rows are not all the same length.
+ */
+public interface TestMatrices extends Passport {
+    void fillMatD(int rows, int cols, @RefArg double[][] mat);
+    double sumJaggedDPtrPtr(int rows, int[] lens, @PtrPtrArg double[][] mat);
+    void fillJaggedDPtrPtr(int rows, int[] lens, @RefArg @PtrPtrArg double[][] mat);
+}
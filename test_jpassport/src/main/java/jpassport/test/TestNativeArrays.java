@@ -0,0 +1,27 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.*;
+
+/**
+ * The same functions as TestLink, but the arrays are already in native memory.
+ */
+public interface TestNativeArrays extends Passport {
+    double sumArrD(NativeDoubleArray d, int len);
+    float sumArrF(NativeFloatArray d, int len);
+    long sumArrL(NativeLongArray d, long len);
+    int sumArrI(NativeIntArray d, int len);
+    short sumArrS(NativeShortArray d, short len);
+    byte sumArrB(NativeByteArray d, byte len);
+    void readD(NativeDoubleArray d, int set);
+}
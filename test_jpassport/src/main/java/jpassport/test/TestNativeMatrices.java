@@ -0,0 +1,30 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.*;
+import jpassport.annotations.PtrPtrArg;
+
+/**
+ * The matrix functions from TestLink, with the matrices already in native memory.
+ */
+public interface TestNativeMatrices extends Passport {
+    double sumMatD(int rows, int cols, NativeDoubleMatrix mat);
+    double sumMatDPtrPtr(int rows, int cols, @PtrPtrArg NativeDoubleMatrix mat);
+    int sumMatI(int rows, int cols, NativeIntMatrix mat);
+    int sumMatIPtrPtr(int rows, int cols, @PtrPtrArg NativeIntMatrix mat);
+    float sumMatF(int rows, int cols, NativeFloatMatrix mat);
+    long sumMatL(int rows, int cols, NativeLongMatrix mat);
+    int sumMatS(int rows, int cols, NativeShortMatrix mat);
+    int sumMatBPtrPtr(int rows, int cols, @PtrPtrArg NativeByteMatrix mat);
+    void fillMatD(int rows, int cols, NativeDoubleMatrix mat);
+}
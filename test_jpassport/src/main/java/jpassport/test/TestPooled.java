@@ -0,0 +1,27 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.annotations.PooledArena;
+import jpassport.annotations.RefArg;
+
+/**
+ * The same functions as TestLink, but arguments are passed using the thread's pooled arena.
+ */
+@PooledArena
+public interface TestPooled extends Passport {
+    int cstringLength(String s);
+    double sumArrD(double[] d, int len);
+    void readD(@RefArg double[] d, int set);
+    String mallocString(String origString);
+}
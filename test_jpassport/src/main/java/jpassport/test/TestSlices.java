@@ -0,0 +1,25 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.ArraySlice;
+import jpassport.Passport;
+import jpassport.annotations.RefArg;
+
+/**
+ * Functions from TestLink called with only part of a Java array.
+ */
+public interface TestSlices extends Passport {
+    double sumArrD(ArraySlice<double[]> d, int len);
+    int sumArrI(ArraySlice<int[]> d, int len);
+    void readD(@RefArg ArraySlice<double[]> d, int set);
+}
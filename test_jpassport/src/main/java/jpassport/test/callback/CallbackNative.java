@@ -1,10 +1,14 @@
 package jpassport.test.callback;
 
+import jpassport.FunctionPtr;
 import jpassport.Passport;
+import jpassport.test.structs.TestStruct;
 
 import java.lang.foreign.MemorySegment;
 
 public interface CallbackNative extends Passport {
     int call_CB(MemorySegment fn, int v, double v2);
     void call_CBArr(MemorySegment fn, int[] vals, int count);
+    void call_CBSort(FunctionPtr fn, MemorySegment data, int count);
+    double call_CBTyped(FunctionPtr fn, TestStruct data, String name, double[] vals, int count);
 }
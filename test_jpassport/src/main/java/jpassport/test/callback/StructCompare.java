@@ -0,0 +1,9 @@
+package jpassport.test.callback;
+
+import jpassport.test.structs.TestStructView;
+
+@FunctionalInterface
+public interface StructCompare
+{
+    int compare(TestStructView a, TestStructView b);
+}
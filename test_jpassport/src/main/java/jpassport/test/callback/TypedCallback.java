@@ -0,0 +1,11 @@
+package jpassport.test.callback;
+
+import jpassport.annotations.Array;
+import jpassport.annotations.RefArg;
+import jpassport.test.structs.TestStruct;
+
+@FunctionalInterface
+public interface TypedCallback
+{
+    double call(TestStruct data, String name, @RefArg @Array(lengthArg = 3) double[] vals, int count);
+}
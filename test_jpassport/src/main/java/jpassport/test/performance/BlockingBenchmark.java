@@ -0,0 +1,120 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test.performance;
+
+import jpassport.Passport;
+import jpassport.PassportFactory;
+import jpassport.annotations.Blocking;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Measures how long short virtual thread tasks take to finish while slow native calls are running on other
+ * virtual threads. Called directly, each slow call pins a carrier thread so the short tasks wait for the
+ * slow calls. With Blocking the carriers stay free.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlockingBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(BlockingBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    public interface Direct extends Passport {
+        int blockFor(int millis);
+    }
+
+    @Blocking
+    public interface Offloaded extends Passport {
+        int blockFor(int millis);
+    }
+
+    static final int SLOW_MILLIS = 5;
+    static final int QUICK_TASKS = 100;
+
+    static Direct direct;
+    static Offloaded offloaded;
+
+    /** The number of slow native calls made for every carrier thread. */
+    @Param({"0", "1", "4"})
+    public int slow_per_carrier;
+
+    ExecutorService virtualThreads;
+    final List<Future<?>> slowCalls = new ArrayList<>();
+
+    @Setup()
+    public void setUp() throws Throwable
+    {
+        direct = PassportFactory.link("libforeign_link", Direct.class);
+        offloaded = PassportFactory.link("libforeign_link", Offloaded.class);
+        virtualThreads = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @TearDown()
+    public void tearDown()
+    {
+        virtualThreads.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void waitForSlowCalls() throws Exception
+    {
+        for (Future<?> f : slowCalls)
+            f.get();
+        slowCalls.clear();
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public void quickTasksDirect() throws Exception
+    {
+        quickTasks(direct::blockFor);
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public void quickTasksBlocking() throws Exception
+    {
+        quickTasks(offloaded::blockFor);
+    }
+
+    private void quickTasks(IntUnaryOperator slowCall) throws Exception
+    {
+        int carriers = Integer.getInteger("jdk.virtualThreadScheduler.parallelism", Runtime.getRuntime().availableProcessors());
+        for (int n = 0; n < slow_per_carrier * carriers; ++n)
+            slowCalls.add(virtualThreads.submit(() -> slowCall.applyAsInt(SLOW_MILLIS)));
+
+        List<Future<?>> quick = new ArrayList<>(QUICK_TASKS);
+        for (int n = 0; n < QUICK_TASKS; ++n)
+            quick.add(virtualThreads.submit(() -> Blackhole.consumeCPU(1000)));
+        for (Future<?> f : quick)
+            f.get();
+    }
+}
@@ -3,6 +3,7 @@ package jpassport.test.performance;
 import com.sun.jna.Native;
 import jpassport.PassportFactory;
 import jpassport.test.PureJava;
+import jpassport.test.TestCritical;
 import jpassport.test.TestLink;
 import jpassport.test.TestLinkJNADirect;
 import org.openjdk.jmh.annotations.*;
@@ -26,6 +27,7 @@ public class JPassportMicroBenchmark
     }
 
     static TestLink testFL;
+    static TestCritical testFLHeap;
     static TestLink testJNA;
     static TestLink testJNADirect;
     static TestLink testJava;
@@ -48,6 +50,7 @@ public class JPassportMicroBenchmark
     {
         System.setProperty("jna.library.path", System.getProperty("java.library.path"));
         testFL = PassportFactory.link("libforeign_link", TestLink.class);
+        testFLHeap = PassportFactory.link("libforeign_link", TestCritical.class);
         testJNA =  Native.load("libforeign_link.dll", TestLink.class);
         testJNADirect =  new TestLinkJNADirect.JNADirect();
         testJava = new PureJava();
@@ -81,4 +84,11 @@ public class JPassportMicroBenchmark
     {
         testFL.sumArrD(test_arr, test_arr.length);
     }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public void sumTestArrDJPassportHeap()
+    {
+        testFLHeap.sumArrD(test_arr, test_arr.length);
+    }
 }
@@ -0,0 +1,84 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test.performance;
+
+import jpassport.PassportFactory;
+import jpassport.ThreadingModel;
+import jpassport.test.TestLink;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.stream.IntStream;
+
+/**
+ * Calls into a library that is treated as not thread-safe from 64 threads, either locking around every call
+ * or handing every call to the ThreadingModel.SINGLE_THREAD worker.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class ThreadingBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(ThreadingBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    static TestLink locked;
+    static TestLink singleThread;
+
+    @State(Scope.Thread)
+    public static class Values
+    {
+        @Param({"16", "1024"})
+        public int array_size;
+
+        public double[] test_arr;
+
+        @Setup(Level.Trial)
+        public void updateArray()
+        {
+            test_arr = IntStream.range(0, array_size).mapToDouble(i -> i).toArray();
+        }
+    }
+
+    @Setup()
+    public void setUp() throws Throwable
+    {
+        locked = PassportFactory.link("libforeign_link", TestLink.class);
+        singleThread = PassportFactory.link("libforeign_link", TestLink.class, ThreadingModel.SINGLE_THREAD);
+    }
+
+    @Benchmark
+    @Threads(64)
+    @Fork(value = 2, warmups = 1)
+    public double sumArrDLocked(Values values)
+    {
+        synchronized (locked)
+        {
+            return locked.sumArrD(values.test_arr, values.test_arr.length);
+        }
+    }
+
+    @Benchmark
+    @Threads(64)
+    @Fork(value = 2, warmups = 1)
+    public double sumArrDSingleThread(Values values)
+    {
+        return singleThread.sumArrD(values.test_arr, values.test_arr.length);
+    }
+}
@@ -0,0 +1,18 @@
+package jpassport.test.structs;
+
+import jpassport.StructView;
+import jpassport.annotations.ViewOf;
+
+import java.lang.foreign.MemorySegment;
+
+@ViewOf(ComplexStruct.class)
+public interface ComplexStructView extends StructView
+{
+    int ID();
+    void ID(int value);
+    TestStructView ts();
+    TestStructView tsPtr();
+    void tsPtr(MemorySegment value);
+    String string();
+    void string(MemorySegment value);
+}
@@ -0,0 +1,77 @@
+package jpassport.test.structs;
+
+import jpassport.PassportFactory;
+import jpassport.StructColumns;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Passing arrays of structs that are read back after the call.
+ */
+@State(Scope.Benchmark)
+public class StructArrayBenchmark
+{
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(StructArrayBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+
+    static TestStructCalls structCalls;
+    static TestStructViews structViews;
+
+    @Param({"1", "1024", "1048576"})
+    public int struct_count;
+
+    public TestStruct[] structs;
+    public StructColumns columns;
+    public MemorySegment columnStructs;
+
+    @Setup(Level.Trial)
+    public void updateArray()
+    {
+        structs = IntStream.range(0, struct_count).mapToObj(n -> new TestStruct(n, n, n, n)).toArray(TestStruct[]::new);
+        columns = StructColumns.allocate(TestStruct.class, struct_count);
+        Arrays.setAll(columns.ints("s_int"), n -> n);
+        Arrays.setAll(columns.longs("s_long"), n -> n);
+        float[] floats = columns.floats("s_float");
+        for (int n = 0; n < floats.length; ++n)
+            floats[n] = n;
+        Arrays.setAll(columns.doubles("s_double"), n -> n);
+        columnStructs = columns.write(Arena.global());
+    }
+
+    @Setup()
+    public void setUp() throws Throwable
+    {
+        structCalls = PassportFactory.link("libforeign_link", TestStructCalls.class);
+        structViews = PassportFactory.link("libforeign_link", TestStructViews.class);
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public double passStructArray()
+    {
+        return structCalls.passStructArray(structs, structs.length);
+    }
+
+    @Benchmark
+    @Fork(value = 2, warmups = 1)
+    public double passStructColumns()
+    {
+        columns.write(columnStructs);
+        double ret = structViews.passStructArray(columnStructs, struct_count);
+        columns.read(columnStructs);
+        return ret;
+    }
+}
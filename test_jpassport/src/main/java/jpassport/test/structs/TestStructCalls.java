@@ -6,6 +6,7 @@ import jpassport.annotations.RefArg;
 
 public interface TestStructCalls extends Passport {
     double passStruct(TestStruct address);
+    double passStructArray(@RefArg TestStruct[] data, int count);
     double passComplex(@RefArg ComplexStruct[] complexStruct);
     double passStructWithArrays(@RefArg PassingArrays[] arrays);
     @NotRequired
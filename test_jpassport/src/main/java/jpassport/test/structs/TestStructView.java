@@ -0,0 +1,17 @@
+package jpassport.test.structs;
+
+import jpassport.StructView;
+import jpassport.annotations.ViewOf;
+
+@ViewOf(TestStruct.class)
+public interface TestStructView extends StructView
+{
+    int s_int();
+    void s_int(int value);
+    long s_long();
+    void s_long(long value);
+    float s_float();
+    void s_float(float value);
+    double s_double();
+    void s_double(double value);
+}
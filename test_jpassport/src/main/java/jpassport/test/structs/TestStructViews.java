@@ -0,0 +1,12 @@
+package jpassport.test.structs;
+
+import jpassport.Passport;
+
+import java.lang.foreign.MemorySegment;
+
+public interface TestStructViews extends Passport {
+    double passStruct(TestStructView data);
+    double passStructArray(MemorySegment data, int count);
+    TestStructView getStruct(MemorySegment data, int index);
+    double passComplex(ComplexStructView complex);
+}
@@ -1,5 +1,6 @@
 module test.passport {
     requires jpassport;
+    requires java.compiler;
     requires com.sun.jna;
     requires com.sun.jna.platform;
 
@@ -12,15 +12,29 @@
 package jpassport.test;
 
 import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.IntStream;
 
-import jpassport.MemoryBlock;
-import jpassport.Pointer;
+import jpassport.*;
+import jpassport.test.callback.CallbackNative;
+import jpassport.test.callback.StructCompare;
+import jpassport.test.structs.TestStructView;
 import org.junit.jupiter.api.BeforeAll;
-import jpassport.PassportFactory;
 
 import org.junit.jupiter.api.Test;
 
+import static jpassport.test.TestLinkHelp.allModes;
 import static jpassport.test.TestLinkHelp.getLibName;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -34,8 +48,31 @@ public class TestJPassport
     {
         System.setProperty("jpassport.build.home", "out/testing");
         System.setProperty("jna.library.path", System.getProperty("java.library.path"));
-        testClass = new TestLink[] {PassportFactory.link(getLibName(), TestLink.class),
-                                PassportFactory.proxy(getLibName(), TestLink.class)};
+        testClass = allModes(TestLink.class);
+    }
+
+    @Test
+    public void testClassCache() throws Throwable
+    {
+        TestLink relinked = PassportFactory.link(getLibName(), TestLink.class);
+
+        assertTrue(testClass[0].getClass().getName().startsWith("jpassport.cached_"));
+        assertEquals(testClass[0].getClass().getName(), relinked.getClass().getName());
+        assertEquals(4 + 5, relinked.sumD(4, 5));
+    }
+
+    @Test
+    public void testInMemoryLink() throws Throwable
+    {
+        System.setProperty("jpassport.build.cache", "false");
+        try {
+            TestLink linked = PassportFactory.link(getLibName(), TestLink.class);
+            assertFalse(linked.getClass().getName().startsWith("jpassport.cached_"));
+            assertEquals(4 + 5, linked.sumD(4, 5));
+        }
+        finally {
+            System.clearProperty("jpassport.build.cache");
+        }
     }
 
     @Test
@@ -80,6 +117,353 @@ public class TestJPassport
         }
     }
 
+    @Test
+    public void testCriticalHeapAccess() throws Throwable
+    {
+        TestCritical[] critical = allModes(TestCritical.class);
+
+        for (TestCritical testFL : critical) {
+            assertEquals(1 + 2 + 3, testFL.sumArrD(new double[]{1, 2, 3}, 3));
+            assertEquals(1 + 2 + 3, testFL.sumArrI(new int[]{1, 2, 3}, 3));
+            assertEquals(0, testFL.sumArrD(null, 10));
+
+            // The native code writes straight into the array, no RefArg is needed
+            double[] v = new double[1];
+            testFL.readD(v, 5);
+            assertEquals(5, v[0]);
+        }
+    }
+
+    @Test
+    public void testPooledArena() throws Throwable
+    {
+        TestPooled[] pooled = allModes(TestPooled.class);
+
+        // Bigger than the pooled block, so it is allocated from the overflow arena
+        double[] big = new double[256 * 1024];
+        Arrays.fill(big, 1);
+
+        for (TestPooled testFL : pooled) {
+            for (int n = 0; n < 3; ++n) {
+                assertEquals(5, testFL.cstringLength("hello"));
+                assertEquals("hello", testFL.mallocString("hello"));
+                assertEquals(1 + 2 + 3, testFL.sumArrD(new double[]{1, 2, 3}, 3));
+                assertEquals(big.length, testFL.sumArrD(big, big.length));
+
+                double[] v = new double[1];
+                testFL.readD(v, 5 + n);
+                assertEquals(5 + n, v[0]);
+            }
+        }
+    }
+
+    @Test
+    public void testReadString()
+    {
+        try (var arena = Arena.ofConfined())
+        {
+            String ascii = "hello world, this is longer than a few words";
+            var seg = arena.allocateFrom(ascii);
+            // Every starting alignment, with a zero length segment like a pointer returned by C
+            for (int n = 0; n <= ascii.length(); ++n)
+                assertEquals(ascii.substring(n), Utils.readString(MemorySegment.ofAddress(seg.address() + n)));
+
+            for (String s : new String[] {"", "h\u00e9llo w\u00f6rld", "\u2713 done", "\u00ff"})
+                assertEquals(s, Utils.readString(MemorySegment.ofAddress(arena.allocateFrom(s).address())));
+
+            // A segment with a size is never read past its end
+            var noTerminator = arena.allocate(5);
+            noTerminator.copyFrom(MemorySegment.ofArray("abcde".getBytes()));
+            assertEquals("abcde", Utils.readString(noTerminator));
+            assertNull(Utils.readString(MemorySegment.NULL));
+        }
+    }
+
+    @Test
+    public void testCachedStrings() throws Throwable
+    {
+        TestCachedStrings[] cached = allModes(TestCachedStrings.class);
+
+        StringCache.clear();
+        for (TestCachedStrings testFL : cached) {
+            for (int n = 0; n < 3; ++n) {
+                assertEquals(5, testFL.cstringLength("hello"));
+                assertEquals("world", testFL.mallocString("world"));
+            }
+        }
+
+        // Encoded once no matter how many calls were made
+        assertEquals(2, StringCache.size());
+        assertSame(StringCache.get("hello"), StringCache.get(new String("hello")));
+        assertEquals(MemorySegment.NULL, StringCache.get(null));
+    }
+
+    @Test
+    public void testAsync() throws Throwable
+    {
+        TestAsync[] async = allModes(TestAsync.class);
+
+        // Count the calls that go through the executor
+        var executor = AsyncCalls.getExecutor();
+        var submitted = new AtomicInteger();
+        AsyncCalls.setExecutor(r -> { submitted.incrementAndGet(); executor.execute(r); });
+        try {
+            for (TestAsync testFL : async) {
+                assertEquals(3, testFL.sumD(1, 2).get());
+                assertEquals(6, testFL.sumArrD(new double[] {1, 2, 3}, 3).get());
+                assertEquals(5, testFL.cstringLength("hello").get());
+
+                double[] val = new double[1];
+                assertNull(testFL.readD(val, 5).get());
+                assertEquals(5, val[0]);
+
+                // Memory the executor can't use is turned away on this thread
+                try (var shared = Arena.ofShared(); var confined = Arena.ofConfined()) {
+                    var d = shared.allocateFrom(ValueLayout.JAVA_DOUBLE, 1, 2, 3);
+                    assertEquals(12, testFL.sumArrDD(d, d, 3).get());
+                    var c = confined.allocateFrom(ValueLayout.JAVA_DOUBLE, 1, 2, 3);
+                    assertThrows(IllegalArgumentException.class, () -> testFL.sumArrDD(d, c, 3));
+                }
+            }
+        }
+        finally {
+            AsyncCalls.setExecutor(executor);
+        }
+        assertEquals(5 * async.length, submitted.get());
+    }
+
+    @Test
+    public void testBlocking() throws Throwable
+    {
+        TestBlocking[] blocking = allModes(TestBlocking.class);
+
+        // Blocking calls have their own platform threads, an async executor of virtual threads is not used for them
+        var executor = AsyncCalls.getExecutor();
+        var submitted = new AtomicInteger();
+        AsyncCalls.setExecutor(r -> { submitted.incrementAndGet(); Thread.ofVirtual().start(r); });
+        try {
+            // Called from a platform thread the calls are made directly
+            for (TestBlocking testFL : blocking)
+                assertEquals(5, testFL.blockFor(5));
+            assertEquals(0, submitted.get());
+
+            var failure = new AtomicReference<Throwable>();
+            Thread.ofVirtual().start(() -> {
+                try {
+                    for (TestBlocking testFL : blocking) {
+                        assertEquals(5, testFL.blockFor(5));
+                        assertEquals(6, testFL.sumArrD(new double[] {1, 2, 3}, 3));
+                        assertEquals(5, testFL.cstringLength("hello"));
+
+                        double[] val = new double[1];
+                        testFL.readD(val, 5);
+                        assertEquals(5, val[0]);
+                    }
+                }
+                catch (Throwable th) {
+                    failure.set(th);
+                }
+            }).join();
+            if (failure.get() != null)
+                throw failure.get();
+
+            // More calls at once than the pool has threads: the extra calls wait, no threads are added
+            int poolSize = Runtime.getRuntime().availableProcessors();
+            try (var callers = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int n = 0; n < poolSize * 4; ++n)
+                    callers.submit(() -> blocking[0].blockFor(20));
+            }
+            long poolThreads = Thread.getAllStackTraces().keySet().stream().
+                    filter(thread -> thread.getName().startsWith("jpassport-blocking-")).count();
+            assertTrue(poolThreads <= poolSize);
+        }
+        finally {
+            AsyncCalls.setExecutor(executor);
+        }
+        assertEquals(0, submitted.get());
+    }
+
+    @Test
+    public void testSingleThread() throws Throwable
+    {
+        CallbackNative[] linked = allModes(CallbackNative.class, ThreadingModel.SINGLE_THREAD);
+
+        for (CallbackNative callBack : linked)
+        {
+            // The comparator runs on whichever thread made the native call
+            Set<Thread> threads = ConcurrentHashMap.newKeySet();
+            StructCompare byInt = (a, b) -> {
+                threads.add(Thread.currentThread());
+                return Integer.compare(a.s_int(), b.s_int());
+            };
+
+            try (var arena = Arena.ofShared(); Callback cb = Callback.of(StructCompare.class, byInt))
+            {
+                IntStream.range(0, 8).parallel().forEach(t -> {
+                    var data = StructViews.allocateArray(TestStructView.class, arena, 100);
+                    var views = StructViews.ofArray(TestStructView.class, data);
+                    for (int n = 0; n < views.size(); ++n)
+                        views.get(n).s_int(100 - n);
+
+                    callBack.call_CBSort(cb, data, views.size());
+                    assertArrayEquals(IntStream.rangeClosed(1, 100).toArray(), views.stream().mapToInt(TestStructView::s_int).toArray());
+                });
+            }
+
+            assertEquals(1, threads.size());
+            assertFalse(threads.contains(Thread.currentThread()));
+        }
+
+        assertThrows(PassportException.class, () -> PassportFactory.proxy(getLibName(), TestAsync.class, ThreadingModel.SINGLE_THREAD));
+    }
+
+    @Test
+    public void testNativeArrays() throws Throwable
+    {
+        TestNativeArrays[] linked = allModes(TestNativeArrays.class);
+
+        for (TestNativeArrays testFL : linked) {
+            try (var d = new NativeDoubleArray(new double[]{1, 2, 3});
+                 var f = new NativeFloatArray(new float[]{1, 2, 3});
+                 var l = new NativeLongArray(new long[]{1, 2, 3});
+                 var i = new NativeIntArray(new int[]{1, 2, 3});
+                 var sh = new NativeShortArray(new short[]{1, 2, 3});
+                 var b = new NativeByteArray(new byte[]{1, 2, 3})) {
+                assertEquals(6, testFL.sumArrD(d, 3));
+                assertEquals(6, testFL.sumArrF(f, 3));
+                assertEquals(6, testFL.sumArrL(l, 3));
+                assertEquals(6, testFL.sumArrI(i, 3));
+                assertEquals(6, testFL.sumArrS(sh, (short) 3));
+                assertEquals(6, testFL.sumArrB(b, (byte) 3));
+
+                // Changes on either side are seen without any copying
+                d.set(2, 10);
+                assertEquals(13, testFL.sumArrD(d, 3));
+                testFL.readD(d, 5);
+                assertEquals(5, d.get(0));
+                assertArrayEquals(new double[]{5, 2, 10}, d.toArray());
+            }
+            assertEquals(0, testFL.sumArrD(null, 3));
+        }
+    }
+
+    @Test
+    public void testNativeMatrices() throws Throwable
+    {
+        TestNativeMatrices[] linked = allModes(TestNativeMatrices.class);
+
+        int correct = IntStream.range(1, 13).sum();
+        for (TestNativeMatrices testFL : linked) {
+            try (var d = new NativeDoubleMatrix(new double[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {10, 11, 12}});
+                 var i = new NativeIntMatrix(new int[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {10, 11, 12}});
+                 var f = new NativeFloatMatrix(new float[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {10, 11, 12}});
+                 var l = new NativeLongMatrix(new long[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {10, 11, 12}});
+                 var sh = new NativeShortMatrix(new short[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {10, 11, 12}});
+                 var b = new NativeByteMatrix(new byte[][]{{1, 2, 3}, {4, 5, 6}, {7, 8, 9}, {10, 11, 12}})) {
+                assertEquals(correct, testFL.sumMatD(d.rows(), d.cols(), d));
+                assertEquals(correct, testFL.sumMatDPtrPtr(d.rows(), d.cols(), d));
+                assertEquals(correct, testFL.sumMatI(i.rows(), i.cols(), i));
+                assertEquals(correct, testFL.sumMatIPtrPtr(i.rows(), i.cols(), i));
+                assertEquals(correct, testFL.sumMatF(f.rows(), f.cols(), f));
+                assertEquals(correct, testFL.sumMatL(l.rows(), l.cols(), l));
+                assertEquals(correct, testFL.sumMatS(sh.rows(), sh.cols(), sh));
+                assertEquals(correct, testFL.sumMatBPtrPtr(b.rows(), b.cols(), b));
+
+                // C writes straight into the matrix
+                testFL.fillMatD(d.rows(), d.cols(), d);
+                assertArrayEquals(new double[]{3, 4, 5}, d.getRow(1));
+                assertArrayEquals(new double[]{1, 4, 7, 10}, d.getColumn(1));
+                d.setColumn(0, new double[]{1, 1, 1, 1});
+                assertEquals(1, d.get(3, 0));
+                assertEquals(4 + (1 + 4 + 7 + 10) + (2 + 5 + 8 + 11), testFL.sumMatDPtrPtr(d.rows(), d.cols(), d));
+            }
+        }
+    }
+
+    @Test
+    public void testDirections() throws Throwable
+    {
+        TestDirections[] linked = allModes(TestDirections.class);
+
+        for (TestDirections testFL : linked) {
+            // In: never read back, even though the interface is a RefArg
+            double[] d = new double[] {1};
+            testFL.readD(d, 5);
+            assertEquals(1, d[0]);
+
+            // Out: the values are not copied in, but blank memory is read back
+            double[] out = new double[] {1, 2, 3};
+            assertEquals(0, testFL.sumArrD(out, 3));
+            assertArrayEquals(new double[] {0, 0, 0}, out);
+
+            int[] i = new int[] {1};
+            testFL.readI(i, 5);
+            assertEquals(5, i[0]);
+        }
+    }
+
+    @Test
+    public void testSlices() throws Throwable
+    {
+        TestSlices[] linked = allModes(TestSlices.class);
+
+        for (TestSlices testFL : linked) {
+            double[] d = new double[] {1, 2, 3, 4, 5};
+            assertEquals(2 + 3 + 4, testFL.sumArrD(ArraySlice.of(d, 1, 3), 3));
+            assertEquals(1 + 2 + 3 + 4 + 5, testFL.sumArrI(ArraySlice.of(new int[] {1, 2, 3, 4, 5}, 0, 5), 5));
+
+            // Only the slice is read back, the rest of the array is left alone
+            testFL.readD(ArraySlice.of(d, 3, 1), 10);
+            assertArrayEquals(new double[] {1, 2, 3, 10, 5}, d);
+
+            assertThrows(IndexOutOfBoundsException.class, () -> ArraySlice.of(d, 4, 2));
+        }
+    }
+
+    @Test
+    public void testBuffers() throws Throwable
+    {
+        TestBuffers[] linked = allModes(TestBuffers.class);
+
+        for (TestBuffers testFL : linked) {
+            DoubleBuffer heap = DoubleBuffer.wrap(new double[] {1, 2, 3, 4});
+            DoubleBuffer direct = ByteBuffer.allocateDirect(4 * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+            direct.put(new double[] {1, 2, 3, 4}).flip();
+
+            assertEquals(10, testFL.sumArrD(heap, 4));
+            assertEquals(10, testFL.sumArrD(direct, 4));
+            assertEquals(6, testFL.sumArrI(IntBuffer.wrap(new int[] {1, 2, 3}), 3));
+            assertEquals(6, testFL.sumArrB(ByteBuffer.allocateDirect(3).put(new byte[] {1, 2, 3}).flip(), (byte) 3));
+
+            // Only the data from the position on is passed
+            assertEquals(2 + 3 + 4, testFL.sumArrD(heap.position(1), 3));
+            assertEquals(2 + 3 + 4, testFL.sumArrD(direct.position(1), 3));
+
+            testFL.readD(heap.position(2), 10);
+            testFL.readD(direct.position(2), 10);
+            assertArrayEquals(new double[] {1, 2, 10, 4}, heap.array());
+            assertEquals(10, direct.get(2));
+            assertEquals(0, testFL.sumArrD(null, 0));
+
+            // A read only buffer is passed but not written to
+            DoubleBuffer readOnly = DoubleBuffer.wrap(new double[] {1, 2, 3}).asReadOnlyBuffer();
+            testFL.readD(readOnly, 10);
+            assertEquals(1, readOnly.get(0));
+            assertEquals(6, testFL.sumArrD(readOnly, 3));
+
+            // A view of a ByteBuffer is big endian unless its order was set, C would read it byte swapped
+            DoubleBuffer bigEndian = ByteBuffer.allocateDirect(3 * Double.BYTES).order(ByteOrder.BIG_ENDIAN).asDoubleBuffer();
+            bigEndian.put(new double[] {1, 2, 3}).flip();
+            DoubleBuffer heapBigEndian = ByteBuffer.wrap(new byte[3 * Double.BYTES]).order(ByteOrder.BIG_ENDIAN).asDoubleBuffer();
+            for (DoubleBuffer buffer : new DoubleBuffer[] {bigEndian, heapBigEndian})
+            {
+                // The generated class wraps what a call throws in an Error
+                Throwable th = assertThrows(Throwable.class, () -> testFL.sumArrD(buffer, 3));
+                assertTrue((th instanceof Error ? th.getCause() : th) instanceof IllegalArgumentException);
+            }
+        }
+    }
+
     @Test
     public void testF()
     {
@@ -158,6 +542,25 @@ public class TestJPassport
         }
     }
 
+    @Test
+    public void testMatrixReadBack() throws Throwable
+    {
+        TestMatrices[] linked = allModes(TestMatrices.class);
+
+        for (TestMatrices testFL : linked) {
+            double[][] mat = new double[3][2];
+            testFL.fillMatD(3, 2, mat);
+            assertArrayEquals(new double[][]{{0, 1}, {2, 3}, {4, 5}}, mat);
+
+            double[][] jagged = new double[][]{{1}, {2, 3, 4}, {}, {5, 6}};
+            int[] lens = Arrays.stream(jagged).mapToInt(r -> r.length).toArray();
+            assertEquals(1 + 2 + 3 + 4 + 5 + 6, testFL.sumJaggedDPtrPtr(jagged.length, lens, jagged));
+
+            testFL.fillJaggedDPtrPtr(jagged.length, lens, jagged);
+            assertArrayEquals(new double[][]{{0}, {100, 101, 102}, {}, {300, 301}}, jagged);
+        }
+    }
+
     @Test
     public void testSumMatF()
     {
@@ -260,6 +663,25 @@ public class TestJPassport
             assertEquals(var[0].length() + var[1].length(), len);
             assertEquals("hello".length(), var[1].length());
             assertEquals("Goodbye".length(), var[0].length());
+
+            String untouched = "untouched";
+            String[] many = new String[] {untouched, "one", null, "thr\u00e9\u00e9", "four"};
+            testFL.swapStrings(many, 1, 3);
+            assertArrayEquals(new String[] {untouched, "thr\u00e9\u00e9", null, "one", "four"}, many);
+            assertSame(untouched, many[0]);
+        }
+
+        // A string C changes in place is read back even though its pointer is the same
+        try (var arena = Arena.ofConfined())
+        {
+            String abc = "abc";
+            String[] strs = new String[] {abc, "def"};
+            var cstrs = CStringArray.of(strs, arena);
+            var block = cstrs.segment();
+            block.set(ValueLayout.JAVA_BYTE, block.getAtIndex(ValueLayout.ADDRESS, 1).address() - block.address() + 1, (byte) 'X');
+            cstrs.readBack(strs);
+            assertArrayEquals(new String[] {"abc", "dXf"}, strs);
+            assertSame(abc, strs[0]);
         }
     }
 
@@ -0,0 +1,105 @@
+/* Copyright (c) 2021 Duncan McLean, All Rights Reserved
+ *
+ * The contents of this file is dual-licensed under the
+ * Apache License 2.0.
+ *
+ * You may obtain a copy of the Apache License at:
+ *
+ * http://www.apache.org/licenses/
+ *
+ * A copy is also included in the downloadable source code.
+ */
+package jpassport.test;
+
+import jpassport.Passport;
+import jpassport.PassportFactory;
+import jpassport.Utils;
+import jpassport.processor.PassportProcessor;
+import org.junit.jupiter.api.Test;
+
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static jpassport.test.TestLinkHelp.getLibName;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compiles an interface with the annotation processor, then checks that link() uses the class it wrote.
+ */
+public class TestPassportProcessor
+{
+    private static final String SOURCE = """
+            package jpassport.test.pregen;
+
+            import jpassport.Passport;
+
+            public interface PregenLink extends Passport {
+                double sumD(double d, double d2);
+                int cstringLength(String s);
+
+                interface Nested extends Passport {
+                    double sumArrD(double[] d, int len);
+                }
+            }
+            """;
+
+    @Test
+    public void testPregenerated() throws Throwable
+    {
+        // Made here rather than with TempDir, the test module does not open its packages to JUnit
+        Path tempDir = Files.createTempDirectory("jpassport_processor");
+        try {
+            Path source = tempDir.resolve("src/jpassport/test/pregen/PregenLink.java");
+            Path generated = tempDir.resolve("generated");
+            Path classes = tempDir.resolve("classes");
+            Files.createDirectories(source.getParent());
+            Files.createDirectories(generated);
+            Files.createDirectories(classes);
+            Files.writeString(source, SOURCE);
+
+            // Under surefire JPassport may be on the module path, the test interface is compiled on the class path
+            String classPath = Stream.of(System.getProperty("java.class.path"), System.getProperty("jdk.module.path"))
+                    .filter(p -> p != null && !p.isEmpty()).collect(Collectors.joining(File.pathSeparator));
+
+            var javac = ToolProvider.getSystemJavaCompiler();
+            var diagnostics = new DiagnosticCollector<JavaFileObject>();
+            try (var files = javac.getStandardFileManager(diagnostics, null, null)) {
+                files.setLocationFromPaths(StandardLocation.SOURCE_OUTPUT, List.of(generated));
+                files.setLocationFromPaths(StandardLocation.CLASS_OUTPUT, List.of(classes));
+                var options = List.of("--release", Integer.toString(Runtime.version().feature()), "--enable-preview", "-classpath", classPath);
+                var task = javac.getTask(null, files, diagnostics, options, null, files.getJavaFileObjects(source));
+                task.setProcessors(List.of(new PassportProcessor()));
+                assertTrue(task.call(), diagnostics.getDiagnostics().toString());
+            }
+
+            assertTrue(Files.exists(generated.resolve("jpassport/test/pregen/PregenLink_impl.java")));
+            assertTrue(Files.exists(generated.resolve("jpassport/test/pregen/PregenLink_Nested_impl.java")));
+
+            try (var loader = new URLClassLoader(new URL[] {classes.toUri().toURL()}, getClass().getClassLoader())) {
+                var linkClass = loader.loadClass("jpassport.test.pregen.PregenLink").asSubclass(Passport.class);
+                Passport linked = PassportFactory.link(getLibName(), linkClass);
+                assertEquals("jpassport.test.pregen.PregenLink_impl", linked.getClass().getName());
+                assertEquals(3.0, linkClass.getMethod("sumD", double.class, double.class).invoke(linked, 1, 2));
+                assertEquals(5, linkClass.getMethod("cstringLength", String.class).invoke(linked, "hello"));
+
+                var nestedClass = loader.loadClass("jpassport.test.pregen.PregenLink$Nested").asSubclass(Passport.class);
+                Passport nested = PassportFactory.link(getLibName(), nestedClass);
+                assertEquals("jpassport.test.pregen.PregenLink_Nested_impl", nested.getClass().getName());
+                assertEquals(6.0, nestedClass.getMethod("sumArrD", double[].class, int.class).invoke(nested, new double[] {1, 2, 3}, 3));
+            }
+        }
+        finally {
+            Utils.deleteFolder(tempDir);
+        }
+    }
+}
@@ -1,12 +1,18 @@
 package jpassport.test.callback;
 
+import jpassport.Callback;
+import jpassport.CallbackRegistry;
 import jpassport.PassportFactory;
+import jpassport.StructViews;
+import jpassport.test.structs.TestStruct;
+import jpassport.test.structs.TestStructView;
 import org.junit.jupiter.api.Test;
 
+import java.lang.foreign.Arena;
 import java.util.Arrays;
 
 import static jpassport.test.TestLinkHelp.getLibName;
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class TestCallback {
 
@@ -24,4 +30,72 @@ public class TestCallback {
         callBack.call_CBArr(myCB.getAsFunctionArrPtr(), test, test.length);
         assertEquals(Arrays.stream(test).sum(), myCB.sum);
     }
+
+    @Test
+    public void testCallbackLifecycle() throws Throwable {
+        var callBack = PassportFactory.link(getLibName(), CallbackNative.class);
+        var myCB = new CallbackObj();
+
+        Callback closeable;
+        try (Callback cb = Callback.of(myCB, "callback"))
+        {
+            closeable = cb;
+            assertEquals(30, callBack.call_CB(cb.getPtr(), 5, 1));
+            assertTrue(cb.isOpen());
+        }
+        assertFalse(closeable.isOpen());
+        assertEquals(5, myCB.calls);
+
+        Callback first;
+        try (var registry = new CallbackRegistry())
+        {
+            first = registry.register(myCB, "callback");
+            assertSame(first, registry.register(myCB, "callback"));
+            assertNotSame(first, registry.register(new CallbackObj(), "callback"));
+            assertEquals(2, registry.size());
+            assertEquals(30, callBack.call_CB(first.getPtr(), 5, 1));
+
+            registry.unregister(myCB, "callback");
+            assertFalse(first.isOpen());
+            assertNotSame(first, registry.register(myCB, "callback"));
+        }
+        assertFalse(first.isOpen());
+        assertEquals(10, myCB.calls);
+
+        assertThrows(IllegalArgumentException.class, () -> Callback.of(myCB, "noSuchMethod"));
+    }
+
+    @Test
+    public void testTypedCallbacks() throws Throwable {
+        var callBack = PassportFactory.link(getLibName(), CallbackNative.class);
+
+        try (var arena = Arena.ofConfined())
+        {
+            int[] order = {5, 3, 9, 1, 7};
+            var data = StructViews.allocateArray(TestStructView.class, arena, order.length);
+            var views = StructViews.ofArray(TestStructView.class, data);
+            for (int n = 0; n < order.length; ++n)
+                views.get(n).s_int(order[n]);
+
+            StructCompare byInt = (a, b) -> Integer.compare(a.s_int(), b.s_int());
+            callBack.call_CBSort(PassportFactory.createCallback(StructCompare.class, byInt, arena), data, order.length);
+            assertArrayEquals(new int[] {1, 3, 5, 7, 9}, views.stream().mapToInt(TestStructView::s_int).toArray());
+        }
+
+        String[] seen = new String[1];
+        TypedCallback typed = (data, name, vals, count) -> {
+            seen[0] = name;
+            for (int n = 0; n < count; ++n)
+                vals[n] *= 2;
+            return data.s_double() + data.s_int();
+        };
+
+        try (Callback cb = Callback.of(TypedCallback.class, typed))
+        {
+            double[] vals = {1, 2, 3};
+            double ret = callBack.call_CBTyped(cb, new TestStruct(4, 5, 6, 7.5), "hello", vals, vals.length);
+            assertEquals("hello", seen[0]);
+            assertEquals(4 + 7.5 + 2 + 4 + 6, ret);
+        }
+    }
 }
@@ -1,14 +1,18 @@
 package jpassport.test.structs;
 
 import jpassport.PassportFactory;
+import jpassport.StructColumns;
+import jpassport.StructViews;
 import jpassport.Utils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import java.lang.foreign.Arena;
 import java.lang.foreign.GroupLayout;
 import java.lang.foreign.MemoryLayout;
 import java.lang.foreign.ValueLayout;
 import java.util.Arrays;
+import java.util.List;
 import java.util.stream.IntStream;
 
 import static java.lang.foreign.MemoryLayout.PathElement.groupElement;
@@ -33,7 +37,8 @@ public class TestUsingStructs {
     public void testSimpleStruct()
     {
         assertEquals(4 * JAVA_LONG.byteSize(), Utils.size_of(TestStruct.class));
-        assertEquals(JAVA_INT.byteSize() + Utils.size_of(TestStruct.class) +
+        // ID is padded out to the 8 byte alignment of the TestStruct after it
+        assertEquals(JAVA_LONG.byteSize() + Utils.size_of(TestStruct.class) +
                 ADDRESS.byteSize() * 2, Utils.size_of(ComplexStruct.class));
 
 
@@ -57,6 +62,113 @@ public class TestUsingStructs {
 //        System.out.println("Mean = " + Arrays.stream(times).average().getAsDouble());
     }
 
+    @Test
+    public void testStructLayout()
+    {
+        // char, int, char -> the int is aligned to 4 and the struct is padded to a multiple of 4
+        GroupLayout layout = Utils.makeStruct(JAVA_BYTE.withName("a"), JAVA_INT.withName("b"), JAVA_BYTE.withName("c"));
+        assertEquals(12, layout.byteSize());
+        assertEquals(4, layout.byteOffset(groupElement("b")));
+        assertEquals(8, layout.byteOffset(groupElement("c")));
+
+        // A nested struct is aligned to its largest member, an array to its element
+        GroupLayout outer = Utils.makeStruct(JAVA_SHORT.withName("a"), layout.withName("inner"),
+                MemoryLayout.sequenceLayout(3, JAVA_SHORT).withName("arr"), JAVA_DOUBLE.withName("d"));
+        assertEquals(4, outer.byteOffset(groupElement("inner")));
+        assertEquals(16, outer.byteOffset(groupElement("arr")));
+        assertEquals(24, outer.byteOffset(groupElement("d")));
+        assertEquals(32, outer.byteSize());
+
+        assertEquals(Utils.structLayout(TestStruct.class), Utils.structLayout(TestStruct.class));
+        assertEquals(8, Utils.structLayout(ComplexStruct.class).byteOffset(groupElement("ts")));
+    }
+
+    @Test
+    public void testStructArray()
+    {
+        TestStruct[] structs = IntStream.range(0, 1000).mapToObj(n -> new TestStruct(n, 1, 2, 3)).toArray(TestStruct[]::new);
+
+        double expected = IntStream.range(0, 1000).sum() + 1000 * (1 + 2 + 3);
+        assertEquals(expected, PassingStructs.passStructArray(structs, structs.length));
+
+        // Every element is read back, not just the first
+        for (int n = 0; n < structs.length; ++n)
+            assertEquals(new TestStruct(n + 10, 1, 2, 3), structs[n]);
+    }
+
+    @Test
+    public void testStructViews() throws Throwable
+    {
+        TestStructViews views = PassportFactory.link(getLibName(), TestStructViews.class);
+        assertEquals(Utils.size_of(TestStruct.class), StructViews.layout(TestStructView.class).byteSize());
+
+        try (var arena = Arena.ofConfined())
+        {
+            TestStructView ts = StructViews.allocate(TestStructView.class, arena);
+            ts.s_int(2);
+            ts.s_long(3);
+            ts.s_float(4);
+            ts.s_double(5);
+            assertEquals(2+3+4+5, views.passStruct(ts));
+
+            var many = StructViews.allocateArray(TestStructView.class, arena, 100);
+            List<TestStructView> list = StructViews.ofArray(TestStructView.class, many);
+            assertEquals(100, list.size());
+            for (int n = 0; n < list.size(); ++n)
+                list.get(n).s_int(n);
+
+            assertEquals(IntStream.range(0, 100).sum(), views.passStructArray(many, 100));
+            // The native code changed the memory, the views see it without anything being read back
+            for (int n = 0; n < list.size(); ++n)
+                assertEquals(n + 10, list.get(n).s_int());
+            assertEquals(52, views.getStruct(many, 42).s_int());
+
+            ComplexStructView complex = StructViews.allocate(ComplexStructView.class, arena);
+            TestStructView tsPtr = StructViews.allocate(TestStructView.class, arena);
+            tsPtr.s_int(5);
+            tsPtr.s_double(6);
+            complex.ID(55);
+            complex.ts().s_int(1);
+            complex.ts().s_double(2);
+            complex.tsPtr(tsPtr.segment());
+            complex.string(arena.allocateFrom("hello"));
+
+            assertEquals(1+2+5+6, views.passComplex(complex));
+            assertEquals(65, complex.ID());
+            assertEquals(11, complex.ts().s_int());
+            assertEquals(25, complex.tsPtr().s_int());
+            assertEquals(25, tsPtr.s_int());
+            assertEquals("HELLO", complex.string());
+        }
+    }
+
+    @Test
+    public void testStructColumns() throws Throwable
+    {
+        TestStructViews views = PassportFactory.link(getLibName(), TestStructViews.class);
+
+        StructColumns cols = StructColumns.allocate(TestStruct.class, 1000);
+        assertEquals(List.of("s_int", "s_long", "s_float", "s_double"), List.copyOf(cols.names()));
+        Arrays.setAll(cols.ints("s_int"), n -> n);
+        Arrays.fill(cols.longs("s_long"), 1);
+        Arrays.fill(cols.floats("s_float"), 2);
+        Arrays.fill(cols.doubles("s_double"), 3);
+
+        try (var arena = Arena.ofConfined())
+        {
+            var structs = cols.write(arena);
+            double expected = IntStream.range(0, 1000).sum() + 1000 * (1 + 2 + 3);
+            assertEquals(expected, views.passStructArray(structs, 1000));
+
+            StructColumns back = StructColumns.read(TestStruct.class, structs, 1000);
+            assertArrayEquals(IntStream.range(10, 1010).toArray(), back.ints("s_int"));
+            assertArrayEquals(cols.doubles("s_double"), back.doubles("s_double"));
+        }
+
+        assertEquals(List.of("ID", "ts.s_int", "ts.s_long", "ts.s_float", "ts.s_double"),
+                List.copyOf(StructColumns.allocate(ComplexStruct.class, 1).names()));
+    }
+
     @Test
     public void testComplexStruct()
     {